@@ -24,7 +24,9 @@
 package hudson.scm;
 
 
+import hudson.AbortException;
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
@@ -33,10 +35,13 @@ import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.cvstagging.CvsTagAction;
 import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
 import jenkins.scm.cvs.QuietPeriodCompleted;
+import jenkins.scm.cvs.WorkspacePrewarmer;
 
 import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.jenkinsci.remoting.RoleChecker;
@@ -60,26 +65,34 @@ import org.netbeans.lib.cvsclient.connection.ConnectionIdentity;
 import org.netbeans.lib.cvsclient.event.CVSListener;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import javax.annotation.CheckForNull;
@@ -105,183 +118,841 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
         final EnvVars envVars = build.getEnvironment(listener);
 
-        for (CvsRepository repository : repositories) {
+        // never run two updates in the same workspace at once
+        WorkspacePrewarmer.awaitPrewarm(workspace, listener);
 
-            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+        if (canUseUpdate && CurrentWorkspace.ENABLED && isWorkspaceCurrent(repositories, isFlatten, workspace, build,
+                listener, envVars)) {
+            listener.getLogger().println("Workspace matches the previous build and nothing has been committed since,"
+                    + " skipping update");
+            return true;
+        }
 
-                for (CvsModule cvsModule : item.getModules()) {
-                    final String checkoutName = envVars.expand(cvsModule.getCheckoutName());
-                    boolean localSubModule = checkoutName.contains("/") && cvsModule.isAlternativeCheckoutName();
-                    int lastSlash = checkoutName.lastIndexOf("/");
+        final int maxConnections = getDescriptor().getMaxConcurrentConnections();
+        final List<ModuleGroup> groups = ModuleGroup.getModuleGroups(repositories, isFlatten, envVars);
+        final PostCheckoutPipeline pipeline = PostCheckoutPipeline.ENABLED && !isFlatten
+                ? PostCheckoutPipeline.forBuild(build) : null;
 
-                    final boolean flatten = isFlatten && !cvsModule.isAlternativeCheckoutName();
+        boolean success = false;
+        try {
+            if (pipeline != null) {
+                startPostCheckout(pipeline, repositories, workspace, build, listener, envVars);
+            }
+
+            // the node can only be looked up from the executor thread, and modules may be checked out on others
+            final CheckoutContext context = new CheckoutContext(canUseUpdate && TargetedUpdate.ENABLED
+                    ? TargetedUpdate.forBuild(this, build) : null, CvsCheckoutStatistics.forBuild(build), pipeline,
+                    listener, CvsCheckoutCache.getNodeRoot(workspace), CvsCheckoutCache.getNodeName());
+
+            final List<List<ModuleGroup>> chains = maxConnections > 1
+                    ? ModuleGroup.getIndependentGroups(groups, isFlatten, envVars) : null;
+            if (chains != null && chains.size() > 1) {
+                success = checkoutConcurrently(chains, isFlatten, workspace, canUseUpdate, build, dateStamp,
+                        pruneEmptyDirectories, cleanOnFailedUpdate, listener, envVars, maxConnections, context);
+                return success;
+            }
+
+            for (ModuleGroup group : groups) {
+                if (!checkoutGroup(group, isFlatten, workspace, canUseUpdate, dateStamp, pruneEmptyDirectories,
+                        cleanOnFailedUpdate, listener, envVars, context)) {
+                    return false;
+                }
+            }
+
+            success = true;
+            return true;
+        } finally {
+            if (pipeline != null && !success) {
+                PostCheckoutPipeline.discard(build);
+            }
+        }
+    }
+
+    /**
+     * Updates a workspace left by a previous build to the current time, ahead of a build that's waiting in the
+     * queue. Each module that's already in the workspace is updated in place, without going through the update
+     * planner, the checkout cache or the recovery of failed updates, so nothing is ever deleted or checked out
+     * afresh and the worst case is leaving the build its usual amount of work. The build still runs its own update
+     * at its real checkout date, which fetches anything committed since and resets any file this update moved
+     * beyond that date, so the result is exactly what it would have been without this.
+     * @param lastBuild the build that left the workspace, used for its environment variables
+     * @param workspace the workspace to update
+     * @return true if every module present in the workspace was updated successfully
+     * @see WorkspacePrewarmer
+     */
+    public boolean prewarm(final Run<?, ?> lastBuild, final FilePath workspace, final TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!isCanUseUpdate() || isForceCleanCopy()) {
+            return false;
+        }
+
+        final EnvVars envVars = lastBuild.getEnvironment(listener);
+        final String dateStamp;
+        synchronized (DATE_FORMATTER) {
+            dateStamp = DATE_FORMATTER.format(new Date());
+        }
+
+        final CheckoutContext context = new CheckoutContext(null, new CvsCheckoutStatistics(), null, listener, null, null);
+        boolean success = true;
+        for (CvsRepository repository : getRepositories()) {
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                for (CvsModule module : item.getModules()) {
+                    final String checkoutName = envVars.expand(module.getCheckoutName());
+                    final boolean localSubModule = checkoutName.contains("/") && module.isAlternativeCheckoutName();
+                    final int lastSlash = checkoutName.lastIndexOf("/");
+                    final boolean flatten = isFlatten() && !module.isAlternativeCheckoutName();
 
                     final FilePath targetWorkspace = flatten ? workspace.getParent() :
                             localSubModule ? workspace.child(checkoutName.substring(0, lastSlash)) : workspace;
-
                     final String moduleName = flatten ? workspace.getName() :
                             localSubModule ? checkoutName.substring(lastSlash + 1) : checkoutName;
 
-                    final FilePath module = targetWorkspace.child(moduleName);
+                    final FilePath existing = flatten ? workspace.child("CVS/Entries") : targetWorkspace.child(moduleName);
+                    if (!existing.exists()) {
+                        continue;
+                    }
+                    success &= performUpdate(repository, item, module, targetWorkspace, moduleName, dateStamp,
+                            isPruneEmptyDirectories(), listener, envVars, context);
+                }
+            }
+        }
+        return success;
+    }
 
-                    boolean updateFailed = false;
-                    boolean update = false;
+    /**
+     * Registers the modules about to be checked out with the post-checkout pipeline and starts fetching the change
+     * log for each repository, which doesn't depend on the checkout so can run alongside it.
+     */
+    private void startPostCheckout(final PostCheckoutPipeline pipeline, final CvsRepository[] repositories,
+                                   final FilePath workspace, final Run<?, ?> build, final TaskListener listener,
+                                   final EnvVars envVars) throws InterruptedException {
+        final List<String> checkoutNames = new ArrayList<String>();
+        for (CvsRepository repository : repositories) {
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                checkoutNames.addAll(Arrays.asList(getCheckoutNames(Arrays.asList(item.getModules()), envVars)));
+            }
+        }
+        pipeline.register(checkoutNames);
 
-                    if (flatten) {
-                        if (workspace.child("CVS/Entries").exists()) {
-                            update = true;
-                        }
-                    } else {
-                        if (canUseUpdate && module.exists()) {
-                            update = true;
-                        }
-                    }
+        final Run<?, ?> lastCompleteBuild = build.getPreviousBuiltBuild();
+        if (lastCompleteBuild == null || isSkipChangeLog()) {
+            return;
+        }
 
-                    CvsRepositoryLocation repositoryLocation = item.getLocation();
-                    CvsRepositoryLocationType locationType = repositoryLocation.getLocationType();
-                    String locationName = repositoryLocation.getLocationName();
-                    String expandedLocationName = envVars.expand(locationName);
-                    // we're doing an update
-                    if (update) {
-                        // we're doing a CVS update
-                        UpdateCommand updateCommand = new UpdateCommand();
-
-                        // force it to recurse into directories
-                        updateCommand.setBuildDirectories(true);
-                        updateCommand.setRecursive(true);
-
-                        // set directory pruning
-                        updateCommand.setPruneDirectories(pruneEmptyDirectories);
-
-                        // set overwrite policy
-                        updateCommand.setCleanCopy(isForceCleanCopy());
-
-                        // point to head, branch or tag
-                        if (locationType == CvsRepositoryLocationType.BRANCH) {
-                            updateCommand.setUpdateByRevision(expandedLocationName);
-                            if (repositoryLocation.isUseHeadIfNotFound()) {
-                                updateCommand.setUseHeadIfNotFound(true);
-                                updateCommand.setUpdateByDate(dateStamp);
-                            }
-                        } else if (locationType == CvsRepositoryLocationType.TAG) {
-                            updateCommand.setUpdateByRevision(expandedLocationName);
-                            updateCommand.setUseHeadIfNotFound(repositoryLocation.isUseHeadIfNotFound());
-                        } else {
-                            updateCommand.setUpdateByRevision(CvsRepositoryLocationType.HEAD.getName().toUpperCase());
-                            updateCommand.setUpdateByDate(dateStamp);
-                        }
+        final Date lastCompleteTimestamp = getCheckoutDate(lastCompleteBuild);
+        final Date checkoutDate = getCheckoutDate(build);
+        for (final CvsRepository repository : repositories) {
+            pipeline.submitChangeLog(repository, new Callable<List<CVSChangeLogSet.CVSChangeLog>>() {
+                @Override
+                public List<CVSChangeLogSet.CVSChangeLog> call() throws Exception {
+                    return calculateChangeLog(lastCompleteTimestamp, checkoutDate, repository, listener, envVars,
+                            workspace);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the modules of a group that's just been checked out to the post-checkout pipeline, if there is one.
+     */
+    private void queuePostCheckout(final ModuleGroup group, final FilePath workspace, final EnvVars envVars,
+                                   final CheckoutContext context) {
+        if (context.pipeline == null) {
+            return;
+        }
 
-                        if (!perform(updateCommand, targetWorkspace, listener, repository, moduleName, envVars, pruneEmptyDirectories)) {
-                            if (cleanOnFailedUpdate) {
-                                updateFailed = true;
-                            } else {
-                                return false;
+        // postCheckout only removes sticky dates from this SCM's own repositories, not those read from projectsets
+        final boolean removeStickyDates = Arrays.asList(getRepositories()).contains(group.repository);
+        final TaskListener listener = context.listener;
+        for (final CvsModule module : group.modules) {
+            context.pipeline.submitModule(group.repository, group.item, module, envVars.expand(module.getCheckoutName()),
+                    new Callable<List<CvsFile>>() {
+                        @Override
+                        public List<CvsFile> call() throws Exception {
+                            final List<CvsFile> files = getCvsFiles(workspace, module, false, envVars, listener);
+                            if (removeStickyDates) {
+                                removeStickyDates(workspace.child(envVars.expand(module.getCheckoutName())),
+                                        group.item, listener);
                             }
+                            return files;
                         }
+                    });
+        }
+    }
 
-                    }
+    /**
+     * Checks whether the workspace is already exactly what an update would leave it as. The workspace has to hold
+     * the same file revisions the previous build on this node recorded, and nothing can have been committed to the
+     * watched modules between that build's checkout and this one's. The second check only has to <tt>rlog</tt> each
+     * module for the time since the most recent poll that found no commits, which is still far cheaper than a
+     * recursive update, and needs no network access at all if that poll ran after this build's checkout date.
+     * @return true if the update can be skipped, false if it needs to go ahead
+     */
+    private boolean isWorkspaceCurrent(final CvsRepository[] repositories, final boolean isFlatten,
+                                       final FilePath workspace, final Run<?, ?> build, final TaskListener listener,
+                                       final EnvVars envVars) throws IOException, InterruptedException {
+        if (isForceCleanCopy()) {
+            return false;
+        }
 
+        final Run<?, ?> previousBuild = build.getPreviousBuild();
+        if (previousBuild == null) {
+            return false;
+        }
+        if (build instanceof AbstractBuild && previousBuild instanceof AbstractBuild
+                && !Util.fixNull(((AbstractBuild<?, ?>) build).getBuiltOnStr())
+                .equals(Util.fixNull(((AbstractBuild<?, ?>) previousBuild).getBuiltOnStr()))) {
+            return false;
+        }
+        final CvsRevisionState previousState = previousBuild.getAction(CvsRevisionState.class);
+        if (previousState == null) {
+            return false;
+        }
 
-                    // we're doing a checkout
-                    if (!update || (updateFailed && cleanOnFailedUpdate)) {
+        final Map<CvsRepository, List<CvsFile>> previousFiles = previousState.getModuleFiles();
+        for (CvsRepository repository : repositories) {
+            if (!previousFiles.containsKey(repository)) {
+                return false;
+            }
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                final CvsRepositoryLocation location = item.getLocation();
+                // neither moving a tag nor falling back to HEAD on a branch shows up in the branch or tag's log
+                if (location.getLocationType() == CvsRepositoryLocationType.TAG
+                        || location.getLocationType() == CvsRepositoryLocationType.BRANCH && location.isUseHeadIfNotFound()) {
+                    return false;
+                }
+            }
+        }
 
-                        if (updateFailed) {
-                            listener.getLogger().println("Update failed. Cleaning workspace and performing full checkout");
-                            workspace.deleteContents();
-                        }
+        final Map<CvsRepository, List<CvsFile>> workspaceState = calculateWorkspaceState(workspace, repositories,
+                isFlatten, envVars, listener);
+        for (CvsRepository repository : repositories) {
+            if (!new HashSet<CvsFile>(workspaceState.get(repository))
+                    .equals(new HashSet<CvsFile>(previousFiles.get(repository)))) {
+                return false;
+            }
+        }
 
-                        // we're doing a CVS checkout
-                        CheckoutCommand checkoutCommand = new CheckoutCommand();
+        final Date previousCheckoutDate = getCheckoutDate(previousBuild);
+        final Date checkoutDate = getCheckoutDate(build);
 
-                        // point to branch or tag if specified
-                        if (locationType == CvsRepositoryLocationType.BRANCH) {
-                            checkoutCommand.setCheckoutByRevision(expandedLocationName);
-                            if (repositoryLocation.isUseHeadIfNotFound()) {
-                                checkoutCommand.setUseHeadIfNotFound(true);
-                                checkoutCommand.setCheckoutByDate(dateStamp);
-                            }
-                        } else if (locationType == CvsRepositoryLocationType.TAG) {
-                            checkoutCommand.setCheckoutByRevision(expandedLocationName);
-                            if (repositoryLocation.isUseHeadIfNotFound()) {
-                                checkoutCommand.setUseHeadIfNotFound(true);
+        // polls since the previous build will usually have covered most of the time since its checkout
+        final Date uncheckedFrom = CurrentWorkspace.getUncheckedFrom(build.getParent().getFullName(),
+                previousBuild.getNumber(), previousCheckoutDate);
+        if (!uncheckedFrom.before(checkoutDate)) {
+            listener.getLogger().println("Polling found no commits between the previous build's checkout and this one");
+            return true;
+        }
+        if (uncheckedFrom.after(previousCheckoutDate)) {
+            listener.getLogger().println("Polling found no commits up to " + DATE_FORMATTER.format(uncheckedFrom)
+                    + ", checking for commits since then");
+        }
+
+        for (CvsRepository repository : repositories) {
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                for (CvsModule module : item.getModules()) {
+                    if (!getRemoteLogForModule(repository, item, module, uncheckedFrom, checkoutDate, envVars,
+                            listener, workspace).getFiles().isEmpty()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks out or updates chains of module groups on a pool of threads, running at most <tt>maxConnections</tt>
+     * commands against any single CVSROOT at once. The groups in each chain are checked out one after another. The
+     * output for each chain is buffered and written to the build log as each chain completes so the logs for
+     * different modules don't get interleaved. The first group to fail cancels all outstanding work.
+     */
+    private boolean checkoutConcurrently(final List<List<ModuleGroup>> chains, final boolean isFlatten,
+                                         final FilePath workspace, final boolean canUseUpdate, final Run<?, ?> build,
+                                         final String dateStamp, final boolean pruneEmptyDirectories,
+                                         final boolean cleanOnFailedUpdate, final TaskListener listener,
+                                         final EnvVars envVars, final int maxConnections, final CheckoutContext context)
+            throws IOException, InterruptedException {
+        listener.getLogger().println("Checking out modules using up to " + maxConnections + " connections per CVSROOT");
+
+        final CvsRootTaskRunner<Boolean> runner = new CvsRootTaskRunner<Boolean>("CVS checkout for " + build, maxConnections);
+
+        for (final List<ModuleGroup> chain : chains) {
+            // the groups in a chain can be on different servers, so each takes a permit for its own CVSROOT
+            runner.addSequence(envVars.expand(chain.get(0).repository.getCvsRoot()), new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (final ModuleGroup group : chain) {
+                        final ByteArrayOutputStream groupLog = new ByteArrayOutputStream();
+                        final TaskListener groupListener = new StreamTaskListener(groupLog);
+                        boolean success = false;
+                        try {
+                            success = runner.call(envVars.expand(group.repository.getCvsRoot()),
+                                    new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                    return checkoutGroup(group, isFlatten, workspace, canUseUpdate, dateStamp,
+                                            pruneEmptyDirectories, cleanOnFailedUpdate, groupListener, envVars,
+                                            context);
+                                }
+                            });
+                        } finally {
+                            groupListener.getLogger().flush();
+                            synchronized (listener) {
+                                listener.getLogger().println("Output for " + group.getDescription(envVars) + ":");
+                                listener.getLogger().write(groupLog.toByteArray());
+                                listener.getLogger().flush();
                             }
-                        } else if (locationType == CvsRepositoryLocationType.HEAD) {
-                            checkoutCommand.setCheckoutByDate(dateStamp);
                         }
+                        if (!success) {
+                            throw new AbortException("Checkout of " + group.getDescription(envVars) + " failed");
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
 
-                        // set directory pruning
-                        checkoutCommand.setPruneDirectories(pruneEmptyDirectories);
+        try {
+            runner.invokeAll();
+            return true;
+        } catch (AbortException ex) {
+            listener.error(ex.getMessage());
+            return false;
+        }
+    }
 
-                        // set where we're checking out to
-                        if (cvsModule.isAlternativeCheckoutName() || flatten) {
-                            checkoutCommand.setCheckoutDirectory(moduleName);
-                        }
+    /**
+     * Checks out or updates all modules in a group. A group of several modules is sent as a single update command
+     * for the modules already in the workspace and a single checkout command for the rest. If either batched command
+     * fails then its modules are retried one at a time so the usual failure handling applies to each of them.
+     * @return true if every module in the group was successfully checked out/updated, false otherwise
+     */
+    private boolean checkoutGroup(final ModuleGroup group, final boolean isFlatten, final FilePath workspace,
+                                  final boolean canUseUpdate, final String dateStamp, final boolean pruneEmptyDirectories,
+                                  final boolean cleanOnFailedUpdate, final TaskListener listener, final EnvVars envVars,
+                                  final CheckoutContext context)
+            throws IOException, InterruptedException {
+        if (group.modules.size() == 1) {
+            if (!checkoutModule(group.repository, group.item, group.modules.get(0), isFlatten, workspace, canUseUpdate,
+                    dateStamp, pruneEmptyDirectories, cleanOnFailedUpdate, listener, envVars, context)) {
+                return false;
+            }
+            queuePostCheckout(group, workspace, envVars, context);
+            return true;
+        }
 
-                        // and specify which module to load
-                        checkoutCommand.setModule(envVars.expand(cvsModule.getRemoteName()));
+        final List<CvsModule> updateModules = new ArrayList<CvsModule>();
+        final List<CvsModule> checkoutModules = new ArrayList<CvsModule>();
+        for (CvsModule cvsModule : group.modules) {
+            if (canUseUpdate && workspace.child(envVars.expand(cvsModule.getCheckoutName())).exists()) {
+                updateModules.add(cvsModule);
+            } else {
+                checkoutModules.add(cvsModule);
+            }
+        }
 
-                        if (!perform(checkoutCommand, targetWorkspace, listener, repository, moduleName, envVars, pruneEmptyDirectories)) {
-                            return false;
-                        }
+        final List<CvsModule> individualModules = new ArrayList<CvsModule>();
+
+        if (!updateModules.isEmpty() && (context.targetedUpdate != null || UpdatePlanner.ENABLED)) {
+            // targeted and planned updates work out what to do one module at a time
+            individualModules.addAll(updateModules);
+        } else if (!updateModules.isEmpty()) {
+            final UpdateCommand updateCommand = createUpdateCommand(group.item, dateStamp, pruneEmptyDirectories, envVars);
+            if (!perform(updateCommand, workspace, listener, group.repository, getCheckoutNames(updateModules, envVars),
+                    envVars, pruneEmptyDirectories, context)) {
+                listener.getLogger().println("Batched update failed, updating modules individually");
+                individualModules.addAll(updateModules);
+            }
+        }
+
+        if (!checkoutModules.isEmpty() && CvsCheckoutCache.ENABLED) {
+            // checkouts need to go through the checkout cache one module at a time
+            individualModules.addAll(checkoutModules);
+        } else if (!checkoutModules.isEmpty()) {
+            final CheckoutCommand checkoutCommand = createCheckoutCommand(group.item, dateStamp, pruneEmptyDirectories, envVars);
+            final String[] checkoutNames = getCheckoutNames(checkoutModules, envVars);
+            checkoutCommand.setModules(checkoutNames);
+            if (!perform(checkoutCommand, workspace, listener, group.repository, checkoutNames, envVars,
+                    pruneEmptyDirectories, context)) {
+                listener.getLogger().println("Batched checkout failed, checking out modules individually");
+                individualModules.addAll(checkoutModules);
+            }
+        }
+
+        for (CvsModule cvsModule : individualModules) {
+            if (!checkoutModule(group.repository, group.item, cvsModule, isFlatten, workspace, canUseUpdate, dateStamp,
+                    pruneEmptyDirectories, cleanOnFailedUpdate, listener, envVars, context)) {
+                return false;
+            }
+        }
+
+        queuePostCheckout(group, workspace, envVars, context);
+        return true;
+    }
+
+    private static String[] getCheckoutNames(final List<CvsModule> modules, final EnvVars envVars) {
+        final String[] names = new String[modules.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = envVars.expand(modules.get(i).getCheckoutName());
+        }
+        return names;
+    }
+
+    /**
+     * Checks out or updates a single module into the workspace.
+     * @return true if the module was successfully checked out/updated, false otherwise
+     */
+    private boolean checkoutModule(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule cvsModule,
+                                   final boolean isFlatten, final FilePath workspace, final boolean canUseUpdate,
+                                   final String dateStamp, final boolean pruneEmptyDirectories,
+                                   final boolean cleanOnFailedUpdate, final TaskListener listener, final EnvVars envVars,
+                                   final CheckoutContext context)
+            throws IOException, InterruptedException {
+        final String checkoutName = envVars.expand(cvsModule.getCheckoutName());
+        boolean localSubModule = checkoutName.contains("/") && cvsModule.isAlternativeCheckoutName();
+        int lastSlash = checkoutName.lastIndexOf("/");
+
+        final boolean flatten = isFlatten && !cvsModule.isAlternativeCheckoutName();
+
+        final FilePath targetWorkspace = flatten ? workspace.getParent() :
+                localSubModule ? workspace.child(checkoutName.substring(0, lastSlash)) : workspace;
+
+        final String moduleName = flatten ? workspace.getName() :
+                localSubModule ? checkoutName.substring(lastSlash + 1) : checkoutName;
+
+        final FilePath module = targetWorkspace.child(moduleName);
+
+        boolean updateFailed = false;
+        boolean update = false;
+
+        if (flatten) {
+            if (workspace.child("CVS/Entries").exists()) {
+                update = true;
+            }
+        } else {
+            if (canUseUpdate && module.exists()) {
+                update = true;
+            }
+        }
+
+        if (update && UpdatePlanner.ENABLED && !UpdatePlanner.isUpdateCheaper(this, repository, item, cvsModule,
+                flatten, workspace, module, targetWorkspace, moduleName, dateStamp, listener, envVars)) {
+            if (flatten) {
+                WorkspaceTrash.deleteContents(workspace);
+            } else {
+                WorkspaceTrash.deleteRecursive(module, workspace);
+            }
+            update = false;
+        }
 
+        // we're doing an update
+        if (update) {
+            Boolean updated = null;
+            if (context.targetedUpdate != null && !flatten) {
+                updated = context.targetedUpdate.update(repository, item, cvsModule, workspace, targetWorkspace,
+                        moduleName, dateStamp, pruneEmptyDirectories, listener, envVars, context);
+            }
+
+            if (updated == null) {
+                // we're doing a CVS update
+                updated = performUpdate(repository, item, cvsModule, targetWorkspace, moduleName, dateStamp,
+                        pruneEmptyDirectories, listener, envVars, context);
+            }
+
+            if (!updated) {
+                if (!cleanOnFailedUpdate) {
+                    return false;
+                }
+
+                // failures are often transient, so give the module one more attempt before throwing it away
+                listener.getLogger().println("Update of module '" + envVars.expand(cvsModule.getRemoteName())
+                        + "' failed. Retrying update of module");
+                updateFailed = !performUpdate(repository, item, cvsModule, targetWorkspace, moduleName, dateStamp,
+                        pruneEmptyDirectories, listener, envVars, context);
+            }
+
+        }
+
+
+        // we're doing a checkout
+        if (!update || updateFailed) {
+
+            if (updateFailed) {
+                if (flatten) {
+                    // the module is the workspace so there's nothing smaller we can rebuild
+                    listener.getLogger().println("Update of module '" + envVars.expand(cvsModule.getRemoteName())
+                            + "' failed again. Cleaning workspace and performing full checkout of module");
+                    WorkspaceTrash.deleteContents(workspace);
+                } else {
+                    listener.getLogger().println("Update of module '" + envVars.expand(cvsModule.getRemoteName())
+                            + "' failed again. Deleting " + module.getRemote() + " and performing full checkout of module");
+                    WorkspaceTrash.deleteRecursive(module, workspace);
+                }
+            }
+
+            if (CvsCheckoutCache.ENABLED && context.nodeRoot != null && !flatten && !updateFailed && !cvsModule.isSparse()) {
+                final CvsCheckoutCache cache = CvsCheckoutCache.forModule(context.nodeRoot, context.nodeName,
+                        envVars.expand(repository.getCvsRoot()), envVars.expand(cvsModule.getRemoteName()),
+                        item.getLocation().getLocationType(), envVars.expand(item.getLocation().getLocationName()));
+                synchronized (cache.getLock()) {
+                    if (cache.exists()) {
+                        // bring the cache up to date and then copy it, rather than pulling the whole module over the network
+                        listener.getLogger().println("Seeding module from checkout cache at " + cache.getDirectory().getRemote());
+                        UpdateCommand cacheUpdateCommand = createUpdateCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+                        if (perform(cacheUpdateCommand, cache.getDirectory(), listener, repository,
+                                new String[]{CvsCheckoutCache.CHECKOUT_NAME}, envVars, pruneEmptyDirectories, context)) {
+                            cache.seed(module, workspace);
+                            return true;
+                        }
+                        listener.getLogger().println("Could not update checkout cache. Discarding it and performing full checkout");
+                        cache.discard();
                     }
+                }
+
+                // the full checkout runs without the lock, so other jobs using the module aren't held up behind it
+                if (!checkoutModuleFromServer(repository, item, cvsModule, flatten, targetWorkspace, moduleName,
+                        dateStamp, pruneEmptyDirectories, listener, envVars, context)) {
+                    return false;
+                }
 
+                synchronized (cache.getLock()) {
+                    try {
+                        // another job may have filled the cache whilst this one was checking out
+                        if (!cache.exists()) {
+                            cache.store(module);
+                        }
+                    } catch (IOException ex) {
+                        // the checkout itself worked so the build can carry on without the cache
+                        listener.getLogger().println("Could not store module in checkout cache: " + ex.getMessage());
+                    }
                 }
+            } else if (!checkoutModuleFromServer(repository, item, cvsModule, flatten, targetWorkspace, moduleName,
+                    dateStamp, pruneEmptyDirectories, listener, envVars, context)) {
+                return false;
             }
 
         }
 
+
         return true;
     }
 
+    /**
+     * Updates a module that's already in the workspace. A sparse module can't be updated recursively from its root
+     * since <tt>-d</tt> would fetch every directory that was left out of the checkout, so only the files in its root
+     * are updated there and each included path is then updated on its own.
+     * @return true if the update succeeded, false otherwise
+     */
+    private boolean performUpdate(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule cvsModule,
+                                  final FilePath targetWorkspace, final String moduleName, final String dateStamp,
+                                  final boolean pruneEmptyDirectories, final TaskListener listener,
+                                  final EnvVars envVars, final CheckoutContext context)
+            throws IOException, InterruptedException {
+        if (!cvsModule.isSparse()) {
+            final UpdateCommand updateCommand = createUpdateCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+            return perform(updateCommand, targetWorkspace, listener, repository, new String[]{moduleName}, envVars,
+                    pruneEmptyDirectories, context);
+        }
+
+        final UpdateCommand rootCommand = createUpdateCommand(item, dateStamp, false, envVars);
+        rootCommand.setRecursive(false);
+        rootCommand.setBuildDirectories(false);
+        return perform(rootCommand, targetWorkspace, listener, repository, new String[]{moduleName}, envVars, false,
+                context) && updateIncludedPaths(repository, item, cvsModule, targetWorkspace, moduleName, dateStamp,
+                pruneEmptyDirectories, listener, envVars, context);
+    }
+
+    /**
+     * Fetches or updates the included paths of a sparse module whose root directory has already been checked out.
+     * CVS can only fetch a directory into a parent that's already checked out, so the parents of each included
+     * path are fetched first, a level at a time and without their subdirectories.
+     * @return true if every included path was fetched, false otherwise
+     */
+    private boolean updateIncludedPaths(final CvsRepository repository, final CvsRepositoryItem item,
+                                        final CvsModule cvsModule, final FilePath targetWorkspace,
+                                        final String moduleName, final String dateStamp,
+                                        final boolean pruneEmptyDirectories, final TaskListener listener,
+                                        final EnvVars envVars, final CheckoutContext context)
+            throws IOException, InterruptedException {
+        final List<String> includedPaths = cvsModule.getIncludedPathList();
+
+        final SortedMap<Integer, Set<String>> parents = new TreeMap<Integer, Set<String>>();
+        for (String path : includedPaths) {
+            int depth = 0;
+            for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+                Set<String> level = parents.get(++depth);
+                if (level == null) {
+                    level = new TreeSet<String>();
+                    parents.put(depth, level);
+                }
+                level.add(moduleName + "/" + path.substring(0, i));
+            }
+        }
+
+        for (Set<String> level : parents.values()) {
+            // pruning here could remove a parent that only has directories in it before we get to them
+            final UpdateCommand parentCommand = createUpdateCommand(item, dateStamp, false, envVars);
+            parentCommand.setRecursive(false);
+            if (!perform(parentCommand, targetWorkspace, listener, repository, level.toArray(new String[level.size()]),
+                    envVars, false, context)) {
+                return false;
+            }
+        }
+
+        final String[] paths = new String[includedPaths.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = moduleName + "/" + includedPaths.get(i);
+        }
+        final UpdateCommand updateCommand = createUpdateCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+        return perform(updateCommand, targetWorkspace, listener, repository, paths, envVars, pruneEmptyDirectories, context);
+    }
+
+    private boolean checkoutModuleFromServer(final CvsRepository repository, final CvsRepositoryItem item,
+                                             final CvsModule cvsModule, final boolean flatten,
+                                             final FilePath targetWorkspace, final String moduleName,
+                                             final String dateStamp, final boolean pruneEmptyDirectories,
+                                             final TaskListener listener, final EnvVars envVars,
+                                             final CheckoutContext context)
+            throws IOException, InterruptedException {
+        // we're doing a CVS checkout
+        CheckoutCommand checkoutCommand = createCheckoutCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+
+        if (cvsModule.isSparse()) {
+            // just create the module's root, the included paths are fetched into it afterwards
+            checkoutCommand.setRecursive(false);
+            checkoutCommand.setPruneDirectories(false);
+        }
+
+        // set where we're checking out to
+        if (cvsModule.isAlternativeCheckoutName() || flatten) {
+            checkoutCommand.setCheckoutDirectory(moduleName);
+        }
+
+        // and specify which module to load
+        checkoutCommand.setModule(envVars.expand(cvsModule.getRemoteName()));
+
+        if (!cvsModule.isSparse()) {
+            return perform(checkoutCommand, targetWorkspace, listener, repository, new String[]{moduleName}, envVars, pruneEmptyDirectories, context);
+        }
+
+        listener.getLogger().println("Checking out " + cvsModule.getIncludedPathList().size()
+                + " included paths of module '" + envVars.expand(cvsModule.getRemoteName()) + "'");
+        return perform(checkoutCommand, targetWorkspace, listener, repository, new String[]{moduleName}, envVars, false, context)
+                && updateIncludedPaths(repository, item, cvsModule, targetWorkspace, moduleName, dateStamp,
+                pruneEmptyDirectories, listener, envVars, context);
+    }
+
+    UpdateCommand createUpdateCommand(final CvsRepositoryItem item, final String dateStamp,
+                                      final boolean pruneEmptyDirectories, final EnvVars envVars) {
+        final CvsRepositoryLocation repositoryLocation = item.getLocation();
+        final CvsRepositoryLocationType locationType = repositoryLocation.getLocationType();
+        final String expandedLocationName = envVars.expand(repositoryLocation.getLocationName());
+
+        final UpdateCommand updateCommand = new UpdateCommand();
+
+        // force it to recurse into directories
+        updateCommand.setBuildDirectories(true);
+        updateCommand.setRecursive(true);
+
+        // set directory pruning
+        updateCommand.setPruneDirectories(pruneEmptyDirectories);
+
+        // set overwrite policy
+        updateCommand.setCleanCopy(isForceCleanCopy());
+
+        // point to head, branch or tag
+        if (locationType == CvsRepositoryLocationType.BRANCH) {
+            updateCommand.setUpdateByRevision(expandedLocationName);
+            if (repositoryLocation.isUseHeadIfNotFound()) {
+                updateCommand.setUseHeadIfNotFound(true);
+                updateCommand.setUpdateByDate(dateStamp);
+            }
+        } else if (locationType == CvsRepositoryLocationType.TAG) {
+            updateCommand.setUpdateByRevision(expandedLocationName);
+            updateCommand.setUseHeadIfNotFound(repositoryLocation.isUseHeadIfNotFound());
+        } else {
+            updateCommand.setUpdateByRevision(CvsRepositoryLocationType.HEAD.getName().toUpperCase());
+            updateCommand.setUpdateByDate(dateStamp);
+        }
+
+        return updateCommand;
+    }
+
+    private CheckoutCommand createCheckoutCommand(final CvsRepositoryItem item, final String dateStamp,
+                                                  final boolean pruneEmptyDirectories, final EnvVars envVars) {
+        final CvsRepositoryLocation repositoryLocation = item.getLocation();
+        final CvsRepositoryLocationType locationType = repositoryLocation.getLocationType();
+        final String expandedLocationName = envVars.expand(repositoryLocation.getLocationName());
+
+        final CheckoutCommand checkoutCommand = new CheckoutCommand();
+
+        // point to branch or tag if specified
+        if (locationType == CvsRepositoryLocationType.BRANCH) {
+            checkoutCommand.setCheckoutByRevision(expandedLocationName);
+            if (repositoryLocation.isUseHeadIfNotFound()) {
+                checkoutCommand.setUseHeadIfNotFound(true);
+                checkoutCommand.setCheckoutByDate(dateStamp);
+            }
+        } else if (locationType == CvsRepositoryLocationType.TAG) {
+            checkoutCommand.setCheckoutByRevision(expandedLocationName);
+            if (repositoryLocation.isUseHeadIfNotFound()) {
+                checkoutCommand.setUseHeadIfNotFound(true);
+            }
+        } else if (locationType == CvsRepositoryLocationType.HEAD) {
+            checkoutCommand.setCheckoutByDate(dateStamp);
+        }
+
+        // set directory pruning
+        checkoutCommand.setPruneDirectories(pruneEmptyDirectories);
+
+        return checkoutCommand;
+    }
+
+    /**
+     * Everything about the checkout currently in progress that needs to be passed down to the individual commands.
+     */
+    static final class CheckoutContext {
+        /**
+         * The state left by the previous build if a targeted update can be attempted, otherwise null.
+         */
+        private final TargetedUpdate targetedUpdate;
+        private final CvsCheckoutStatistics statistics;
+        /**
+         * Where finished modules are sent for post-checkout processing, or null if it all happens afterwards.
+         */
+        private final PostCheckoutPipeline pipeline;
+        /**
+         * The build's own listener, for post-checkout processing that outlives the module it was started for.
+         */
+        private final TaskListener listener;
+        /**
+         * The root directory and name of the node the build is running on, or null if the checkout cache can't be
+         * used.
+         */
+        private final FilePath nodeRoot;
+        private final String nodeName;
+
+        private CheckoutContext(final TargetedUpdate targetedUpdate, final CvsCheckoutStatistics statistics,
+                                final PostCheckoutPipeline pipeline, final TaskListener listener,
+                                final FilePath nodeRoot, final String nodeName) {
+            this.targetedUpdate = targetedUpdate;
+            this.statistics = statistics;
+            this.pipeline = pipeline;
+            this.listener = listener;
+            this.nodeRoot = nodeRoot;
+            this.nodeName = nodeName;
+        }
+    }
+
     /**
      * Runs a cvs command in the given workspace.
      * @param cvsCommand the command to run (checkout, update etc)
      * @param workspace the workspace to run the command in
      * @param listener where to log output to
      * @param repository the repository to connect to
-     * @param moduleName the name of the directory within the workspace that will have work performed on it
+     * @param moduleNames the names of the directories within the workspace that will have work performed on them
      * @param envVars the environmental variables to expand
+     * @param context the checkout the command is being run for, which the command's statistics are recorded against
      * @return true if the action succeeds, false otherwise
      * @throws IOException on failure handling files or server actions
      * @throws InterruptedException if the user cancels the action
      */
-    private boolean perform(final Command cvsCommand, final FilePath workspace, final TaskListener listener,
-                            final CvsRepository repository, final String moduleName, final EnvVars envVars, final boolean pruneEmptyDirectories)
+    boolean perform(final Command cvsCommand, final FilePath workspace, final TaskListener listener,
+                    final CvsRepository repository, final String[] moduleNames, final EnvVars envVars, final boolean pruneEmptyDirectories,
+                    final CheckoutContext context)
             throws IOException, InterruptedException {
 
         final Client cvsClient = getCvsClient(repository, envVars, listener);
+        final String connectionKey = getConnectionKey(repository, envVars);
         final GlobalOptions globalOptions = getGlobalOptions(repository, envVars);
+        final String cvsRoot = envVars.expand(repository.getCvsRoot());
+        final boolean adaptiveCompression = isAdaptiveCompression(repository, envVars);
+        // these are read here rather than on the node running the command so changes made on the master apply
+        final int summaryLines = SummarizingListener.ENABLED ? SummarizingListener.LINES : -1;
+        final long idleTimeout = CommandWatchdog.IDLE_TIMEOUT * 1000L;
+
+        if (adaptiveCompression) {
+            // only fresh checkouts move enough to be measured, so they're the only commands that try levels out, and
+            // their level is picked once for each CVSROOT a build uses so a build only takes one turn at a level
+            final boolean explore = cvsCommand instanceof CheckoutCommand;
+            Integer level = explore && context != null ? context.statistics.getCompressionLevel(cvsRoot) : null;
+            if (level == null) {
+                final CompressionAdvisor advisor = CompressionAdvisor.getInstance();
+                level = advisor.getLevel(cvsRoot, explore);
+                if (context == null || context.statistics.addCompressionRates(cvsRoot, advisor.getRates(cvsRoot))
+                        || explore) {
+                    listener.getLogger().println(advisor.describe(cvsRoot, level));
+                }
+                if (explore && context != null) {
+                    context.statistics.setCompressionLevel(cvsRoot, level);
+                }
+            }
+            globalOptions.setCompressionLevel(level);
+        }
 
-
-        if (!workspace.act(new FilePath.FileCallable<Boolean>() {
+        final FilePath.FileCallable<CommandResult> callable = new FilePath.FileCallable<CommandResult>() {
 
             private static final long serialVersionUID = -7517978923721181408L;
 
+            private boolean retryable;
+
             @Override
-            public Boolean invoke(final File workspace, final VirtualChannel channel) throws RuntimeException {
+            public CommandResult invoke(final File workspace, final VirtualChannel channel) throws RuntimeException {
+                final CvsCommandStatistics.Collector collector = new CvsCommandStatistics.Collector();
+                final SummarizingListener summary = summaryLines < 0 ? null
+                        : new SummarizingListener(listener.getLogger(), summaryLines);
+                retryable = false;
+                final boolean success = execute(workspace, collector, summary);
+                if (summary != null) {
+                    summary.finish(success);
+                }
+                return new CommandResult(success, retryable, collector.finish(cvsRoot, Util.join(Arrays.asList(moduleNames), ","),
+                        cvsCommand.getCVSCommand().split(" ")[0], globalOptions.getCompressionLevel(), success));
+            }
+
+            private boolean execute(final File workspace, final CvsCommandStatistics.Collector collector,
+                                    final SummarizingListener summary) {
 
 
                 if (cvsCommand instanceof UpdateCommand) {
-                    ((UpdateCommand) cvsCommand).setFiles(new File[]{new File(workspace, moduleName)});
+                    final File[] files = new File[moduleNames.length];
+                    for (int i = 0; i < moduleNames.length; i++) {
+                        files[i] = new File(workspace, moduleNames[i]);
+                    }
+                    ((UpdateCommand) cvsCommand).setFiles(files);
                 }
 
                 listener.getLogger().println("cvs " + cvsCommand.getCVSCommand());
 
 
-                cvsClient.setLocalPath(workspace.getAbsolutePath());
-                final BasicListener basicListener = new BasicListener(listener.getLogger(), listener.getLogger());
-                cvsClient.getEventManager().addCVSListener(basicListener);
+                final Client client = CvsConnectionPool.getInstance().borrow(connectionKey,
+                        globalOptions.getCompressionLevel(), cvsClient);
+                client.setLocalPath(workspace.getAbsolutePath());
+                final CVSListener outputListener = summary != null ? summary
+                        : new BasicListener(listener.getLogger(), listener.getLogger());
+                client.getEventManager().addCVSListener(outputListener);
+                client.getEventManager().addCVSListener(collector);
+                final CommandWatchdog watchdog = idleTimeout > 0 ? new CommandWatchdog(client, idleTimeout) : null;
+                if (watchdog != null) {
+                    client.getEventManager().addCVSListener(watchdog);
+                    watchdog.start();
+                }
 
+                boolean reusable = false;
                 try {
-                    if (!cvsClient.executeCommand(cvsCommand, globalOptions)) {
+                    if (!client.executeCommand(cvsCommand, globalOptions)) {
+                        retryable = reportStall(watchdog, listener);
                         return false;
                     }
+                    reusable = true;
                     if (pruneEmptyDirectories && !isDisableCvsQuiet()) {
                         try {
-                            File moduleDir = new File(workspace, moduleName);
-                            if (moduleDir.isDirectory()) {
-                                pruneEmptyDirectories(moduleDir,listener);
+                            for (String moduleName : moduleNames) {
+                                File moduleDir = new File(workspace, moduleName);
+                                if (moduleDir.isDirectory()) {
+                                    pruneEmptyDirectories(moduleDir,listener);
+                                }
                             }
                         } catch (IOException e) {
                             e.printStackTrace(listener.error("CVS empty directory cleanup failed: " + e.getMessage()));
@@ -291,16 +962,26 @@ public abstract class AbstractCvs extends SCM implements ICvs {
                     return true;
                 } catch (CommandAbortedException e) {
                     e.printStackTrace(listener.error("CVS Command aborted: " + e.getMessage()));
+                    retryable = reportStall(watchdog, listener);
                     return false;
                 } catch (CommandException e) {
                     e.printStackTrace(listener.error("CVS Command failed: " + e.getMessage()));
+                    retryable = reportStall(watchdog, listener) || CommandRetry.isConnectionFailure(e);
                     return false;
                 } catch (AuthenticationException e) {
                     e.printStackTrace(listener.error("CVS Authentication failed: " + e.getMessage()));
+                    retryable = reportStall(watchdog, listener);
                     return false;
                 }  finally {
+                    if (watchdog != null) {
+                        watchdog.stop();
+                        client.getEventManager().removeCVSListener(watchdog);
+                    }
+                    client.getEventManager().removeCVSListener(outputListener);
+                    client.getEventManager().removeCVSListener(collector);
                     try {
-                        cvsClient.getConnection().close();
+                        CvsConnectionPool.getInstance().release(connectionKey, globalOptions.getCompressionLevel(),
+                                client, reusable);
                     } catch(IOException ex) {
                         listener.error("Could not close client connection: " + ex.getMessage());
                     }
@@ -312,7 +993,26 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 					throws SecurityException {
 				// Do nothing
 			}
-        })) {
+        };
+
+        // anything written before a failure is recorded in the CVS/Entries files, so a retry only fetches what's left
+        final CommandRetry retry = CommandRetry.forCommand();
+        CommandResult result;
+        do {
+            result = workspace.act(callable);
+
+            if (adaptiveCompression && result.success) {
+                CompressionAdvisor.getInstance().record(cvsRoot, globalOptions.getCompressionLevel(),
+                        result.statistics.getFileBytes(), result.statistics.getDuration());
+            }
+
+            if (context != null) {
+                context.statistics.add(result.statistics);
+            }
+        } while (!result.success && retry.retry(result.retryable, cvsRoot,
+                result.statistics.getFilesAdded() + result.statistics.getFilesUpdated(), listener));
+
+        if (!result.success) {
             listener.error("Cvs task failed");
             return false;
         }
@@ -320,13 +1020,55 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         return true;
     }
 
+    /**
+     * Throws away the post-checkout pipeline of a build that finished without recording its checkout, such as one
+     * whose checkout failed part way through.
+     */
+    @Extension
+    public static final class PipelineCleaner extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onCompleted(final Run<?, ?> run, final TaskListener listener) {
+            PostCheckoutPipeline.discard(run);
+        }
+    }
+
+    /**
+     * The outcome of running a command on the node holding the workspace.
+     */
+    private static final class CommandResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean success;
+        private final boolean retryable;
+        private final CvsCommandStatistics statistics;
+
+        private CommandResult(final boolean success, final boolean retryable, final CvsCommandStatistics statistics) {
+            this.success = success;
+            this.retryable = retryable;
+            this.statistics = statistics;
+        }
+    }
+
+    /**
+     * Checks whether a failed command was stopped by its watchdog, logging the reason if it was.
+     */
+    private static boolean reportStall(final CommandWatchdog watchdog, final TaskListener listener) {
+        if (watchdog == null || !watchdog.isStalled()) {
+            return false;
+        }
+        listener.error("Nothing received from the CVS server for " + watchdog.getIdleTimeoutSeconds()
+                + " seconds, connection was closed");
+        return true;
+    }
+
     /**
      * JENKINS-18390: work around buggy client.
      * Cannot copy similarly-named method from {@link UpdateCommand} due to license mismatch.
      * Cannot easily call the method reflectively on the {@link Command} since {@link CheckoutCommand} has a different signature for it.
      * Pending a fix in the client library, do it ourselves when necessary.
      */
-    private static void pruneEmptyDirectories(File d, final TaskListener listener) throws IOException {
+    static void pruneEmptyDirectories(File d, final TaskListener listener) throws IOException {
         File[] kids = d.listFiles();
         if (kids == null) {
             throw new IOException("could not examine " + d);
@@ -375,6 +1117,36 @@ public abstract class AbstractCvs extends SCM implements ICvs {
      */
     public Client getCvsClient(final CvsRepository repository, final EnvVars envVars,
                                final TaskListener listener, boolean showAuthenticationInfo) {
+        final CVSRoot cvsRoot = getAuthenticatedCvsRoot(repository, envVars, listener, showAuthenticationInfo);
+
+        ConnectionIdentity connectionIdentity = ConnectionFactory.getConnectionIdentity();
+        connectionIdentity.setKnownHostsFile(envVars.expand(getDescriptor().getKnownHostsLocation()));
+        connectionIdentity.setPrivateKeyPath(envVars.expand(getDescriptor().getPrivateKeyLocation()));
+        if (getDescriptor().getPrivateKeyPassword() != null) {
+            connectionIdentity.setPrivateKeyPassword(getDescriptor().getPrivateKeyPassword().getPlainText());
+        }
+
+        final Connection cvsConnection = ConnectionFactory.getConnection(cvsRoot);
+
+        return new Client(cvsConnection, new StandardAdminHandler());
+    }
+
+    /**
+     * Gives a key identifying the server and credentials a client for the given repository would connect with.
+     * Clients with the same key can share a pooled connection, as long as they also ask for the same compression
+     * level, which the pool checks separately.
+     * @param repository the repository to connect to
+     * @param envVars variables to use for macro expansion
+     * @return an opaque key that doesn't expose the connection password
+     * @see CvsConnectionPool
+     */
+    public String getConnectionKey(final CvsRepository repository, final EnvVars envVars) {
+        final CVSRoot cvsRoot = getAuthenticatedCvsRoot(repository, envVars, TaskListener.NULL, false);
+        return Util.getDigestOf(cvsRoot.toString() + "\n" + Util.fixNull(cvsRoot.getPassword()));
+    }
+
+    private CVSRoot getAuthenticatedCvsRoot(final CvsRepository repository, final EnvVars envVars,
+                                            final TaskListener listener, final boolean showAuthenticationInfo) {
         CVSRoot cvsRoot = CVSRoot.parse(envVars.expand(repository.getCvsRoot()));
 
         if (repository.isPasswordRequired()) {
@@ -406,16 +1178,7 @@ public abstract class AbstractCvs extends SCM implements ICvs {
             }
         }
 
-        ConnectionIdentity connectionIdentity = ConnectionFactory.getConnectionIdentity();
-        connectionIdentity.setKnownHostsFile(envVars.expand(getDescriptor().getKnownHostsLocation()));
-        connectionIdentity.setPrivateKeyPath(envVars.expand(getDescriptor().getPrivateKeyLocation()));
-        if (getDescriptor().getPrivateKeyPassword() != null) {
-            connectionIdentity.setPrivateKeyPassword(getDescriptor().getPrivateKeyPassword().getPlainText());
-        }
-
-        final Connection cvsConnection = ConnectionFactory.getConnection(cvsRoot);
-
-        return new Client(cvsConnection, new StandardAdminHandler());
+        return cvsRoot;
     }
 
     public GlobalOptions getGlobalOptions(CvsRepository repository, EnvVars envVars) {
@@ -441,7 +1204,8 @@ public abstract class AbstractCvs extends SCM implements ICvs {
      * @param envVars
      *            the environmental variables to expand any parameters from
      * @return the level of compression to use between 0 and 9 (inclusive), with
-     *         0 being no compression and 9 being maximum
+     *         0 being no compression and 9 being maximum. If automatic compression
+     *         has been selected then {@link CompressionAdvisor#DEFAULT_LEVEL} is returned
      */
     private int getCompressionLevel(final CvsRepository repository, final EnvVars envVars) {
         final String cvsroot = envVars.expand(repository.getCvsRoot());
@@ -460,7 +1224,24 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
         // For local access, compression is senseless (always return 0),
         // otherwise return the calculated value
-        return local ? 0 : compressionLevel;
+        if (local) {
+            return 0;
+        }
+        // checkouts and updates replace this with a level picked by the CompressionAdvisor
+        return compressionLevel == CompressionAdvisor.AUTOMATIC ? CompressionAdvisor.DEFAULT_LEVEL : compressionLevel;
+    }
+
+    /**
+     * Whether the compression level used for the given repository is picked by the {@link CompressionAdvisor}.
+     */
+    private boolean isAdaptiveCompression(final CvsRepository repository, final EnvVars envVars) {
+        final String cvsroot = envVars.expand(repository.getCvsRoot());
+        if (cvsroot.startsWith("/") || cvsroot.startsWith(":local:") || cvsroot.startsWith(":fork:")) {
+            return false;
+        }
+        final int compressionLevel = repository.getCompressionLevel() == -1 ? getDescriptor().getCompressionLevel()
+                : repository.getCompressionLevel();
+        return compressionLevel == CompressionAdvisor.AUTOMATIC;
     }
 
     public boolean isDisableCvsQuiet() {
@@ -510,6 +1291,10 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
         final Date currentPollDate = Calendar.getInstance().getTime();
 
+        // changes are looked for from the time the last build checked out at, which is how builds compare against
+        // a quiet poll
+        final Date pollStart = getCheckoutDate(build);
+
         /*
          * this flag will be used to check whether a build is needed (assuming
          * the local and remote states are comparable and no configuration has
@@ -517,6 +1302,13 @@ public abstract class AbstractCvs extends SCM implements ICvs {
          */
         boolean changesPresent = false;
 
+        // whether anything at all has been committed, including in excluded regions
+        boolean commitsPresent = false;
+
+        // how far this poll can vouch for nothing having been committed, if it finds nothing. Shared rlog output can
+        // stop short of the poll by up to its time to live
+        Date quietPollEnd = new Date(currentPollDate.getTime() - RlogCache.TTL * 1000L);
+
         // Schedule a new build if the baseline isn't valid
         if ((baseline == null || !(baseline instanceof CvsRevisionState))) {
             listener.getLogger().println("Invalid baseline detected, scheduling build");
@@ -528,8 +1320,15 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         final Map<CvsRepository, List<CvsFile>> remoteState = new HashMap<CvsRepository, List<CvsFile>>(
                 ((CvsRevisionState) baseline).getModuleFiles());
 
+        // whether modules were left unchecked as a change needing a build had already been found
+        boolean partial = false;
+
         // Loops through every module and check if it has changed
         for (CvsRepository repository : repositories) {
+            if (EarlyExitPolling.ENABLED && changesPresent) {
+                partial = true;
+                break;
+            }
 
             /*
              * this repository setting either didn't exist or has changed since
@@ -541,74 +1340,99 @@ public abstract class AbstractCvs extends SCM implements ICvs {
                         PollingResult.Change.INCOMPARABLE);
             }
 
-            // get the list of current changed files in this repository
-            final List<CvsFile> changes = calculateRepositoryState(build.getTime(),
-                    currentPollDate, repository, listener, envVars, workspace);
-
-            final List<CvsFile> remoteFiles = remoteState.get(repository);
-
-            // update the remote state with the changes we've just retrieved
-            for (CvsFile changedFile : changes) {
-                boolean changed = false;
-                for (ListIterator<CvsFile> itr = remoteFiles.listIterator(); itr.hasNext();) {
-                    CvsFile existingFile = itr.next();
-                    if (!changedFile.getName().equals(existingFile.getName())) {
-                        continue;
-                    }
+            // get the excluded regions, compiled when they were first used
+            final ExcludedRegionMatcher excludedRegions;
+            try {
+                excludedRegions = repository.getExcludedRegionMatcher();
+            } catch (PatternSyntaxException ex) {
+                listener.getLogger().println("Pattern could not be compiled: " + ex.getPattern());
+                throw new RuntimeException("Polling could not completed since pattern could not be compiled", ex);
+            }
 
-                    itr.remove();
-                    if (!changedFile.isDead()) {
-                        itr.add(changedFile);
-                    }
-                    changed = true;
+            // get the list of current changed files in this repository, unless the watcher has seen there aren't any
+            final Date quietUntil = CvsRootWatcher.getQuietUntil(repository, pollStart);
+            final List<CvsFile> changes;
+            if (quietUntil != null) {
+                listener.getLogger().println("No commits seen by the CVSROOT watcher since the last build");
+                changes = new ArrayList<CvsFile>();
+                if (quietUntil.before(quietPollEnd)) {
+                    quietPollEnd = quietUntil;
                 }
-                if (!changed) {
-                    // file was not in old remote state, add it in
-                    remoteFiles.add(changedFile);
+            } else if (EarlyExitPolling.ENABLED) {
+                // only fetch as many modules as it takes to find a change that needs a build
+                changes = new ArrayList<CvsFile>();
+                for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                    for (CvsModule module : item.getModules()) {
+                        if (partial || EarlyExitPolling.containsIncludedChange(changes, excludedRegions)) {
+                            partial = true;
+                            continue;
+                        }
+                        changes.addAll(calculateModuleState(pollStart, currentPollDate, repository, item, module,
+                                listener, envVars, workspace));
+                    }
                 }
+            } else {
+                changes = calculateRepositoryState(pollStart, currentPollDate, repository, listener, envVars,
+                        workspace);
             }
-
-            // set the updated files list back into the remote state
-            remoteState.put(repository, remoteFiles);
-
-            // convert the excluded regions into patterns so we can use them as
-            // regular expressions
-            final List<Pattern> excludePatterns = new ArrayList<Pattern>();
-
-            for (ExcludedRegion pattern : repository.getExcludedRegions()) {
-                try {
-                    excludePatterns.add(Pattern.compile(pattern.getPattern()));
-                } catch (PatternSyntaxException ex) {
-                    listener.getLogger().println("Pattern could not be compiled: " + pattern);
-                    throw new RuntimeException("Polling could not completed since pattern could not be compiled", ex);
+            commitsPresent = commitsPresent || !changes.isEmpty();
+
+            // update the remote state with the changes we've just retrieved, indexing it by file name so each
+            // change is a single lookup. The baseline's own list is left untouched as it's still held by the last build
+            if (!changes.isEmpty()) {
+                final Map<String, CvsFile> remoteFiles = new LinkedHashMap<String, CvsFile>();
+                for (CvsFile existingFile : remoteState.get(repository)) {
+                    remoteFiles.put(existingFile.getName(), existingFile);
                 }
-            }
-
-            // create a list of changes we can use to filter out excluded
-            // regions
-            final List<CvsFile> filteredChanges = new ArrayList<CvsFile>(changes);
-
-            // filter out all changes in the exclude regions
-            for (final Pattern excludePattern : excludePatterns) {
-                for (Iterator<CvsFile> itr = filteredChanges.iterator(); itr.hasNext(); ) {
-                    CvsFile change = itr.next();
-                    if (excludePattern.matcher(change.getName()).matches()) {
-                        listener.getLogger().println("Skipping file '" + change.getName() + "' since it matches exclude pattern " + excludePattern.pattern());
-                        itr.remove();
+                for (CvsFile changedFile : changes) {
+                    if (!remoteFiles.containsKey(changedFile.getName())) {
+                        // file was not in old remote state, add it in
+                        remoteFiles.put(changedFile.getName(), changedFile);
+                    } else if (changedFile.isDead()) {
+                        remoteFiles.remove(changedFile.getName());
+                    } else {
+                        remoteFiles.put(changedFile.getName(), changedFile);
                     }
                 }
+
+                // set the updated files list back into the remote state
+                remoteState.put(repository, new ArrayList<CvsFile>(remoteFiles.values()));
             }
 
+            // filter out all changes in the exclude regions
+            final List<CvsFile> filteredChanges = excludedRegions.filter(changes, listener.getLogger());
+
             // if our list of changes isn't empty then we want to note this as
             // we need a build
             changesPresent = changesPresent || !filteredChanges.isEmpty();
         }
 
+        CurrentWorkspace.recordPoll(project.getFullName(), build.getNumber(), pollStart, quietPollEnd, !commitsPresent);
+
+        if (partial) {
+            listener.getLogger().println("Found a change that needs a build, remaining modules were not checked");
+        }
+
         // Return the new repository state and whether we require a new build
         return new PollingResult(baseline, new CvsRevisionState(remoteState),
                 changesPresent ? PollingResult.Change.SIGNIFICANT : PollingResult.Change.NONE);
     }
 
+    /**
+     * Gets the files that have changed in a single module between two dates, leaving out any outside the module's
+     * included paths or matching its excluded paths. Used when polling stops as soon as it finds a change needing a
+     * build, see {@link EarlyExitPolling}.
+     */
+    protected List<CvsFile> calculateModuleState(final Date startTime, final Date endTime,
+                                                 final CvsRepository repository, final CvsRepositoryItem item,
+                                                 final CvsModule module, final TaskListener listener,
+                                                 final EnvVars envVars, final FilePath workspace)
+            throws IOException, InterruptedException {
+        return filterFiles(getSharedRemoteLogForModule(repository, item, module, startTime, endTime, envVars,
+                listener, workspace).getFiles(), module, getRepositoryPath(repository, envVars),
+                envVars.expand(module.getRemoteName()));
+    }
+
     /**
      * Builds a list of files that have changed in the given repository between
      * any 2 time-stamps. This does not require the workspace to be checked out
@@ -635,15 +1459,72 @@ public abstract class AbstractCvs extends SCM implements ICvs {
                                                      final CvsRepository repository, final TaskListener listener,
                                                      final EnvVars envVars, final FilePath workspace) throws IOException, InterruptedException {
         final List<CvsFile> files = new ArrayList<CvsFile>();
+        final Iterator<CvsChangeSet> logs = getRemoteLogsForRepository(repository, startTime, endTime, envVars,
+                listener, workspace, true).iterator();
 
         for (final CvsRepositoryItem item : repository.getRepositoryItems()) {
             for (final CvsModule module : item.getModules()) {
-                files.addAll(getRemoteLogForModule(repository, item, module, startTime, endTime, envVars, listener, workspace).getFiles());
+                files.addAll(filterFiles(logs.next().getFiles(), module, getRepositoryPath(repository, envVars),
+                        envVars.expand(module.getRemoteName())));
             }
         }
         return files;
     }
 
+    /**
+     * Gets the output of <tt>rlog</tt> for every module in a repository, in parallel if {@link ConcurrentRlog} is
+     * enabled.
+     * @param shared whether the output can be shared with other polls, which is only the case if it won't be
+     *               modified afterwards
+     * @return the output for each module, in the order the modules are configured in
+     */
+    private List<CvsChangeSet> getRemoteLogsForRepository(final CvsRepository repository, final Date startTime,
+                                                          final Date endTime, final EnvVars envVars,
+                                                          final TaskListener listener, final FilePath workspace,
+                                                          final boolean shared)
+            throws IOException, InterruptedException {
+        final List<ConcurrentRlog.ModuleLog> modules = new ArrayList<ConcurrentRlog.ModuleLog>();
+        for (final CvsRepositoryItem item : repository.getRepositoryItems()) {
+            for (final CvsModule module : item.getModules()) {
+                modules.add(new ConcurrentRlog.ModuleLog() {
+                    @Override
+                    public CvsChangeSet fetch(final TaskListener moduleListener)
+                            throws IOException, InterruptedException {
+                        return shared ? getSharedRemoteLogForModule(repository, item, module, startTime, endTime,
+                                envVars, moduleListener, workspace) : getRemoteLogForModule(repository, item, module,
+                                startTime, endTime, envVars, moduleListener, workspace);
+                    }
+                });
+            }
+        }
+        return ConcurrentRlog.fetch(envVars.expand(repository.getCvsRoot()),
+                getDescriptor().getMaxConcurrentConnections(), modules, listener);
+    }
+
+    /**
+     * Gets the output for the CVS <tt>rlog</tt> command for the given module between the specified dates, sharing
+     * it with any other poll of the same module and branch or tag.
+     * @see RlogCache
+     */
+    private CvsChangeSet getSharedRemoteLogForModule(final CvsRepository repository, final CvsRepositoryItem item,
+                                                     final CvsModule module, final Date startTime, final Date endTime,
+                                                     final EnvVars envVars, final TaskListener listener,
+                                                     final FilePath workspace) throws IOException, InterruptedException {
+        final CvsRepositoryLocation location = item.getLocation();
+        final String key = envVars.expand(repository.getCvsRoot()) + '\n' + getConnectionKey(repository, envVars)
+                + '\n' + envVars.expand(module.getRemoteName()) + '\n' + module.getIncludedPathList() + '\n'
+                + location.getLocationType() + ':' + envVars.expand(Util.fixNull(location.getLocationName())) + ':'
+                + location.isUseHeadIfNotFound();
+        return RlogCache.getInstance().get(key, startTime, endTime, RlogCache.TTL * 1000L, new RlogCache.Fetcher() {
+            @Override
+            public CvsChangeSet fetch(final Date fetchStart, final Date fetchEnd)
+                    throws IOException, InterruptedException {
+                return getRemoteLogForModule(repository, item, module, fetchStart, fetchEnd, envVars, listener,
+                        workspace);
+            }
+        }, listener);
+    }
+
     /**
      * Gets the output for the CVS <tt>rlog</tt> command for the given module
      * between the specified dates.
@@ -662,11 +1543,35 @@ public abstract class AbstractCvs extends SCM implements ICvs {
      * @throws IOException
      *             on underlying communication failure
      */
-    private CvsChangeSet getRemoteLogForModule(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module,
+    CvsChangeSet getRemoteLogForModule(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module,
                                          final Date startTime, final Date endTime,
                                          final EnvVars envVars, final TaskListener listener, FilePath workspace) throws IOException, InterruptedException {
-        final Client cvsClient = getCvsClient(repository, envVars, listener);
+        final String remoteName = envVars.expand(module.getRemoteName());
+        final RlogCommand rlogCommand = createRlogCommand(startTime, endTime);
+
+        // tell CVS which module we're logging, or which parts of it for a sparse module
+        if (!module.isSparse()) {
+            rlogCommand.setModule(remoteName);
+            return runRlog(rlogCommand, repository, item, envVars, listener, workspace);
+        }
+
+        for (String path : module.getIncludedPathList()) {
+            rlogCommand.setModule(remoteName + "/" + path);
+        }
+        final CvsChangeSet includedLog = runRlog(rlogCommand, repository, item, envVars, listener, workspace);
+
+        // the files directly within the root and each parent of the included paths are checked out too
+        final RlogCommand parentCommand = createRlogCommand(startTime, endTime);
+        parentCommand.setRecursive(false);
+        for (String parent : module.getIncludedParentList()) {
+            parentCommand.setModule(parent.length() == 0 ? remoteName : remoteName + "/" + parent);
+        }
+        final CvsChangeSet parentLog = runRlog(parentCommand, repository, item, envVars, listener, workspace);
+
+        return mergeParentLog(includedLog, parentLog, module, getRepositoryPath(repository, envVars), remoteName);
+    }
 
+    private static RlogCommand createRlogCommand(final Date startTime, final Date endTime) {
         final RlogCommand rlogCommand = new RlogCommand();
 
         // we have to synchronize since we're dealing with DateFormat.format()
@@ -677,23 +1582,28 @@ public abstract class AbstractCvs extends SCM implements ICvs {
             rlogCommand.setDateFilter(lastBuildDate + "<" + endDate);
         }
 
-        // tell CVS which module we're logging
-        rlogCommand.setModule(envVars.expand(module.getRemoteName()));
-
         // ignore headers for files that aren't in the current change-set
         rlogCommand.setSuppressHeader(true);
+        return rlogCommand;
+    }
 
+    private CvsChangeSet runRlog(final RlogCommand rlogCommand, final CvsRepository repository,
+                                 final CvsRepositoryItem item, final EnvVars envVars, final TaskListener listener,
+                                 final FilePath workspace) throws IOException, InterruptedException {
+        final Client cvsClient = getCvsClient(repository, envVars, listener);
+        final String connectionKey = getConnectionKey(repository, envVars);
         final String encoding = getDescriptor().getChangelogEncoding();
         final GlobalOptions globalOptions = getGlobalOptions(repository, envVars);
+        final long idleTimeout = CommandWatchdog.IDLE_TIMEOUT * 1000L;
 
         if (workspace == null) {
-            return executeRlog(cvsClient, rlogCommand, listener, encoding, globalOptions, repository, envVars, item.getLocation());
+            return executeRlog(cvsClient, connectionKey, rlogCommand, listener, encoding, globalOptions, repository, envVars, item.getLocation(), idleTimeout);
         }
         else {
             return workspace.act(new FilePath.FileCallable<CvsChangeSet>() {
                 @Override
                 public CvsChangeSet invoke(File file, VirtualChannel virtualChannel) throws IOException, InterruptedException {
-                    return executeRlog(cvsClient, rlogCommand, listener, encoding, globalOptions, repository, envVars, item.getLocation());
+                    return executeRlog(cvsClient, connectionKey, rlogCommand, listener, encoding, globalOptions, repository, envVars, item.getLocation(), idleTimeout);
                 }
 
     			@Override
@@ -707,9 +1617,82 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
     }
 
-    private CvsChangeSet executeRlog(Client cvsClient, RlogCommand rlogCommand,
+    /**
+     * Adds the files in the parents of a sparse module's included paths to the log of the included paths. Only the
+     * files directly within each parent are kept, since subdirectories of a parent that aren't included are never
+     * checked out. A commit touching both is merged back into a single change.
+     * @param includedLog the log of the included paths
+     * @param parentLog the log of the module's root and the parents of its included paths, which is modified
+     * @param module the sparse module both logs are for
+     * @param repositoryPath the repository's directory on the server
+     * @param remoteName the expanded remote name of the module
+     * @return the combined log
+     */
+    static CvsChangeSet mergeParentLog(final CvsChangeSet includedLog, final CvsChangeSet parentLog,
+                                       final CvsModule module, final String repositoryPath, final String remoteName) {
+        final List<CvsFile> files = new ArrayList<CvsFile>(includedLog.getFiles());
+        for (CvsFile file : parentLog.getFiles()) {
+            if (isInIncludedParent(module, getPathInModule(file.getName(), repositoryPath, remoteName))) {
+                files.add(file);
+            }
+        }
+
+        final List<CVSChangeLogSet.CVSChangeLog> changes =
+                new ArrayList<CVSChangeLogSet.CVSChangeLog>(includedLog.getChanges());
+        for (CVSChangeLogSet.CVSChangeLog change : parentLog.getChanges()) {
+            final List<CVSChangeLogSet.File> changedFiles = new ArrayList<CVSChangeLogSet.File>();
+            for (CVSChangeLogSet.File file : change.getFiles()) {
+                if (isInIncludedParent(module, getPathInModule(file.getName(), null, remoteName))) {
+                    changedFiles.add(file);
+                }
+            }
+            if (changedFiles.isEmpty()) {
+                continue;
+            }
+
+            CVSChangeLogSet.CVSChangeLog target = null;
+            for (CVSChangeLogSet.CVSChangeLog existing : changes) {
+                if (change.canBeMergedWith(existing)) {
+                    target = existing;
+                    break;
+                }
+            }
+            if (target == null) {
+                change.getFiles().retainAll(changedFiles);
+                changes.add(change);
+            } else {
+                for (CVSChangeLogSet.File file : changedFiles) {
+                    target.addFile(file);
+                }
+            }
+        }
+
+        final Set<String> branchNames = new HashSet<String>(includedLog.getBranchNames());
+        branchNames.addAll(parentLog.getBranchNames());
+        final Set<String> tagNames = new HashSet<String>(includedLog.getTagNames());
+        tagNames.addAll(parentLog.getTagNames());
+        return new CvsChangeSet(files, changes, branchNames, tagNames);
+    }
+
+    /**
+     * @return true if the given path lies directly within the root of a sparse module or a parent of one of its
+     *         included paths
+     */
+    private static boolean isInIncludedParent(final CvsModule module, final String path) {
+        if (path == null) {
+            return false;
+        }
+        final int slash = path.lastIndexOf('/');
+        return module.getIncludedParentList().contains(slash == -1 ? "" : path.substring(0, slash));
+    }
+
+    private CvsChangeSet executeRlog(Client newClient, String connectionKey, RlogCommand rlogCommand,
                              TaskListener listener, final String encoding, GlobalOptions globalOptions,
-                             CvsRepository repository, EnvVars envVars, CvsRepositoryLocation location) throws IOException {
+                             CvsRepository repository, EnvVars envVars, CvsRepositoryLocation location,
+                             long idleTimeout) throws IOException {
+        final Client cvsClient = CvsConnectionPool.getInstance().borrow(connectionKey,
+                globalOptions.getCompressionLevel(), newClient);
+
         // create an output stream to send the output from CVS command to - we
         // can then parse it from here
         final File tmpRlogSpill = File.createTempFile("cvs","rlog");
@@ -723,24 +1706,40 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         // log the command to the current run/polling log
         listener.getLogger().println("cvs " + rlogCommand.getCVSCommand());
 
+        final CommandWatchdog watchdog = idleTimeout > 0 ? new CommandWatchdog(cvsClient, idleTimeout) : null;
+        if (watchdog != null) {
+            cvsClient.getEventManager().addCVSListener(watchdog);
+            watchdog.start();
+        }
 
+        boolean reusable = false;
         try {
             if (!cvsClient.executeCommand(rlogCommand, globalOptions)) {
                 cleanupLog(logStream, tmpRlogSpill);
+                reportStall(watchdog, listener);
                 throw new RuntimeException("Error while trying to run CVS rlog");
             }
+            reusable = true;
         } catch (CommandAbortedException e) {
             cleanupLog(logStream, tmpRlogSpill);
+            reportStall(watchdog, listener);
             throw new RuntimeException("CVS rlog command aborted", e);
         } catch (CommandException e) {
             cleanupLog(logStream, tmpRlogSpill);
+            reportStall(watchdog, listener);
             throw new RuntimeException("CVS rlog command failed", e);
         } catch (AuthenticationException e) {
             cleanupLog(logStream, tmpRlogSpill);
             throw new RuntimeException("CVS authentication failure while running rlog command", e);
         } finally {
+            if (watchdog != null) {
+                watchdog.stop();
+                cvsClient.getEventManager().removeCVSListener(watchdog);
+            }
+            cvsClient.getEventManager().removeCVSListener(basicListener);
             try {
-                cvsClient.getConnection().close();
+                CvsConnectionPool.getInstance().release(connectionKey, globalOptions.getCompressionLevel(), cvsClient,
+                        reusable);
             } catch (IOException ex) {
                 listener.error("Could not close CVS connection");
                 ex.printStackTrace(listener.getLogger());
@@ -813,10 +1812,9 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
         final List<CVSChangeLogSet.CVSChangeLog> changes = new ArrayList<CVSChangeLogSet.CVSChangeLog>();
 
-        for (final CvsRepositoryItem item : repository.getRepositoryItems()) {
-            for (final CvsModule module : item.getModules()) {
-                changes.addAll(getRemoteLogForModule(repository, item, module, startTime, endTime, envVars, listener, workspace).getChanges());
-            }
+        for (CvsChangeSet log : getRemoteLogsForRepository(repository, startTime, endTime, envVars, listener,
+                workspace, false)) {
+            changes.addAll(log.getChanges());
         }
         return changes;
     }
@@ -824,6 +1822,21 @@ public abstract class AbstractCvs extends SCM implements ICvs {
     protected void postCheckout(Run<?, ?> build, File changelogFile, CvsRepository[] repositories,
                                 FilePath workspace, final TaskListener listener, boolean flatten, EnvVars envVars)
             throws IOException, InterruptedException {
+        // pick up anything that was done whilst the checkout was running
+        final PostCheckoutPipeline pipeline = PostCheckoutPipeline.remove(build);
+        try {
+            recordCheckout(build, changelogFile, repositories, workspace, listener, flatten, envVars, pipeline);
+        } finally {
+            if (pipeline != null) {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    private void recordCheckout(Run<?, ?> build, File changelogFile, CvsRepository[] repositories,
+                                FilePath workspace, final TaskListener listener, boolean flatten, EnvVars envVars,
+                                PostCheckoutPipeline pipeline)
+            throws IOException, InterruptedException {
         // build change log
         final Run<?, ?> lastCompleteBuild = build.getPreviousBuiltBuild();
 
@@ -833,8 +1846,9 @@ public abstract class AbstractCvs extends SCM implements ICvs {
 
             final List<CVSChangeLogSet.CVSChangeLog> changes = new ArrayList<CVSChangeLogSet.CVSChangeLog>();
             for (CvsRepository location : repositories) {
-                changes.addAll(calculateChangeLog(lastCompleteTimestamp, checkoutDate, location,
-                        listener, build.getEnvironment(listener), workspace));
+                final List<CVSChangeLogSet.CVSChangeLog> changeLog = pipeline == null ? null : pipeline.getChangeLog(location);
+                changes.addAll(changeLog != null ? changeLog : calculateChangeLog(lastCompleteTimestamp, checkoutDate,
+                        location, listener, build.getEnvironment(listener), workspace));
             }
             new CVSChangeLogSet(build, getBrowser(), changes).toFile(changelogFile);
         } else {
@@ -842,7 +1856,25 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         }
 
         // add the current workspace state as an action
-        build.getActions().add(new CvsRevisionState(calculateWorkspaceState(workspace, repositories, flatten, envVars, listener)));
+        final Map<CvsRepository, List<CvsFile>> workspaceState;
+        if (pipeline == null) {
+            workspaceState = calculateWorkspaceState(workspace, repositories, flatten, envVars, listener);
+        } else {
+            workspaceState = new HashMap<CvsRepository, List<CvsFile>>();
+            for (CvsRepository repository : repositories) {
+                final List<CvsFile> cvsFiles = new ArrayList<CvsFile>();
+                for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                    for (CvsModule module : item.getModules()) {
+                        final List<CvsFile> moduleFiles = pipeline.getModuleState(repository, item, module);
+                        cvsFiles.addAll(moduleFiles != null ? moduleFiles
+                                : getCvsFiles(workspace, module, flatten, envVars, listener));
+                    }
+                }
+                workspaceState.put(repository, cvsFiles);
+            }
+        }
+        build.getActions().add(new CvsRevisionState(workspaceState));
+        WorkspaceAffinity.record(build, repositories, getCheckoutDate(build));
 
         // add the tag action to the build
         build.getActions().add(new CvsTagAction(build, this));
@@ -851,59 +1883,157 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         for (final CvsRepository repository : getRepositories()) {
             for (final CvsRepositoryItem repositoryItem : repository.getRepositoryItems()) {
                 for (final CvsModule module : repositoryItem.getModules()) {
-                    FilePath target = (flatten ? workspace : workspace.child(module.getCheckoutName()));
-                    target.act(new FilePath.FileCallable<Void>() {
-                        @Override
-                        public Void invoke(File module, VirtualChannel virtualChannel) throws IOException, InterruptedException {
-                            final AdminHandler adminHandler = new StandardAdminHandler();
+                    if (pipeline != null && pipeline.getModuleState(repository, repositoryItem, module) != null) {
+                        // already done as soon as the module was checked out
+                        continue;
+                    }
+                    removeStickyDates(flatten ? workspace : workspace.child(module.getCheckoutName()), repositoryItem,
+                            listener);
+                }
+            }
+        }
+    }
 
-                            cleanup(module, adminHandler);
+    /**
+     * Removes the sticky dates left on every file in a module by checking out or updating to a date, and the
+     * sticky tag file that does the same for the module's directories if the module is on HEAD.
+     */
+    private void removeStickyDates(final FilePath target, final CvsRepositoryItem repositoryItem,
+                                   final TaskListener listener) throws IOException, InterruptedException {
+        target.act(new FilePath.FileCallable<Void>() {
+            @Override
+            public Void invoke(File module, VirtualChannel virtualChannel) throws IOException, InterruptedException {
+                final AdminHandler adminHandler = new StandardAdminHandler();
 
-                            return null;
-                        }
+                cleanup(module, adminHandler);
 
-            			@Override
-            			public void checkRoles(RoleChecker checker)
-            					throws SecurityException {
-            				// Do nothing
-            			}
-
-                        private void cleanup(File directory, AdminHandler adminHandler) throws IOException {
-                            for (File file : adminHandler.getAllFiles(directory)) {
-                                Entry entry = adminHandler.getEntry(file);
-                                entry.setTag(entry.getTag()); // re-setting the tag removes the date without altering tag info
-                                adminHandler.setEntry(file, entry);
-                            }
+                return null;
+            }
 
-                            // we need to remove CVS/Tag as it contains a sticky reference for HEAD modules
-                            if (repositoryItem.getLocation().getLocationType() == CvsRepositoryLocationType.HEAD) {
-                                final File tagFile = new File(directory, "CVS/Tag");
+            @Override
+            public void checkRoles(RoleChecker checker)
+                    throws SecurityException {
+                // Do nothing
+            }
 
-                                if (tagFile.exists()) {
-                                    if (!tagFile.delete()) {
-                                        listener.getLogger().println("Could not delete the sticky tag file, workspace may be in an inconsistent state");
-                                    }
-                                }
-                            }
+            private void cleanup(File directory, AdminHandler adminHandler) throws IOException {
+                for (File file : adminHandler.getAllFiles(directory)) {
+                    Entry entry = adminHandler.getEntry(file);
+                    entry.setTag(entry.getTag()); // re-setting the tag removes the date without altering tag info
+                    adminHandler.setEntry(file, entry);
+                }
 
-                            File[] innerFiles = directory.listFiles();
-                            if (null != innerFiles) {
-
-                                for (File innerFile : innerFiles) {
-                                    if (isSymLink(innerFile,listener)) {
-                                        listener.getLogger().println("cleanup. prevent potential infinate loop, ignoring symlink:" + innerFile);
-                                        continue;
-                                    }
-                                    if (innerFile.isDirectory() && !innerFile.getName().equals("CVS")) {
-                                        cleanup(innerFile, adminHandler);
-                                    }
-                                }
-                            }
+                // we need to remove CVS/Tag as it contains a sticky reference for HEAD modules
+                if (repositoryItem.getLocation().getLocationType() == CvsRepositoryLocationType.HEAD) {
+                    final File tagFile = new File(directory, "CVS/Tag");
+
+                    if (tagFile.exists()) {
+                        if (!tagFile.delete()) {
+                            listener.getLogger().println("Could not delete the sticky tag file, workspace may be in an inconsistent state");
                         }
-                    });
+                    }
+                }
+
+                File[] innerFiles = directory.listFiles();
+                if (null != innerFiles) {
+
+                    for (File innerFile : innerFiles) {
+                        if (isSymLink(innerFile,listener)) {
+                            listener.getLogger().println("cleanup. prevent potential infinate loop, ignoring symlink:" + innerFile);
+                            continue;
+                        }
+                        if (innerFile.isDirectory() && !innerFile.getName().equals("CVS")) {
+                            cleanup(innerFile, adminHandler);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Empties the workspace ahead of a checkout that can't update the existing files. If workspace snapshots are
+     * enabled and a snapshot of the job's last clean checkout exists, the snapshot is copied into the workspace so
+     * the checkout only has to update it.
+     * @return true if the workspace was restored from a snapshot and should be updated, false if it's empty and
+     *          needs a full checkout
+     */
+    protected boolean prepareCleanWorkspace(final Run<?, ?> build, final FilePath workspace,
+                                            final CvsRepository[] repositories, final boolean flatten,
+                                            final TaskListener listener) throws IOException, InterruptedException {
+        if (!WorkspaceSnapshot.ENABLED) {
+            WorkspaceTrash.deleteContents(workspace);
+            return false;
+        }
+
+        final WorkspaceSnapshot snapshot = WorkspaceSnapshot.forBuild(build, workspace,
+                getSnapshotConfiguration(repositories, flatten, build.getEnvironment(listener)));
+        if (snapshot.restore(workspace)) {
+            listener.getLogger().println("Restored workspace from snapshot of last clean checkout");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a snapshot restored by {@link #prepareCleanWorkspace} holds the same modules as a clean checkout
+     * would, for callers that only know what gets checked out once part of the checkout has been done.
+     * @param repositories the repositories the snapshot was restored for
+     * @param checkedOut every repository the checkout covers
+     */
+    protected boolean isSnapshotCurrent(final Run<?, ?> build, final FilePath workspace,
+                                        final CvsRepository[] repositories, final CvsRepository[] checkedOut,
+                                        final boolean flatten, final TaskListener listener)
+            throws IOException, InterruptedException {
+        final EnvVars envVars = build.getEnvironment(listener);
+        return WorkspaceSnapshot.forBuild(build, workspace, getSnapshotConfiguration(repositories, flatten, envVars))
+                .hasContents(getSnapshotConfiguration(checkedOut, flatten, envVars));
+    }
+
+    /**
+     * Snapshots a workspace that's just been checked out clean so it can be used to seed the next clean checkout.
+     * @param repositories the repositories the snapshot will be restored for
+     * @param checkedOut every repository the checkout covered
+     */
+    protected void storeCleanWorkspace(final Run<?, ?> build, final FilePath workspace,
+                                       final CvsRepository[] repositories, final CvsRepository[] checkedOut,
+                                       final boolean flatten, final TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!WorkspaceSnapshot.ENABLED) {
+            return;
+        }
+
+        final EnvVars envVars = build.getEnvironment(listener);
+        try {
+            if (WorkspaceSnapshot.forBuild(build, workspace, getSnapshotConfiguration(repositories, flatten, envVars))
+                    .store(workspace, getSnapshotConfiguration(checkedOut, flatten, envVars))) {
+                listener.getLogger().println("Stored snapshot of clean workspace");
+            }
+        } catch (IOException ex) {
+            // the checkout itself worked so the build can carry on without the snapshot
+            listener.getLogger().println("Could not snapshot workspace: " + ex.getMessage());
+        }
+    }
+
+    private String getSnapshotConfiguration(final CvsRepository[] repositories, final boolean flatten,
+                                            final EnvVars envVars) {
+        final StringBuilder configuration = new StringBuilder();
+        configuration.append(flatten).append('\n').append(isPruneEmptyDirectories()).append('\n');
+        for (CvsRepository repository : repositories) {
+            configuration.append(envVars.expand(repository.getCvsRoot())).append('\n');
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                final CvsRepositoryLocation location = item.getLocation();
+                configuration.append(location.getLocationType()).append(' ')
+                        .append(envVars.expand(location.getLocationName())).append(' ')
+                        .append(location.isUseHeadIfNotFound()).append('\n');
+                for (CvsModule module : item.getModules()) {
+                    configuration.append(envVars.expand(module.getRemoteName())).append(' ')
+                            .append(envVars.expand(module.getCheckoutName())).append(' ')
+                            .append(module.getIncludedPathList()).append('\n');
                 }
             }
         }
+        return configuration.toString();
     }
 
     protected Date getCheckoutDate(Run<?, ?> build) {
@@ -964,8 +2094,8 @@ public abstract class AbstractCvs extends SCM implements ICvs {
     }
 
 
-    private List<CvsFile> getCvsFiles(final FilePath workspace, final CvsModule module, final boolean flatten,
-                                      final EnvVars envVars, final TaskListener listener)
+    List<CvsFile> getCvsFiles(final FilePath workspace, final CvsModule module, final boolean flatten,
+                              final EnvVars envVars, final TaskListener listener)
             throws IOException, InterruptedException {
         FilePath targetWorkspace;
         if (flatten) {
@@ -987,7 +2117,8 @@ public abstract class AbstractCvs extends SCM implements ICvs {
                  * rlog command (which wouldn't be possible if we use the local
                  * module name on a module that had been checked out as an alias
                  */
-                return buildFileList(moduleLocation, envVars.expand(module.getRemoteName()));
+                final String remoteName = envVars.expand(module.getRemoteName());
+                return filterFiles(buildFileList(moduleLocation, remoteName), module, null, remoteName);
             }
 
 			@Override
@@ -1039,6 +2170,64 @@ public abstract class AbstractCvs extends SCM implements ICvs {
         });
     }
 
+    /**
+     * Removes the files that are outside a module's included paths or match one of its excluded paths.
+     * @param files files named by their path in the repository, as rlog names them, or by the module's remote name
+     *              followed by their path within the module, as the workspace state names them
+     * @param module the module the files belong to
+     * @param repositoryPath the repository's directory on the server, or null if the files come from the workspace
+     * @param remoteName the expanded remote name of the module
+     * @return the files that are part of the module's checkout
+     */
+    static List<CvsFile> filterFiles(final List<CvsFile> files, final CvsModule module, final String repositoryPath,
+                                     final String remoteName) {
+        if (module.getIncludedPaths() == null && module.getExcludedPaths() == null) {
+            return files;
+        }
+        final List<CvsFile> filteredFiles = new ArrayList<CvsFile>();
+        for (CvsFile file : files) {
+            final String path = getPathInModule(file.getName(), repositoryPath, remoteName);
+            // files we can't place in the module (e.g. from alias modules) are kept so changes to them aren't missed
+            if (path == null || module.isIncluded(path)) {
+                filteredFiles.add(file);
+            }
+        }
+        return filteredFiles;
+    }
+
+    /**
+     * Works out where a file lies within a module. rlog names files by their full path on the server, which starts
+     * with the repository's own directory and puts removed files in an <tt>Attic</tt> directory, whereas the
+     * workspace state starts each name with the module's remote name.
+     * @param name the name of the file
+     * @param repositoryPath the repository's directory on the server, or null if the name doesn't include it
+     * @param remoteName the expanded remote name of the module
+     * @return the path of the file relative to the root of the module, or null if it isn't within the module
+     */
+    static String getPathInModule(final String name, final String repositoryPath, final String remoteName) {
+        String path = name;
+        if (repositoryPath != null) {
+            final String repositoryPrefix = repositoryPath.endsWith("/") ? repositoryPath : repositoryPath + "/";
+            if (path.startsWith(repositoryPrefix)) {
+                path = path.substring(repositoryPrefix.length());
+            }
+        }
+        if (!path.startsWith(remoteName + "/")) {
+            return null;
+        }
+        path = path.substring(remoteName.length() + 1);
+
+        final int slash = path.lastIndexOf('/');
+        if (path.startsWith("Attic/", slash - 5) && (slash == 5 || slash > 5 && path.charAt(slash - 6) == '/')) {
+            path = path.substring(0, slash - 5) + path.substring(slash + 1);
+        }
+        return path;
+    }
+
+    static String getRepositoryPath(final CvsRepository repository, final EnvVars envVars) {
+        return CVSRoot.parse(envVars.expand(repository.getCvsRoot())).getRepository();
+    }
+
     @Override
     public ChangeLogParser createChangeLogParser() {
         return new CVSChangeLogParser();
@@ -375,8 +375,9 @@ public class CVSSCM extends AbstractCvs implements Serializable {
     public void checkout(final @Nonnull Run<?,?> build, final @Nonnull Launcher launcher, final @Nonnull FilePath workspace,
     		             final @Nonnull TaskListener listener, final @CheckForNull File changelogFile,
     		             final @CheckForNull SCMRevisionState baseline) throws IOException, InterruptedException {
+        boolean restoredSnapshot = false;
         if (!canUseUpdate) {
-            workspace.deleteContents();
+            restoredSnapshot = prepareCleanWorkspace(build, workspace, repositories, flatten, listener);
         }
 
         final String dateStamp;
@@ -387,12 +388,17 @@ public class CVSSCM extends AbstractCvs implements Serializable {
             dateStamp = DATE_FORMATTER.format(checkoutDate);
         }
 
-        if (!checkout(repositories, flatten, workspace, canUseUpdate,
-                build, dateStamp, pruneEmptyDirectories, cleanOnFailedUpdate, listener)) {
+        // a snapshot that can't be updated is thrown away in favour of a clean checkout
+        if (!checkout(repositories, flatten, workspace, canUseUpdate || restoredSnapshot,
+                build, dateStamp, pruneEmptyDirectories, cleanOnFailedUpdate || restoredSnapshot, listener)) {
             throw new AbortException();
         }
 
         postCheckout(build, changelogFile, getRepositories(), workspace, listener, isFlatten(), build.getEnvironment(listener));
+
+        if (!canUseUpdate) {
+            storeCleanWorkspace(build, workspace, repositories, repositories, flatten, listener);
+        }
     }
 
 
@@ -434,6 +440,10 @@ public class CVSSCM extends AbstractCvs implements Serializable {
         private CvsAuthentication[] authTokens = new CvsAuthentication[]{};
         // we don't provide a way for users to edit this, other than by manually editing their XML config
         private String changelogEncoding = "UTF-8";
+        /**
+         * How many modules can be checked out from a single CVSROOT at once.
+         */
+        private int maxConcurrentConnections = 1;
         
         public DescriptorImpl() {
             super(CVSRepositoryBrowser.class);
@@ -493,6 +503,12 @@ public class CVSSCM extends AbstractCvs implements Serializable {
             return changelogEncoding;
         }
 
+        @Override
+        @Exported
+        public int getMaxConcurrentConnections() {
+            return Math.max(1, maxConcurrentConnections);
+        }
+
         @Override
         public void load() {
             super.load();
@@ -512,6 +528,12 @@ public class CVSSCM extends AbstractCvs implements Serializable {
                 this.compressionLevel = 0;
             }
 
+            try {
+                this.maxConcurrentConnections = Math.max(1, Integer.parseInt(fixEmptyAndTrim(o.optString("maxConcurrentConnections"))));
+            } catch (final NumberFormatException ex) {
+                this.maxConcurrentConnections = 1;
+            }
+
             final String knownHostsLocation = fixEmptyAndTrim(o.getString("knownHostsLocation"));
 
             if (knownHostsLocation == null) {
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import org.netbeans.lib.cvsclient.command.CommandAbortedException;
+import org.netbeans.lib.cvsclient.command.CommandException;
+
+import java.io.IOException;
+
+/**
+ * Retries a checkout or update command whose connection to the server failed part way through. Anything written
+ * before the failure is recorded in the CVS/Entries files, so the server only sends what's left when the same
+ * command is run again. Each retry waits twice as long as the one before it.
+ * <p>
+ * Only failures of the connection itself are retried. Authentication failures never are, since retrying a bad
+ * password can get the account locked out.
+ */
+class CommandRetry {
+
+    /**
+     * How many times a checkout or update command is retried if the connection to the server fails part way
+     * through.
+     */
+    public static int RETRIES = Integer.getInteger(CommandRetry.class.getName() + ".retries", 2);
+
+    /**
+     * How long to wait before the first retry of a failed command, in milliseconds. The wait doubles for each
+     * subsequent retry.
+     */
+    public static long DELAY = Long.getLong(CommandRetry.class.getName() + ".delay", 5000L);
+
+    private final int retries;
+    private final long delay;
+    private int attempts = 0;
+
+    CommandRetry(final int retries, final long delay) {
+        this.retries = retries;
+        this.delay = delay;
+    }
+
+    /**
+     * Creates the retries for a single command, using the limits that are currently configured.
+     */
+    static CommandRetry forCommand() {
+        return new CommandRetry(RETRIES, DELAY);
+    }
+
+    /**
+     * Waits before the command that just failed is run again, unless it can't or shouldn't be retried.
+     * @param retryable whether the command failed in a way that running it again could fix
+     * @param cvsRoot the CVSROOT the command was run against
+     * @param filesFetched how many files the command fetched before it failed
+     * @return true if the command should be run again, false if its failure is final
+     * @throws InterruptedException if the build is aborted whilst waiting
+     */
+    boolean retry(final boolean retryable, final String cvsRoot, final int filesFetched, final TaskListener listener)
+            throws InterruptedException {
+        if (!retryable || attempts >= retries) {
+            return false;
+        }
+        attempts++;
+        final long wait = delay << Math.min(attempts - 1, 10);
+        listener.getLogger().println("Connection to " + cvsRoot + " failed after " + filesFetched
+                + " files were fetched. Retrying remaining files in " + wait / 1000 + " seconds (retry "
+                + attempts + " of " + retries + ")");
+        sleep(wait);
+        return true;
+    }
+
+    void sleep(final long wait) throws InterruptedException {
+        Thread.sleep(wait);
+    }
+
+    /**
+     * Checks whether a command failed because the connection to the server failed, rather than because of
+     * something that will happen again if the command is retried (a missing module, the user aborting the
+     * command, etc.).
+     */
+    static boolean isConnectionFailure(final CommandException ex) {
+        if (ex instanceof CommandAbortedException) {
+            return false;
+        }
+        for (Throwable cause = getUnderlyingCause(ex); cause != null; cause = getUnderlyingCause(cause)) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable getUnderlyingCause(final Throwable throwable) {
+        // the CVS client's exceptions predate exception chaining so keep their causes elsewhere
+        if (throwable instanceof CommandException && ((CommandException) throwable).getUnderlyingException() != null) {
+            return ((CommandException) throwable).getUnderlyingException();
+        }
+        return throwable.getCause() == throwable ? null : throwable.getCause();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.netbeans.lib.cvsclient.Client;
+import org.netbeans.lib.cvsclient.event.CVSAdapter;
+import org.netbeans.lib.cvsclient.event.FileAddedEvent;
+import org.netbeans.lib.cvsclient.event.FileInfoEvent;
+import org.netbeans.lib.cvsclient.event.FileRemovedEvent;
+import org.netbeans.lib.cvsclient.event.FileUpdatedEvent;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.netbeans.lib.cvsclient.event.ModuleExpansionEvent;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closes the connection of a command that has stopped receiving anything from the server, which is what happens
+ * when a server or an SSH tunnel stops responding without closing the socket. Without this the command blocks on
+ * the socket indefinitely, tying up the executor running it. Closing the connection makes the command fail with
+ * an I/O error so it can be retried or recovered like any other dropped connection.
+ * <p>
+ * The CVS client doesn't expose the connection's input stream, so activity is judged by the events the client
+ * fires for each response it processes. A single very large file, or a server that takes a long time to work out
+ * what to send, can therefore look idle, and the timeout needs to allow for that.
+ */
+final class CommandWatchdog extends CVSAdapter {
+
+    /**
+     * How long, in seconds, a command can go without anything arriving from the server before its connection is
+     * closed so it can be retried, or 0 to wait indefinitely.
+     */
+    public static int IDLE_TIMEOUT = Integer.getInteger(CommandWatchdog.class.getName() + ".idleTimeout", 0);
+
+    private static final Logger LOGGER = Logger.getLogger(CommandWatchdog.class.getName());
+
+    // this lives in the JVM running the command, which for most checkouts is an agent
+    private static ScheduledExecutorService timer;
+
+    private final Client client;
+    private final long idleTimeout;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean stalled = false;
+    private ScheduledFuture<?> check;
+
+    /**
+     * @param client the client running the command
+     * @param idleTimeout how long the command can go without a response from the server, in milliseconds
+     */
+    CommandWatchdog(final Client client, final long idleTimeout) {
+        this.client = client;
+        this.idleTimeout = idleTimeout;
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(),
+                    "CVS command watchdog"));
+        }
+        return timer;
+    }
+
+    /**
+     * Starts watching the command. The watchdog also has to be registered as a listener on the client.
+     */
+    synchronized void start() {
+        final long interval = Math.max(1000, Math.min(idleTimeout / 4, 30000));
+        check = getTimer().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkActivity();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the command once it's finished.
+     */
+    synchronized void stop() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    /**
+     * @return true if the watchdog closed the connection because the command had stalled
+     */
+    boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * @return how long the command can go without a response from the server, in seconds
+     */
+    long getIdleTimeoutSeconds() {
+        return idleTimeout / 1000;
+    }
+
+    private void checkActivity() {
+        if (stalled || System.currentTimeMillis() - lastActivity < idleTimeout) {
+            return;
+        }
+        stalled = true;
+        stop();
+        try {
+            client.getConnection().close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not close stalled CVS connection", ex);
+        }
+    }
+
+    private void activity() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public void messageSent(final MessageEvent e) {
+        activity();
+    }
+
+    @Override
+    public void fileAdded(final FileAddedEvent e) {
+        activity();
+    }
+
+    @Override
+    public void fileRemoved(final FileRemovedEvent e) {
+        activity();
+    }
+
+    @Override
+    public void fileUpdated(final FileUpdatedEvent e) {
+        activity();
+    }
+
+    @Override
+    public void fileInfoGenerated(final FileInfoEvent e) {
+        activity();
+    }
+
+    @Override
+    public void moduleExpanded(final ModuleExpansionEvent e) {
+        activity();
+    }
+}
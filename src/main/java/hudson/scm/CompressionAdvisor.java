@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Picks a compression level for CVSROOTs configured with automatic compression. Each level in a small set of
+ * candidates is tried a few times, and the level that has given the highest effective throughput (uncompressed
+ * bytes of files written to the workspace per second of command time) is used from then on. The rate for a level
+ * is a moving average, and every so often the least recently measured level is tried again so a change in network
+ * or server conditions gets noticed.
+ * <p>
+ * Only throughput is measured. Latency isn't measured separately, it just shows up as a lower rate for every level.
+ * <p>
+ * Only fresh checkouts are expected to move enough data to be measured, so they are the only commands that try
+ * levels out. Each build picks one level per CVSROOT for its checkouts, so a build's checkouts don't each use up a
+ * turn at trying a level. Every other command uses the best level found so far, or {@link #DEFAULT_LEVEL} until
+ * every level has been measured.
+ */
+final class CompressionAdvisor {
+
+    /**
+     * The compression level setting that asks for the level to be picked automatically.
+     */
+    static final int AUTOMATIC = -2;
+
+    /**
+     * The level used with automatic compression by commands that don't transfer files, such as <tt>rlog</tt>, and
+     * by other commands until every level has been measured.
+     */
+    static final int DEFAULT_LEVEL = 3;
+
+    private static final int[] LEVELS = {0, 1, 3, 6, 9};
+
+    /**
+     * How many measurements of each level are taken before picking the best one.
+     */
+    private static final int MIN_SAMPLES = 2;
+
+    /**
+     * How often (in operations against a CVSROOT) the least recently measured level is tried again.
+     */
+    private static final int RESAMPLE_INTERVAL = 20;
+
+    /**
+     * Operations transferring less than this are dominated by fixed costs so don't tell us anything about compression.
+     */
+    private static final long MIN_BYTES = 64 * 1024;
+
+    /**
+     * How much weight a new measurement carries against the existing average.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private static final CompressionAdvisor INSTANCE = new CompressionAdvisor();
+
+    private final Map<String, RootStatistics> statistics = new HashMap<String, RootStatistics>();
+
+    private CompressionAdvisor() {
+    }
+
+    static CompressionAdvisor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param cvsRoot the expanded CVSROOT a command is about to be run against
+     * @param explore whether the command is expected to transfer enough to be measured, in which case it may be
+     *                given a level that hasn't been measured enough yet
+     * @return the compression level the command should use
+     */
+    synchronized int getLevel(final String cvsRoot, final boolean explore) {
+        final RootStatistics root = getStatistics(cvsRoot);
+        if (!explore) {
+            return root.isMeasured() ? LEVELS[root.getBest()] : DEFAULT_LEVEL;
+        }
+        root.operations++;
+
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (root.samples[i] < MIN_SAMPLES) {
+                return LEVELS[i];
+            }
+        }
+
+        if (root.operations % RESAMPLE_INTERVAL == 0) {
+            int oldest = 0;
+            for (int i = 1; i < LEVELS.length; i++) {
+                if (root.lastSampled[i] < root.lastSampled[oldest]) {
+                    oldest = i;
+                }
+            }
+            return LEVELS[oldest];
+        }
+
+        return LEVELS[root.getBest()];
+    }
+
+    /**
+     * Records how a command performed.
+     * @param cvsRoot the expanded CVSROOT the command was run against
+     * @param level the compression level the command used
+     * @param bytes the size of the files written to the workspace by the command
+     * @param duration how long the command took, in milliseconds
+     */
+    synchronized void record(final String cvsRoot, final int level, final long bytes, final long duration) {
+        if (bytes < MIN_BYTES || duration <= 0) {
+            return;
+        }
+
+        final RootStatistics root = getStatistics(cvsRoot);
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i] != level) {
+                continue;
+            }
+            final double rate = bytes * 1000.0 / duration;
+            root.rates[i] = root.samples[i] == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * root.rates[i];
+            root.samples[i]++;
+            root.lastSampled[i] = root.operations;
+        }
+    }
+
+    /**
+     * @return the rate measured for each level, in bytes per second, leaving out levels that haven't been measured
+     */
+    synchronized Map<Integer, Long> getRates(final String cvsRoot) {
+        final RootStatistics root = getStatistics(cvsRoot);
+        final Map<Integer, Long> rates = new TreeMap<Integer, Long>();
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (root.samples[i] > 0) {
+                rates.put(LEVELS[i], Math.round(root.rates[i]));
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * Describes the level chosen for a command and the rates measured so far, for writing to the build log.
+     */
+    synchronized String describe(final String cvsRoot, final int level) {
+        final RootStatistics root = getStatistics(cvsRoot);
+        final StringBuilder description = new StringBuilder("Using automatic compression level ").append(level)
+                .append(" for ").append(cvsRoot).append(" (measured rates:");
+        for (int i = 0; i < LEVELS.length; i++) {
+            description.append(" level ").append(LEVELS[i]).append('=');
+            if (root.samples[i] == 0) {
+                description.append("unmeasured");
+            } else {
+                description.append(Math.round(root.rates[i] / 1024)).append("KB/s");
+            }
+        }
+        return description.append(')').toString();
+    }
+
+    private RootStatistics getStatistics(final String cvsRoot) {
+        RootStatistics root = statistics.get(cvsRoot);
+        if (root == null) {
+            root = new RootStatistics();
+            statistics.put(cvsRoot, root);
+        }
+        return root;
+    }
+
+    private static final class RootStatistics {
+        private final double[] rates = new double[LEVELS.length];
+        private final int[] samples = new int[LEVELS.length];
+        private final int[] lastSampled = new int[LEVELS.length];
+        private int operations = 0;
+
+        private boolean isMeasured() {
+            for (int sampleCount : samples) {
+                if (sampleCount < MIN_SAMPLES) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int getBest() {
+            int best = 0;
+            for (int i = 1; i < LEVELS.length; i++) {
+                if (rates[i] > rates[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+    }
+}
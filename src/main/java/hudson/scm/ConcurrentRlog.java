@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs <tt>rlog</tt> for every module in a repository, in parallel if enabled. Whenever more than one connection
+ * per CVSROOT is allowed, each command counts towards the same per-CVSROOT limit as checkouts, including a change
+ * log that's fetched whilst the build is still checking out, so polls and builds together never go over it.
+ * <p>
+ * When the modules are logged in parallel, the output each command writes to the listener is held back and written
+ * in module order once they've all finished, so the log reads the same as if they had run one after another.
+ */
+final class ConcurrentRlog {
+
+    /**
+     * If set, the <tt>rlog</tt> for each module in a repository is run in parallel when polling or building a change
+     * log, using up to the maximum number of concurrent connections per CVSROOT configured for checkouts.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(ConcurrentRlog.class.getName() + ".enabled");
+
+    private ConcurrentRlog() {
+    }
+
+    /**
+     * Runs <tt>rlog</tt> for a single module and parses its output.
+     */
+    interface ModuleLog {
+        CvsChangeSet fetch(TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Gets the output of <tt>rlog</tt> for each module of a repository.
+     * @param cvsRoot the expanded CVSROOT of the repository
+     * @param maxConnections the maximum number of connections to the CVSROOT, shared with checkouts
+     * @param modules fetches the log for each module
+     * @return the output for each module, in the same order as the modules
+     */
+    static List<CvsChangeSet> fetch(final String cvsRoot, final int maxConnections, final List<ModuleLog> modules,
+                                    final TaskListener listener) throws IOException, InterruptedException {
+        final List<CvsChangeSet> logs = new ArrayList<CvsChangeSet>();
+        if (!ENABLED || maxConnections <= 1 || modules.size() <= 1) {
+            for (final ModuleLog module : modules) {
+                if (maxConnections <= 1) {
+                    logs.add(module.fetch(listener));
+                    continue;
+                }
+                logs.add(CvsRootTaskRunner.callWithPermit(cvsRoot, maxConnections, new Callable<CvsChangeSet>() {
+                    @Override
+                    public CvsChangeSet call() throws Exception {
+                        return module.fetch(listener);
+                    }
+                }));
+            }
+            return logs;
+        }
+
+        final CvsRootTaskRunner<CvsChangeSet> runner = new CvsRootTaskRunner<CvsChangeSet>("CVS rlog for " + cvsRoot,
+                maxConnections);
+        final List<ByteArrayOutputStream> moduleOutputs = new ArrayList<ByteArrayOutputStream>();
+        for (final ModuleLog module : modules) {
+            final ByteArrayOutputStream moduleOutput = new ByteArrayOutputStream();
+            moduleOutputs.add(moduleOutput);
+            runner.add(cvsRoot, new Callable<CvsChangeSet>() {
+                @Override
+                public CvsChangeSet call() throws Exception {
+                    final TaskListener moduleListener = new StreamTaskListener(moduleOutput);
+                    try {
+                        return module.fetch(moduleListener);
+                    } finally {
+                        moduleListener.getLogger().flush();
+                    }
+                }
+            });
+        }
+
+        try {
+            logs.addAll(runner.invokeAll());
+        } finally {
+            // invokeAll either waited for every command to stop or threw, having given up on one that wouldn't. The
+            // buffers are synchronized, so even then this only writes out whatever they hold so far
+            for (ByteArrayOutputStream moduleOutput : moduleOutputs) {
+                listener.getLogger().write(moduleOutput.toByteArray());
+            }
+            listener.getLogger().flush();
+        }
+        return logs;
+    }
+}
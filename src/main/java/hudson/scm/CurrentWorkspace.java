@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets a build skip its update when the workspace is already what the update would leave it as. Polls that find
+ * nothing at all has been committed since a job's last build are remembered here, so a build that follows such a
+ * poll only has to look for commits made since the poll rather than since the previous build's checkout.
+ */
+public final class CurrentWorkspace {
+
+    /**
+     * If set, the update is skipped entirely when the workspace still matches the state recorded by the previous
+     * build on the same node and nothing has been committed to the watched modules since that build's checkout.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CurrentWorkspace.class.getName() + ".enabled");
+
+    /**
+     * The most recent poll of each job that found nothing at all had been committed since the job's last build,
+     * keyed by the job's full name.
+     */
+    private static final Map<String, QuietPoll> QUIET_POLLS = new ConcurrentHashMap<String, QuietPoll>();
+
+    private CurrentWorkspace() {
+    }
+
+    /**
+     * Remembers the outcome of a poll of a job.
+     * @param jobName the full name of the job that was polled
+     * @param baselineBuild the number of the build the poll compared against
+     * @param start the checkout date of that build, which is where the poll started looking for commits
+     * @param end how far the poll looked for commits
+     * @param quiet whether the poll found nothing at all had been committed, including in excluded regions
+     */
+    static void recordPoll(final String jobName, final int baselineBuild, final Date start, final Date end,
+                           final boolean quiet) {
+        if (!ENABLED) {
+            return;
+        }
+        if (quiet) {
+            QUIET_POLLS.put(jobName, new QuietPoll(baselineBuild, start, end));
+        } else {
+            QUIET_POLLS.remove(jobName);
+        }
+    }
+
+    /**
+     * Works out where a build needs to start looking for commits made since the previous build's checkout, skipping
+     * whatever a quiet poll since then has already covered.
+     * @param jobName the full name of the job being built
+     * @param previousBuild the number of the previous build
+     * @param previousCheckoutDate the checkout date of the previous build
+     * @return the end of the most recent quiet poll against the previous build if it covers anything since that
+     *          build's checkout, otherwise that build's checkout date
+     */
+    static Date getUncheckedFrom(final String jobName, final int previousBuild, final Date previousCheckoutDate) {
+        final QuietPoll poll = QUIET_POLLS.get(jobName);
+        if (poll != null && poll.baselineBuild == previousBuild && !poll.start.after(previousCheckoutDate)
+                && poll.end.after(previousCheckoutDate)) {
+            return poll.end;
+        }
+        return previousCheckoutDate;
+    }
+
+    /**
+     * A poll that found nothing had been committed between a build's checkout date and the time of the poll.
+     */
+    private static final class QuietPoll {
+        private final int baselineBuild;
+        private final Date start;
+        private final Date end;
+
+        private QuietPoll(final int baselineBuild, final Date start, final Date end) {
+            this.baselineBuild = baselineBuild;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Forgets the quiet polls of jobs that are deleted, renamed or moved, including those within a deleted, renamed
+     * or moved folder.
+     */
+    @Extension
+    public static final class QuietPollCleaner extends ItemListener {
+
+        @Override
+        public void onDeleted(final Item item) {
+            forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(final Item item, final String oldFullName, final String newFullName) {
+            forget(oldFullName);
+        }
+
+        static void forget(final String fullName) {
+            for (Iterator<String> itr = QUIET_POLLS.keySet().iterator(); itr.hasNext();) {
+                final String name = itr.next();
+                if (name.equals(fullName) || name.startsWith(fullName + "/")) {
+                    itr.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pristine checkout of a single module, kept on the node a build runs on so new or wiped workspaces
+ * can be seeded with a local copy rather than checking the whole module out over the network again.
+ * Caches are keyed on the CVSROOT, remote module name and branch/tag, and live under
+ * <tt>cvs-cache</tt> in the node's root directory.
+ * <p>
+ * All access to a cache entry has to be done whilst holding the entry's {@link #getLock() lock}. The lock
+ * is held in the master JVM since that's where every build coordinating access to the node is running.
+ * <p>
+ * Which node a build is running on can only be found from the build's executor thread, so the node is
+ * looked up there with {@link #getNodeRoot(FilePath)} and {@link #getNodeName()} and handed to anything
+ * working on the build's behalf on other threads.
+ */
+final class CvsCheckoutCache {
+
+    /**
+     * Whether new checkouts should be seeded from, and stored in, the node's checkout cache.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CvsCheckoutCache.class.getName() + ".enabled");
+
+    /**
+     * The name of the directory the module is checked out to within a cache entry.
+     */
+    static final String CHECKOUT_NAME = "checkout";
+
+    private static final Map<String, Object> LOCKS = new HashMap<String, Object>();
+
+    private final FilePath directory;
+    private final Object lock;
+
+    private CvsCheckoutCache(final FilePath directory, final Object lock) {
+        this.directory = directory;
+        this.lock = lock;
+    }
+
+    /**
+     * Gets the cache entry for a module on the node a build is running on.
+     * @param nodeRoot the node's root directory, as given by {@link #getNodeRoot(FilePath)}
+     * @param nodeName the node's name, as given by {@link #getNodeName()}
+     * @param cvsRoot the expanded CVSROOT the module is checked out from
+     * @param remoteName the expanded name of the module on the server
+     * @param locationType whether HEAD, a branch or a tag is being checked out
+     * @param locationName the expanded name of the branch or tag, ignored for HEAD
+     */
+    static CvsCheckoutCache forModule(final FilePath nodeRoot, final String nodeName, final String cvsRoot,
+                                      final String remoteName, final CvsRepositoryLocationType locationType,
+                                      final String locationName) {
+        final String key = Util.getDigestOf(cvsRoot + "\n" + remoteName + "\n" + locationType
+                + (locationType == CvsRepositoryLocationType.HEAD ? "" : "\n" + locationName));
+        final FilePath directory = nodeRoot.child("cvs-cache").child(key);
+        return new CvsCheckoutCache(directory, getLock(nodeName, directory));
+    }
+
+    /**
+     * Gets the root directory of the node the build on the current executor is running on. This has to be called
+     * on the build's executor thread.
+     * @param workspace the build's workspace, used to find a suitable location if the node can't be determined
+     */
+    static FilePath getNodeRoot(final FilePath workspace) {
+        final Computer computer = Computer.currentComputer();
+        if (computer != null) {
+            final Node node = computer.getNode();
+            if (node != null && node.getRootPath() != null) {
+                return node.getRootPath();
+            }
+        }
+        // the workspace root directory for the node
+        return workspace.getParent();
+    }
+
+    /**
+     * Gets the name of the node the build on the current executor is running on. This has to be called on the
+     * build's executor thread.
+     */
+    static String getNodeName() {
+        final Computer computer = Computer.currentComputer();
+        return computer == null ? "" : computer.getName();
+    }
+
+    /**
+     * Gets a directory in the root of the node the build on the current executor is running on. This has to be
+     * called on the build's executor thread.
+     * @param workspace the build's workspace, used to find a suitable location if the node can't be determined
+     * @param name the name of the directory
+     */
+    static FilePath getNodeDirectory(final FilePath workspace, final String name) {
+        return getNodeRoot(workspace).child(name);
+    }
+
+    /**
+     * Gets the lock used to coordinate access to a directory on a node from any build running on the master.
+     * @param nodeName the name of the node the directory is on
+     */
+    static Object getLock(final String nodeName, final FilePath directory) {
+        final String lockKey = nodeName + ":" + directory.getRemote();
+        synchronized (LOCKS) {
+            Object lock = LOCKS.get(lockKey);
+            if (lock == null) {
+                lock = new Object();
+                LOCKS.put(lockKey, lock);
+            }
+            return lock;
+        }
+    }
+
+    Object getLock() {
+        return lock;
+    }
+
+    /**
+     * @return the directory containing the cached checkout, which is used as the workspace when updating the cache.
+     */
+    FilePath getDirectory() {
+        return directory;
+    }
+
+    boolean exists() throws IOException, InterruptedException {
+        return directory.child(CHECKOUT_NAME).child("CVS/Entries").exists();
+    }
+
+    /**
+     * Replaces the given module directory with a copy of the cached checkout.
+     * @param module the directory the module is checked out to
+     * @param workspace the workspace containing the module
+     */
+    void seed(final FilePath module, final FilePath workspace) throws IOException, InterruptedException {
+        WorkspaceTrash.deleteRecursive(module, workspace);
+        directory.child(CHECKOUT_NAME).act(new DirectoryCopier(module.getRemote()));
+    }
+
+    /**
+     * Replaces the cached checkout with a copy of the given freshly checked out module directory.
+     */
+    void store(final FilePath module) throws IOException, InterruptedException {
+        final FilePath checkout = directory.child(CHECKOUT_NAME);
+        final FilePath temp = directory.child(CHECKOUT_NAME + ".tmp");
+        if (temp.exists()) {
+            temp.deleteRecursive();
+        }
+        // copy to a temporary location first so an interrupted copy never leaves a partial cache behind
+        module.act(new DirectoryCopier(temp.getRemote()));
+        if (checkout.exists()) {
+            checkout.deleteRecursive();
+        }
+        temp.renameTo(checkout);
+    }
+
+    void discard() throws IOException, InterruptedException {
+        directory.deleteRecursive();
+    }
+}
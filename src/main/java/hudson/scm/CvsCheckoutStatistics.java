@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records every checkout and update command run for a build, so the time spent getting sources can be broken
+ * down by server, network and agent through the remote API, e.g.
+ * <tt>/job/foo/lastBuild/api/json?tree=actions[commands[*]]</tt>. The compression level picked for the fresh
+ * checkouts against each CVSROOT set to automatic compression is also kept here, so every checkout in the build uses
+ * the same level, along with the measured rates that the build's choice of levels was based on.
+ */
+@ExportedBean
+public class CvsCheckoutStatistics extends InvisibleAction {
+
+    private final List<CvsCommandStatistics> commands = new ArrayList<CvsCommandStatistics>();
+
+    /**
+     * The automatic compression level picked for fresh checkouts from each expanded CVSROOT.
+     */
+    private Map<String, Integer> compressionLevels = new TreeMap<String, Integer>();
+
+    /**
+     * The rates, in bytes per second for each compression level, that were known for each expanded CVSROOT when
+     * the build first picked an automatic compression level for it.
+     */
+    private Map<String, Map<Integer, Long>> compressionRates = new TreeMap<String, Map<Integer, Long>>();
+
+    /**
+     * Gets the statistics action for a build, adding one if the build doesn't have one yet.
+     */
+    static CvsCheckoutStatistics forBuild(final Run<?, ?> build) {
+        synchronized (build) {
+            CvsCheckoutStatistics statistics = build.getAction(CvsCheckoutStatistics.class);
+            if (statistics == null) {
+                statistics = new CvsCheckoutStatistics();
+                build.addAction(statistics);
+            }
+            return statistics;
+        }
+    }
+
+    private Object readResolve() {
+        // builds recorded before compression levels were kept don't have any
+        if (compressionLevels == null) {
+            compressionLevels = new TreeMap<String, Integer>();
+        }
+        if (compressionRates == null) {
+            compressionRates = new TreeMap<String, Map<Integer, Long>>();
+        }
+        return this;
+    }
+
+    synchronized void add(final CvsCommandStatistics command) {
+        commands.add(command);
+    }
+
+    /**
+     * @return the automatic compression level picked for fresh checkouts from a CVSROOT, or null if one hasn't been
+     *          picked yet
+     */
+    synchronized Integer getCompressionLevel(final String cvsRoot) {
+        return compressionLevels.get(cvsRoot);
+    }
+
+    synchronized void setCompressionLevel(final String cvsRoot, final int level) {
+        compressionLevels.put(cvsRoot, level);
+    }
+
+    /**
+     * Records the rates an automatic compression level was picked from, unless the build already has rates for
+     * the CVSROOT.
+     * @return true if the rates were recorded, false if the build already had rates for the CVSROOT
+     */
+    synchronized boolean addCompressionRates(final String cvsRoot, final Map<Integer, Long> rates) {
+        if (compressionRates.containsKey(cvsRoot)) {
+            return false;
+        }
+        compressionRates.put(cvsRoot, new TreeMap<Integer, Long>(rates));
+        return true;
+    }
+
+    /**
+     * @return the automatic compression level picked for fresh checkouts from each CVSROOT, keyed by CVSROOT
+     */
+    @Exported
+    public synchronized Map<String, Integer> getCompressionLevels() {
+        return new TreeMap<String, Integer>(compressionLevels);
+    }
+
+    /**
+     * @return the rates, in bytes per second keyed by compression level, that were known for each CVSROOT when the
+     *          build first picked an automatic compression level for it. Levels that hadn't been measured are left out
+     */
+    @Exported
+    public synchronized Map<String, Map<Integer, Long>> getCompressionRates() {
+        return new TreeMap<String, Map<Integer, Long>>(compressionRates);
+    }
+
+    @Exported
+    public synchronized List<CvsCommandStatistics> getCommands() {
+        return new ArrayList<CvsCommandStatistics>(commands);
+    }
+
+    @Exported
+    public synchronized int getFilesAdded() {
+        int total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getFilesAdded();
+        }
+        return total;
+    }
+
+    @Exported
+    public synchronized int getFilesUpdated() {
+        int total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getFilesUpdated();
+        }
+        return total;
+    }
+
+    @Exported
+    public synchronized int getFilesRemoved() {
+        int total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getFilesRemoved();
+        }
+        return total;
+    }
+
+    /**
+     * @return the uncompressed size of all files written to the workspace, in bytes. Bytes sent over the wire and
+     *          the compression ratio aren't available from the CVS client
+     */
+    @Exported
+    public synchronized long getFileBytes() {
+        long total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getFileBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return the total time spent waiting for the server to start responding, in milliseconds
+     */
+    @Exported
+    public synchronized long getServerWaitTime() {
+        long total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getServerWaitTime();
+        }
+        return total;
+    }
+
+    /**
+     * @return the total time spent running commands, in milliseconds. Commands run concurrently are each counted
+     *          in full, so this can be longer than the checkout took
+     */
+    @Exported
+    public synchronized long getDuration() {
+        long total = 0;
+        for (CvsCommandStatistics command : commands) {
+            total += command.getDuration();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.netbeans.lib.cvsclient.event.CVSAdapter;
+import org.netbeans.lib.cvsclient.event.FileAddedEvent;
+import org.netbeans.lib.cvsclient.event.FileRemovedEvent;
+import org.netbeans.lib.cvsclient.event.FileUpdatedEvent;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * What a single CVS checkout or update command transferred and how long it took.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class CvsCommandStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String cvsRoot;
+    private final String modules;
+    private final String command;
+    private final int compressionLevel;
+    private final boolean successful;
+    private final int filesAdded;
+    private final int filesUpdated;
+    private final int filesRemoved;
+    private final long fileBytes;
+    private final long serverWaitTime;
+    private final long duration;
+
+    private CvsCommandStatistics(final String cvsRoot, final String modules, final String command,
+                                 final int compressionLevel, final boolean successful, final Collector collector,
+                                 final long duration) {
+        this.cvsRoot = cvsRoot;
+        this.modules = modules;
+        this.command = command;
+        this.compressionLevel = compressionLevel;
+        this.successful = successful;
+        this.filesAdded = collector.filesAdded;
+        this.filesUpdated = collector.filesUpdated;
+        this.filesRemoved = collector.filesRemoved;
+        this.fileBytes = collector.fileBytes;
+        this.serverWaitTime = collector.firstResponse == 0 ? duration : collector.firstResponse - collector.startTime;
+        this.duration = duration;
+    }
+
+    /**
+     * @return the CVSROOT the command was run against
+     */
+    @Exported
+    public String getCvsRoot() {
+        return cvsRoot;
+    }
+
+    /**
+     * @return the workspace paths the command was run on, separated by commas
+     */
+    @Exported
+    public String getModules() {
+        return modules;
+    }
+
+    /**
+     * @return the CVS command that was run, e.g. <tt>update</tt> or <tt>checkout</tt>
+     */
+    @Exported
+    public String getCommand() {
+        return command;
+    }
+
+    @Exported
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    @Exported
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @Exported
+    public int getFilesAdded() {
+        return filesAdded;
+    }
+
+    @Exported
+    public int getFilesUpdated() {
+        return filesUpdated;
+    }
+
+    @Exported
+    public int getFilesRemoved() {
+        return filesRemoved;
+    }
+
+    /**
+     * @return the uncompressed size of the files written to the workspace, in bytes. The CVS client doesn't report
+     *          how many bytes went over the wire, so neither that nor the compression ratio achieved is available
+     */
+    @Exported
+    public long getFileBytes() {
+        return fileBytes;
+    }
+
+    /**
+     * @return the time between sending the command and the server's first response, in milliseconds. This is the
+     *          time the server spent working out what to send, plus a single round trip
+     */
+    @Exported
+    public long getServerWaitTime() {
+        return serverWaitTime;
+    }
+
+    /**
+     * @return the total time the command took, in milliseconds
+     */
+    @Exported
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Gathers statistics from the events the CVS client fires whilst running a command. Collectors run on the
+     * node holding the workspace and are turned into {@link CvsCommandStatistics} once the command finishes.
+     */
+    static final class Collector extends CVSAdapter {
+        private final long startTime = System.currentTimeMillis();
+        private long firstResponse = 0;
+        private int filesAdded = 0;
+        private int filesUpdated = 0;
+        private int filesRemoved = 0;
+        private long fileBytes = 0;
+
+        @Override
+        public void messageSent(final MessageEvent e) {
+            responseReceived();
+        }
+
+        @Override
+        public void fileAdded(final FileAddedEvent e) {
+            responseReceived();
+            filesAdded++;
+            fileBytes += new File(e.getFilePath()).length();
+        }
+
+        @Override
+        public void fileUpdated(final FileUpdatedEvent e) {
+            responseReceived();
+            filesUpdated++;
+            fileBytes += new File(e.getFilePath()).length();
+        }
+
+        @Override
+        public void fileRemoved(final FileRemovedEvent e) {
+            responseReceived();
+            filesRemoved++;
+        }
+
+        private void responseReceived() {
+            if (firstResponse == 0) {
+                firstResponse = System.currentTimeMillis();
+            }
+        }
+
+        long getFileBytes() {
+            return fileBytes;
+        }
+
+        CvsCommandStatistics finish(final String cvsRoot, final String modules, final String command,
+                                    final int compressionLevel, final boolean successful) {
+            return new CvsCommandStatistics(cvsRoot, modules, command, compressionLevel, successful, this,
+                    System.currentTimeMillis() - startTime);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.netbeans.lib.cvsclient.Client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps authenticated CVS clients open after a command completes so the next command against the same
+ * CVSROOT (with the same credentials) in this JVM can skip the TCP/SSH handshake and authentication.
+ * A connection keeps the compression it negotiated when it was opened, so it's only handed out again
+ * for commands that ask for the same compression level.
+ * <p>
+ * The pool lives in whichever JVM runs the CVS command, so checkouts pool connections on the agent
+ * whilst polling and tagging pool them on the master. Idle connections are closed once they've been
+ * unused for {@link #IDLE_TIMEOUT} milliseconds, and connections are only ever returned to the pool
+ * after a command has completed successfully.
+ */
+public final class CvsConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(CvsConnectionPool.class.getName());
+
+    /**
+     * Whether connections should be pooled at all. Some older CVS servers don't cope with multiple
+     * commands on one connection, so this is off unless explicitly enabled.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CvsConnectionPool.class.getName() + ".enabled");
+
+    /**
+     * The maximum number of idle connections kept open for a single CVSROOT, set of credentials and compression level.
+     */
+    public static int MAX_IDLE_PER_ROOT = Integer.getInteger(CvsConnectionPool.class.getName() + ".maxIdlePerRoot", 4);
+
+    /**
+     * The maximum number of idle connections kept open across all CVSROOTs.
+     */
+    public static int MAX_IDLE = Integer.getInteger(CvsConnectionPool.class.getName() + ".maxIdle", 16);
+
+    /**
+     * How long (in milliseconds) a connection can sit unused in the pool before it's closed.
+     */
+    public static long IDLE_TIMEOUT = Long.getLong(CvsConnectionPool.class.getName() + ".idleTimeout", 60000L);
+
+    private static final CvsConnectionPool INSTANCE = new CvsConnectionPool();
+
+    private final Map<String, LinkedList<PooledClient>> idleClients = new HashMap<String, LinkedList<PooledClient>>();
+    private int idleCount = 0;
+    private ScheduledExecutorService evictor;
+
+    private CvsConnectionPool() {
+    }
+
+    public static CvsConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a client to run a command with. If an open, healthy connection for the same key and compression level
+     * is sitting in the pool then its client is returned, otherwise the supplied client is returned unchanged.
+     * @param key the connection key, as given by {@link AbstractCvs#getConnectionKey(CvsRepository, hudson.EnvVars)}
+     * @param compressionLevel the compression level the command will be run with
+     * @param client a newly created (unopened) client to use if nothing suitable is pooled
+     * @return the client to run the command with
+     */
+    public Client borrow(final String key, final int compressionLevel, final Client client) {
+        final Client pooled = borrow(key, compressionLevel);
+        return pooled == null ? client : pooled;
+    }
+
+    /**
+     * Takes an open, healthy client for the given key and compression level out of the pool, for callers that
+     * would rather not create a new client unless they have to.
+     * @param key the connection key, as given by {@link AbstractCvs#getConnectionKey(CvsRepository, hudson.EnvVars)}
+     * @param compressionLevel the compression level the command will be run with
+     * @return the pooled client, or null if pooling is disabled or nothing suitable is pooled
+     */
+    public Client borrow(final String key, final int compressionLevel) {
+        if (!ENABLED) {
+            return null;
+        }
+
+        final List<PooledClient> stale = new ArrayList<PooledClient>();
+        Client pooled = null;
+        synchronized (this) {
+            final LinkedList<PooledClient> clients = idleClients.get(getPoolKey(key, compressionLevel));
+            while (clients != null && !clients.isEmpty() && pooled == null) {
+                final PooledClient candidate = clients.removeFirst();
+                idleCount--;
+                if (candidate.isHealthy()) {
+                    pooled = candidate.client;
+                } else {
+                    stale.add(candidate);
+                }
+            }
+        }
+
+        close(stale);
+        return pooled;
+    }
+
+    /**
+     * Hands a client back once a command has finished with it. The client's connection is closed rather than
+     * pooled if pooling is disabled, the command didn't complete cleanly, or the pool is already full.
+     * @param key the key the client was borrowed with
+     * @param compressionLevel the compression level the client's connection was opened with
+     * @param client the client to return
+     * @param reusable whether the last command completed cleanly, leaving the connection in a usable state
+     * @throws IOException if the connection had to be closed and closing it failed
+     */
+    public void release(final String key, final int compressionLevel, final Client client, final boolean reusable)
+            throws IOException {
+        if (ENABLED && reusable && client.getConnection().isOpen()) {
+            final String poolKey = getPoolKey(key, compressionLevel);
+            synchronized (this) {
+                LinkedList<PooledClient> clients = idleClients.get(poolKey);
+                if (clients == null) {
+                    clients = new LinkedList<PooledClient>();
+                    idleClients.put(poolKey, clients);
+                }
+                if (clients.size() < MAX_IDLE_PER_ROOT && idleCount < MAX_IDLE) {
+                    clients.addFirst(new PooledClient(client));
+                    idleCount++;
+                    startEvictor();
+                    return;
+                }
+            }
+        }
+
+        client.getConnection().close();
+    }
+
+    /**
+     * Closes every connection sitting idle in the pool.
+     */
+    public void clear() {
+        final List<PooledClient> clients = new ArrayList<PooledClient>();
+        synchronized (this) {
+            for (List<PooledClient> rootClients : idleClients.values()) {
+                clients.addAll(rootClients);
+            }
+            idleClients.clear();
+            idleCount = 0;
+        }
+        close(clients);
+    }
+
+    private static String getPoolKey(final String key, final int compressionLevel) {
+        return key + '\n' + compressionLevel;
+    }
+
+    private synchronized void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(),
+                "CVS connection pool evictor"));
+        final long period = Math.max(1000L, IDLE_TIMEOUT / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictIdle() {
+        final List<PooledClient> stale = new ArrayList<PooledClient>();
+        synchronized (this) {
+            for (Iterator<LinkedList<PooledClient>> rootItr = idleClients.values().iterator(); rootItr.hasNext();) {
+                final LinkedList<PooledClient> clients = rootItr.next();
+                for (Iterator<PooledClient> itr = clients.iterator(); itr.hasNext();) {
+                    final PooledClient client = itr.next();
+                    if (!client.isHealthy()) {
+                        itr.remove();
+                        idleCount--;
+                        stale.add(client);
+                    }
+                }
+                if (clients.isEmpty()) {
+                    rootItr.remove();
+                }
+            }
+        }
+        close(stale);
+    }
+
+    private static void close(final List<PooledClient> clients) {
+        for (PooledClient client : clients) {
+            try {
+                client.client.getConnection().close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Could not close pooled CVS connection", ex);
+            }
+        }
+    }
+
+    private static final class PooledClient {
+        private final Client client;
+        private final long releasedAt = System.currentTimeMillis();
+
+        private PooledClient(final Client client) {
+            this.client = client;
+        }
+
+        private boolean isHealthy() {
+            return System.currentTimeMillis() - releasedAt < IDLE_TIMEOUT && client.getConnection().isOpen();
+        }
+    }
+}
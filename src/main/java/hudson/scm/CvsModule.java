@@ -34,6 +34,13 @@ import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.export.Exported;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static hudson.Util.fixNull;
 
@@ -41,12 +48,24 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
 
     private static final long serialVersionUID = 8450427422042269152L;
 
+    private static final Logger LOGGER = Logger.getLogger(CvsModule.class.getName());
+
     private final String localName;
 
     private final String remoteName;
 
     private final String projectsetFileName;
 
+    private final String includedPaths;
+
+    private final String excludedPaths;
+
+    private transient volatile List<String> includedPathList;
+
+    private transient volatile List<String> includedParentList;
+
+    private transient volatile List<Pattern> excludedPathPatterns;
+
     @SuppressWarnings("unused")
     @Deprecated
     private transient CvsModuleLocation moduleLocation;
@@ -55,11 +74,18 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
         this(remoteName, localName, null);
     }
 
-    @DataBoundConstructor
     public CvsModule(final String remoteName, final String localName, final String projectsetFileName) {
+        this(remoteName, localName, projectsetFileName, null, null);
+    }
+
+    @DataBoundConstructor
+    public CvsModule(final String remoteName, final String localName, final String projectsetFileName,
+                     final String includedPaths, final String excludedPaths) {
         this.remoteName = remoteName;
         this.localName = localName;
         this.projectsetFileName = projectsetFileName;
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
     }
 
     @Exported
@@ -77,6 +103,24 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
         return projectsetFileName;
     }
 
+    /**
+     * @return the directories within the module to check out, one per line, or null if the whole module
+     *         should be checked out
+     */
+    @Exported
+    public String getIncludedPaths() {
+        return includedPaths;
+    }
+
+    /**
+     * @return regular expressions, one per line, matching files within the module that should be left out of the
+     *         workspace state and ignored when polling, or null if no files are excluded
+     */
+    @Exported
+    public String getExcludedPaths() {
+        return excludedPaths;
+    }
+
     @Exported
     @Deprecated
     public CvsModuleLocation getModuleLocation() {
@@ -99,6 +143,142 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
           return !"".equals(Util.fixNull(localName));
     }
 
+    /**
+     * @return true if only part of the module is checked out
+     */
+    public boolean isSparse() {
+        return !getIncludedPathList().isEmpty();
+    }
+
+    /**
+     * Gives the directories to check out in a sparse module, relative to the root of the module.
+     *
+     * @return the included directories, or an empty list if the whole module is
+     *         checked out
+     */
+    public List<String> getIncludedPathList() {
+        List<String> paths = includedPathList;
+        if (paths == null) {
+            paths = new ArrayList<String>();
+            if (includedPaths != null) {
+                for (String line : includedPaths.split("[\\r\\n]+")) {
+                    String path = line.trim().replace('\\', '/');
+                    while (path.startsWith("/")) {
+                        path = path.substring(1);
+                    }
+                    while (path.endsWith("/")) {
+                        path = path.substring(0, path.length() - 1);
+                    }
+                    if (path.length() > 0 && !paths.contains(path)) {
+                        paths.add(path);
+                    }
+                }
+            }
+            paths = Collections.unmodifiableList(paths);
+            includedPathList = paths;
+        }
+        return paths;
+    }
+
+    /**
+     * Gives the directories in a sparse module whose own files are checked out without their subdirectories: the
+     * root of the module and each parent of an included path.
+     *
+     * @return the parent directories relative to the root of the module, with the root as an empty string, or an
+     *         empty list if the whole module is checked out
+     */
+    public List<String> getIncludedParentList() {
+        List<String> parents = includedParentList;
+        if (parents == null) {
+            parents = new ArrayList<String>();
+            final List<String> includes = getIncludedPathList();
+            if (!includes.isEmpty()) {
+                parents.add("");
+            }
+            for (String include : includes) {
+                for (int i = include.indexOf('/'); i != -1; i = include.indexOf('/', i + 1)) {
+                    final String parent = include.substring(0, i);
+                    if (!parents.contains(parent)) {
+                        parents.add(parent);
+                    }
+                }
+            }
+            parents = Collections.unmodifiableList(parents);
+            includedParentList = parents;
+        }
+        return parents;
+    }
+
+    /**
+     * Checks whether a file or directory in this module is within one of its
+     * included paths, so everything under it is checked out.
+     *
+     * @param path the path relative to the root of the module
+     * @return true if the whole module is checked out or the path is within
+     *         an included path, false otherwise
+     */
+    public boolean isInIncludedPath(final String path) {
+        final List<String> includes = getIncludedPathList();
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (String include : includes) {
+            if (path.equals(include) || path.startsWith(include + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a file in this module is covered by the included and
+     * excluded paths. Files directly within the root of a sparse module or
+     * within a parent of an included path are checked out too.
+     *
+     * @param path the path of the file relative to the root of the module
+     * @return true if the file is part of the module's checkout, false if it
+     *         should be ignored
+     */
+    public boolean isIncluded(final String path) {
+        if (!isInIncludedPath(path)) {
+            final int slash = path.lastIndexOf('/');
+            if (!getIncludedParentList().contains(slash == -1 ? "" : path.substring(0, slash))) {
+                return false;
+            }
+        }
+        for (Pattern pattern : getExcludedPathPatterns()) {
+            if (pattern.matcher(path).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the excluded path patterns, leaving out any that aren't valid regular expressions (which could only
+     *         have been saved without going through the form validation)
+     */
+    private List<Pattern> getExcludedPathPatterns() {
+        List<Pattern> patterns = excludedPathPatterns;
+        if (patterns == null) {
+            patterns = new ArrayList<Pattern>();
+            if (excludedPaths != null) {
+                for (String line : excludedPaths.split("[\\r\\n]+")) {
+                    if (line.trim().length() > 0) {
+                        try {
+                            patterns.add(Pattern.compile(line.trim()));
+                        } catch (PatternSyntaxException ex) {
+                            LOGGER.log(Level.WARNING, "Ignoring invalid excluded path pattern " + line.trim()
+                                    + " in CVS module " + remoteName, ex);
+                        }
+                    }
+                }
+            }
+            excludedPathPatterns = patterns;
+        }
+        return patterns;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -109,6 +289,10 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
                 + ((remoteName == null) ? 0 : remoteName.hashCode());
         result = prime * result
                 + ((projectsetFileName == null) ? 0 : projectsetFileName.hashCode());
+        result = prime * result
+                + ((includedPaths == null) ? 0 : includedPaths.hashCode());
+        result = prime * result
+                + ((excludedPaths == null) ? 0 : excludedPaths.hashCode());
         return result;
     }
 
@@ -145,6 +329,20 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
         } else if (!projectsetFileName.equals(other.projectsetFileName)) {
             return false;
         }
+        if (includedPaths == null) {
+            if (other.includedPaths != null) {
+                return false;
+            }
+        } else if (!includedPaths.equals(other.includedPaths)) {
+            return false;
+        }
+        if (excludedPaths == null) {
+            if (other.excludedPaths != null) {
+                return false;
+            }
+        } else if (!excludedPaths.equals(other.excludedPaths)) {
+            return false;
+        }
         return true;
     }
 
@@ -179,6 +377,21 @@ public class CvsModule extends AbstractDescribableImpl<CvsModule> implements Ser
             return FormValidation.ok();
         }
 
+        /**
+         * Validates each of the excluded path regular expressions
+         */
+        public FormValidation doCheckExcludedPaths(@QueryParameter final String value) {
+            for (String line : fixNull(value).split("[\\r\\n]+")) {
+                try {
+                    Pattern.compile(line.trim());
+                } catch (PatternSyntaxException e) {
+                    return FormValidation.error("Invalid regular expression. " + e.getMessage());
+                }
+            }
+
+            return FormValidation.ok();
+        }
+
         /**
          * Checks the correctness of the branch/tag name.
          */
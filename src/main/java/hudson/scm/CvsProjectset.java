@@ -129,8 +129,9 @@ public class CvsProjectset extends AbstractCvs {
     public void checkout(final @Nonnull Run<?,?> build, final @Nonnull Launcher launcher, final @Nonnull FilePath workspace,
     		             final @Nonnull TaskListener listener, final @CheckForNull File changelogFile,
     		             final @CheckForNull SCMRevisionState baseline) throws IOException, InterruptedException {
+        boolean restoredSnapshot = false;
         if (!isCanUseUpdate()) {
-            workspace.deleteContents();
+            restoredSnapshot = prepareCleanWorkspace(build, workspace, getRepositories(), false, listener);
         }
 
         final String dateStamp;
@@ -139,17 +140,39 @@ public class CvsProjectset extends AbstractCvs {
             dateStamp = DATE_FORMATTER.format(getCheckoutDate(build));
         }
 
-        if (!checkout(getRepositories(), false, workspace, isCanUseUpdate(),
-                build, dateStamp, isPruneEmptyDirectories(), isCleanOnFailedUpdate(), listener)) {
+        // a snapshot that can't be updated is thrown away in favour of a clean checkout
+        boolean canUseUpdate = isCanUseUpdate() || restoredSnapshot;
+        boolean cleanOnFailedUpdate = isCleanOnFailedUpdate() || restoredSnapshot;
+
+        if (!checkout(getRepositories(), false, workspace, canUseUpdate,
+                build, dateStamp, isPruneEmptyDirectories(), cleanOnFailedUpdate, listener)) {
             throw new AbortException();
         }
 
-        if (!checkout(getInnerRepositories(workspace), false, workspace, isCanUseUpdate(),
-                build, dateStamp, isPruneEmptyDirectories(), isCleanOnFailedUpdate(), listener)) {
+        // the projects listed in the projectset files can only be compared with the snapshot once they're up to date
+        if (restoredSnapshot && !isSnapshotCurrent(build, workspace, getRepositories(), getAllRepositories(workspace),
+                false, listener)) {
+            listener.getLogger().println("Projectset has changed since the workspace snapshot was taken."
+                    + " Cleaning workspace and performing full checkout");
+            WorkspaceTrash.deleteContents(workspace);
+            canUseUpdate = false;
+            cleanOnFailedUpdate = isCleanOnFailedUpdate();
+            if (!checkout(getRepositories(), false, workspace, canUseUpdate,
+                    build, dateStamp, isPruneEmptyDirectories(), cleanOnFailedUpdate, listener)) {
+                throw new AbortException();
+            }
+        }
+
+        if (!checkout(getInnerRepositories(workspace), false, workspace, canUseUpdate,
+                build, dateStamp, isPruneEmptyDirectories(), cleanOnFailedUpdate, listener)) {
             throw new AbortException();
         }
 
         postCheckout(build, changelogFile, getAllRepositories(workspace), workspace, listener, isFlatten(), build.getEnvironment(listener));
+
+        if (!isCanUseUpdate()) {
+            storeCleanWorkspace(build, workspace, getRepositories(), getAllRepositories(workspace), false, listener);
+        }
     }
     
     private CvsRepository[] getInnerRepositories(FilePath workspace) throws IOException, InterruptedException {
@@ -331,6 +354,11 @@ public class CvsProjectset extends AbstractCvs {
             return getCvsDescriptor().getChangelogEncoding();
         }
 
+        @Override
+        public int getMaxConcurrentConnections() {
+            return getCvsDescriptor().getMaxConcurrentConnections();
+        }
+
     }
 
 
@@ -71,6 +71,8 @@ public class CvsRepository extends AbstractDescribableImpl<CvsRepository> implem
 
     private final CVSRepositoryBrowser repositoryBrowser;
 
+    private transient volatile ExcludedRegionMatcher excludedRegionMatcher;
+
     // legacy fields
     @Deprecated
     private transient CvsModule[] modules;
@@ -114,6 +116,20 @@ public class CvsRepository extends AbstractDescribableImpl<CvsRepository> implem
     public ExcludedRegion[] getExcludedRegions() {
         return excludedRegions;
     }
+
+    /**
+     * Gets the excluded regions compiled for matching against changed files, compiling them the first time they're
+     * needed.
+     * @throws java.util.regex.PatternSyntaxException if any of the regions isn't a valid regular expression
+     */
+    ExcludedRegionMatcher getExcludedRegionMatcher() {
+        ExcludedRegionMatcher matcher = excludedRegionMatcher;
+        if (matcher == null) {
+            matcher = new ExcludedRegionMatcher(excludedRegions);
+            excludedRegionMatcher = matcher;
+        }
+        return matcher;
+    }
     
     /**
      * Gives the password to be used by this connection. If no password is
@@ -235,6 +251,7 @@ public class CvsRepository extends AbstractDescribableImpl<CvsRepository> implem
         private static final ListBoxModel createCompressionLevelModel() {
             return new ListBoxModel(
                             new Option(Messages.CVSSCM_SystemDefault(), "-1"),
+                            new Option(Messages.CVSSCM_AutomaticCompression(), "-2"),
                             new Option(Messages.CVSSCM_NoCompression(), "0"),
                             option("1"),
                             option("2"),
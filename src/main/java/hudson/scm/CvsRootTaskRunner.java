@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a set of tasks against one or more CVS servers, allowing at most a fixed
+ * number of tasks to talk to any single CVSROOT at the same time. The limit is
+ * shared by every runner in this Jenkins instance, so builds and polls running
+ * alongside each other still open no more connections to a server between them
+ * than a single runner would. Results are handed back in the order the tasks were
+ * added, regardless of the order they complete in, and the first task to fail
+ * causes every task still queued or running to be cancelled.
+ *
+ * @param <T> the type of result produced by each task
+ */
+class CvsRootTaskRunner<T> {
+
+    /**
+     * How long cancelled tasks are given to stop before the runner gives up on them, in milliseconds.
+     */
+    private static final long STOP_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The permits for each CVSROOT a task is currently running or waiting against, keyed by expanded CVSROOT.
+     * An entry is removed once nothing is using it, so roots that are no longer built don't linger.
+     */
+    private static final Map<String, RootPermits> PERMITS = new HashMap<String, RootPermits>();
+
+    private final String name;
+    private final int permitsPerRoot;
+    private final long stopTimeout;
+    private final List<String> taskRoots = new ArrayList<String>();
+    private final List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+    private final List<Boolean> taskPermits = new ArrayList<Boolean>();
+
+    /**
+     * @param name a name used for the threads started by this runner
+     * @param permitsPerRoot the maximum number of tasks that can run against
+     *                       a single CVSROOT at once, across all runners. Values
+     *                       below 1 are treated as 1.
+     */
+    CvsRootTaskRunner(final String name, final int permitsPerRoot) {
+        this(name, permitsPerRoot, STOP_TIMEOUT);
+    }
+
+    CvsRootTaskRunner(final String name, final int permitsPerRoot, final long stopTimeout) {
+        this.name = name;
+        this.permitsPerRoot = Math.max(1, permitsPerRoot);
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Queues a task for execution, holding a permit for its CVSROOT while it runs. Nothing is run until
+     * {@link #invokeAll()} is called.
+     * @param cvsRoot the (expanded) CVSROOT the task connects to
+     * @param task the work to perform
+     */
+    void add(final String cvsRoot, final Callable<T> task) {
+        add(cvsRoot, task, true);
+    }
+
+    /**
+     * Queues a task that runs a sequence of steps against possibly different CVSROOTs. The task isn't given a
+     * permit, so each step that connects to a server has to be run through {@link #call(String, Callable)}.
+     * Nothing is run until {@link #invokeAll()} is called.
+     * @param cvsRoot the (expanded) CVSROOT whose threads the task should be run on
+     * @param task the work to perform
+     */
+    void addSequence(final String cvsRoot, final Callable<T> task) {
+        add(cvsRoot, task, false);
+    }
+
+    private void add(final String cvsRoot, final Callable<T> task, final boolean holdsPermit) {
+        taskRoots.add(cvsRoot);
+        tasks.add(task);
+        taskPermits.add(holdsPermit);
+    }
+
+    /**
+     * Runs one step of a task added with {@link #addSequence(String, Callable)}, waiting for a permit for the
+     * CVSROOT the step connects to first.
+     * @param cvsRoot the (expanded) CVSROOT the step connects to
+     * @param step the work to perform
+     * @return the result of the step
+     */
+    <V> V call(final String cvsRoot, final Callable<V> step) throws IOException, InterruptedException {
+        return callWithPermit(cvsRoot, permitsPerRoot, step);
+    }
+
+    /**
+     * Runs a task on the calling thread once a permit for its CVSROOT is available, so work that isn't part of a
+     * runner still counts towards the limit on connections to a server.
+     * @param cvsRoot the (expanded) CVSROOT the task connects to
+     * @param permitsPerRoot the maximum number of tasks that can run against a single CVSROOT at once
+     * @param task the work to perform
+     * @return the result of the task
+     * @throws IOException if the task failed with an IOException or a checked exception
+     */
+    static <V> V callWithPermit(final String cvsRoot, final int permitsPerRoot, final Callable<V> task)
+            throws IOException, InterruptedException {
+        final RootPermits permits = register(cvsRoot, Math.max(1, permitsPerRoot));
+        try {
+            permits.semaphore.acquire();
+            try {
+                return task.call();
+            } catch (Exception ex) {
+                throw rethrow(ex);
+            } finally {
+                permits.semaphore.release();
+            }
+        } finally {
+            unregister(cvsRoot, permits);
+        }
+    }
+
+    /**
+     * Runs all queued tasks and waits for them to complete.
+     * @return the result of each task, in the order the tasks were added
+     * @throws IOException if any task failed with an IOException or a checked exception, or
+     *              if a cancelled task didn't stop, in which case it may still be working on
+     *              whatever it was given and the caller mustn't touch that
+     * @throws InterruptedException if the calling thread was interrupted while waiting,
+     *              in which case all outstanding tasks are cancelled
+     */
+    List<T> invokeAll() throws IOException, InterruptedException {
+        // one pool per CVSROOT so a busy server never starves the others of threads
+        final Map<String, List<Integer>> tasksByRoot = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < tasks.size(); i++) {
+            List<Integer> rootTasks = tasksByRoot.get(taskRoots.get(i));
+            if (rootTasks == null) {
+                rootTasks = new ArrayList<Integer>();
+                tasksByRoot.put(taskRoots.get(i), rootTasks);
+            }
+            rootTasks.add(i);
+        }
+
+        final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        final LinkedBlockingQueue<Future<T>> completed = new LinkedBlockingQueue<Future<T>>();
+        final Map<Future<T>, Integer> futures = new HashMap<Future<T>, Integer>();
+        final List<T> results = new ArrayList<T>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            results.add(null);
+        }
+
+        try {
+            for (Map.Entry<String, List<Integer>> rootTasks : tasksByRoot.entrySet()) {
+                final String cvsRoot = rootTasks.getKey();
+                final ExecutorService executor = Executors.newFixedThreadPool(Math.min(permitsPerRoot,
+                        rootTasks.getValue().size()), new NamingThreadFactory(new DaemonThreadFactory(), name));
+                executors.add(executor);
+                final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor, completed);
+                for (Integer index : rootTasks.getValue()) {
+                    final Callable<T> task = tasks.get(index);
+                    final boolean holdsPermit = taskPermits.get(index);
+                    futures.put(completionService.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            return holdsPermit ? CvsRootTaskRunner.this.call(cvsRoot, task) : task.call();
+                        }
+                    }), index);
+                }
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                final Future<T> future = completed.take();
+                try {
+                    results.set(futures.get(future), future.get());
+                } catch (ExecutionException ex) {
+                    throw rethrow(ex.getCause());
+                } catch (CancellationException ex) {
+                    throw new InterruptedException("CVS task was cancelled");
+                }
+            }
+        } finally {
+            // cancels anything still pending if we're leaving early due to a failure
+            for (Future<T> future : futures.keySet()) {
+                future.cancel(true);
+            }
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+            // don't return until cancelled tasks have finished so callers can safely
+            // clean up anything those tasks were working on
+            final long deadline = System.currentTimeMillis() + stopTimeout;
+            for (ExecutorService executor : executors) {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS)) {
+                    throw new IOException(name + " still has tasks running "
+                            + TimeUnit.MILLISECONDS.toSeconds(stopTimeout) + " second(s) after they were cancelled");
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Whether any task is currently running or waiting against a CVSROOT.
+     */
+    static boolean isInUse(final String cvsRoot) {
+        synchronized (PERMITS) {
+            return PERMITS.containsKey(cvsRoot);
+        }
+    }
+
+    /**
+     * Gets the permits shared by every task against a CVSROOT and counts the caller as using them. If the number of
+     * permits has been changed since they were created then they're resized in place, so tasks already holding
+     * a permit count towards the new limit.
+     */
+    private static RootPermits register(final String cvsRoot, final int permitsPerRoot) {
+        synchronized (PERMITS) {
+            RootPermits permits = PERMITS.get(cvsRoot);
+            if (permits == null) {
+                permits = new RootPermits(permitsPerRoot);
+                PERMITS.put(cvsRoot, permits);
+            } else {
+                permits.resize(permitsPerRoot);
+            }
+            permits.users++;
+            return permits;
+        }
+    }
+
+    private static void unregister(final String cvsRoot, final RootPermits permits) {
+        synchronized (PERMITS) {
+            if (--permits.users == 0) {
+                PERMITS.remove(cvsRoot);
+            }
+        }
+    }
+
+    private static IOException rethrow(final Throwable cause) throws InterruptedException {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    private static final class RootPermits {
+        private final ResizableSemaphore semaphore;
+        private int size;
+        private int users;
+
+        private RootPermits(final int size) {
+            this.size = size;
+            this.semaphore = new ResizableSemaphore(size);
+        }
+
+        private void resize(final int newSize) {
+            if (newSize > size) {
+                semaphore.release(newSize - size);
+            } else if (newSize < size) {
+                // permits still held are given back to the smaller pool, so nothing new
+                // starts until enough of them have been released
+                semaphore.reducePermits(size - newSize);
+            }
+            size = newSize;
+        }
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(final int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+}
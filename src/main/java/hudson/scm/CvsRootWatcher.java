@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.triggers.SCMTrigger;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Watches every module in use by any job for commits with one <tt>rlog</tt> per module and branch or tag each
+ * minute, rather than each job asking the server separately. Modules are grouped by CVSROOT so each server is
+ * visited once per run, and the commits seen over the last day are kept in memory. When new commits turn up, every
+ * job using that module is asked to poll, and a job's poll is answered from the watcher without contacting the
+ * server when nothing has been committed to any of its modules since its last build.
+ * <p>
+ * Watching starts with the first run after a module comes into use, so a job only benefits once the watcher has
+ * covered everything since its last build. Modules whose CVSROOT, name or branch or tag use build parameters or
+ * other variables can't be resolved outside a build and are left to each job's own polling, as are jobs that don't
+ * poll at all. Each window overlaps the previous one by a few minutes to pick up commits that took a while to show
+ * up in the log. A failed check leaves what was already seen in place, so the next check carries on from where the
+ * last successful one finished, but a module that hasn't been checked successfully for a couple of runs stops
+ * answering polls until it has.
+ */
+@Extension
+public final class CvsRootWatcher extends AsyncPeriodicWork {
+
+    /**
+     * If set, commits are watched for centrally rather than by each job.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CvsRootWatcher.class.getName() + ".enabled");
+
+    /**
+     * How far each window reaches back over the previous one, in milliseconds.
+     */
+    private static final long OVERLAP = 5 * MIN;
+
+    /**
+     * How long commits are remembered for, in milliseconds.
+     */
+    private static final long WINDOW = DAY;
+
+    /**
+     * How long after its last successful check a module stops answering polls, in milliseconds.
+     */
+    private static final long STALE_AFTER = 2 * MIN;
+
+    private static final Map<String, WatchedModule> MODULES = new HashMap<String, WatchedModule>();
+
+    public CvsRootWatcher() {
+        super("CVS root watcher");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+        if (!ENABLED) {
+            synchronized (MODULES) {
+                MODULES.clear();
+            }
+            return;
+        }
+
+        // group everything in use by CVSROOT, keeping one of the SCMs using each module to run rlog through
+        final Map<String, Map<String, Subscription>> roots = new TreeMap<String, Map<String, Subscription>>();
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            if (project.isDisabled() || !(project.getScm() instanceof AbstractCvs)
+                    || project.getTrigger(SCMTrigger.class) == null) {
+                continue;
+            }
+            final AbstractCvs scm = (AbstractCvs) project.getScm();
+            for (CvsRepository repository : scm.getRepositories()) {
+                for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                    for (CvsModule module : item.getModules()) {
+                        final String key = getKey(repository, item, module);
+                        if (key == null) {
+                            continue;
+                        }
+                        Map<String, Subscription> modules = roots.get(repository.getCvsRoot());
+                        if (modules == null) {
+                            modules = new LinkedHashMap<String, Subscription>();
+                            roots.put(repository.getCvsRoot(), modules);
+                        }
+                        Subscription subscription = modules.get(key);
+                        if (subscription == null) {
+                            subscription = new Subscription(scm, repository, item, module);
+                            modules.put(key, subscription);
+                        }
+                        subscription.projects.add(project);
+                    }
+                }
+            }
+        }
+
+        final Set<String> watched = new HashSet<String>();
+        for (Map.Entry<String, Map<String, Subscription>> root : roots.entrySet()) {
+            listener.getLogger().println("Checking " + root.getKey() + " for commits to " + root.getValue().size()
+                    + " modules");
+            for (Map.Entry<String, Subscription> entry : root.getValue().entrySet()) {
+                watched.add(entry.getKey());
+                check(entry.getKey(), entry.getValue(), listener);
+            }
+        }
+
+        synchronized (MODULES) {
+            MODULES.keySet().retainAll(watched);
+        }
+    }
+
+    private static void check(final String key, final Subscription subscription, final TaskListener listener)
+            throws InterruptedException {
+        final Date end = new Date();
+        final Date start;
+        synchronized (MODULES) {
+            final WatchedModule module = getModule(key);
+            start = new Date((module.coveredTo == null ? end.getTime() : module.coveredTo.getTime()) - OVERLAP);
+        }
+
+        final CvsChangeSet changeSet;
+        try {
+            changeSet = subscription.scm.getRemoteLogForModule(subscription.repository, subscription.item,
+                    subscription.module, start, end, new EnvVars(), listener, null);
+        } catch (IOException ex) {
+            listener.error("Could not check " + key.replace('\n', ' ') + " for commits: " + ex);
+            return;
+        } catch (RuntimeException ex) {
+            listener.error("Could not check " + key.replace('\n', ' ') + " for commits: " + ex);
+            return;
+        }
+
+        if (record(key, start, end, changeSet)) {
+            for (AbstractProject<?, ?> project : subscription.projects) {
+                project.schedulePolling();
+            }
+        }
+    }
+
+    /**
+     * Adds the result of a successful check to what the watcher has seen of a module.
+     * @return whether the check found commits that polls haven't already been asked about
+     */
+    static boolean record(final String key, final Date start, final Date end, final CvsChangeSet changeSet) {
+        boolean newCommits = false;
+        synchronized (MODULES) {
+            final WatchedModule module = getModule(key);
+            final boolean firstCheck = module.coveredTo == null;
+            for (CVSChangeLogSet.CVSChangeLog change : changeSet.getChanges()) {
+                if (change.getChangeDate() != null) {
+                    module.commitTimes.add(change.getChangeDate().getTime());
+                }
+            }
+            for (CvsFile file : changeSet.getFiles()) {
+                if (!module.seenFiles.containsKey(file)) {
+                    module.seenFiles.put(file, end.getTime());
+                    // the first window reaches back before the watcher started, so jobs have already polled for it
+                    newCommits = !firstCheck;
+                }
+            }
+
+            // forget anything older than the window, and with it the ability to answer for that period
+            final long oldest = end.getTime() - WINDOW;
+            for (Iterator<Long> itr = module.seenFiles.values().iterator(); itr.hasNext();) {
+                if (itr.next() < oldest) {
+                    itr.remove();
+                }
+            }
+            module.commitTimes.headSet(oldest).clear();
+            if (module.coveredFrom == null) {
+                module.coveredFrom = start;
+            } else if (module.coveredFrom.getTime() < oldest) {
+                module.coveredFrom = new Date(oldest);
+            }
+            module.coveredTo = end;
+        }
+        return newCommits;
+    }
+
+    private static WatchedModule getModule(final String key) {
+        WatchedModule module = MODULES.get(key);
+        if (module == null) {
+            module = new WatchedModule();
+            MODULES.put(key, module);
+        }
+        return module;
+    }
+
+    /**
+     * Checks whether the watcher can vouch that nothing has been committed to any module of a repository since the
+     * given time.
+     * @return the time up to which nothing has been committed, or null if the watcher can't answer for every module,
+     *         hasn't checked one of them recently or has seen a commit
+     */
+    static Date getQuietUntil(final CvsRepository repository, final Date since) {
+        if (!ENABLED) {
+            return null;
+        }
+
+        final long stale = System.currentTimeMillis() - STALE_AFTER;
+        Date quietUntil = null;
+        synchronized (MODULES) {
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                for (CvsModule cvsModule : item.getModules()) {
+                    final String key = getKey(repository, item, cvsModule);
+                    final WatchedModule module = key == null ? null : MODULES.get(key);
+                    if (module == null || module.coveredFrom == null || module.coveredFrom.after(since)
+                            || module.coveredTo.getTime() < stale
+                            || !module.commitTimes.tailSet(since.getTime()).isEmpty()) {
+                        return null;
+                    }
+                    if (quietUntil == null || module.coveredTo.before(quietUntil)) {
+                        quietUntil = module.coveredTo;
+                    }
+                }
+            }
+        }
+        return quietUntil;
+    }
+
+    /**
+     * @return what identifies a module to the watcher, or null if it uses variables that can only be resolved
+     *         within a build
+     */
+    static String getKey(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module) {
+        final CvsRepositoryLocation location = item.getLocation();
+        final String key = repository.getCvsRoot() + '\n' + module.getRemoteName() + '\n'
+                + module.getIncludedPathList() + '\n' + location.getLocationType() + ':'
+                + location.getLocationName() + ':' + location.isUseHeadIfNotFound();
+        return key.contains("$") ? null : key;
+    }
+
+    private static final class Subscription {
+        private final AbstractCvs scm;
+        private final CvsRepository repository;
+        private final CvsRepositoryItem item;
+        private final CvsModule module;
+        private final List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+
+        private Subscription(final AbstractCvs scm, final CvsRepository repository, final CvsRepositoryItem item,
+                             final CvsModule module) {
+            this.scm = scm;
+            this.repository = repository;
+            this.item = item;
+            this.module = module;
+        }
+    }
+
+    private static final class WatchedModule {
+        /**
+         * The period the watcher has seen every commit for, or nulls if it hasn't checked successfully yet.
+         */
+        private Date coveredFrom;
+        private Date coveredTo;
+        /**
+         * The times of the commits seen within the window.
+         */
+        private final TreeSet<Long> commitTimes = new TreeSet<Long>();
+        /**
+         * Every file revision seen within the window, with when it was first seen.
+         */
+        private final Map<CvsFile, Long> seenFiles = new HashMap<CvsFile, Long>();
+    }
+}
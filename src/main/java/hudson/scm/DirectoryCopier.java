@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jenkinsci.remoting.RoleChecker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies the contents of a directory into another directory on the same node. Where <tt>cp</tt> supports it the
+ * copy is made with <tt>--reflink=auto</tt> so filesystems that support copy-on-write (btrfs, XFS, ZFS) share the
+ * underlying blocks and the copy takes seconds regardless of size. Anywhere else a normal file-by-file copy is made.
+ * <p>
+ * Hard links are deliberately not used: the CVS client rewrites files in place, so an update in one copy would
+ * silently change the other.
+ */
+final class DirectoryCopier implements FilePath.FileCallable<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(DirectoryCopier.class.getName());
+
+    private final String target;
+
+    /**
+     * @param target the absolute path of the directory to copy into, which will be created if it doesn't exist
+     */
+    DirectoryCopier(final String target) {
+        this.target = target;
+    }
+
+    @Override
+    public Void invoke(final File source, final VirtualChannel channel) throws IOException, InterruptedException {
+        final File targetDirectory = new File(target);
+        if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+            throw new IOException("Could not create directory " + targetDirectory);
+        }
+
+        if (!Functions.isWindows() && reflinkCopy(source, targetDirectory)) {
+            return null;
+        }
+
+        // file dates need to be kept so CVS doesn't think every file has been locally modified
+        FileUtils.copyDirectory(source, targetDirectory, true);
+        return null;
+    }
+
+    private static boolean reflinkCopy(final File source, final File targetDirectory) throws InterruptedException {
+        try {
+            final Process process = new ProcessBuilder("cp", "-a", "--reflink=auto",
+                    source.getAbsolutePath() + "/.", targetDirectory.getAbsolutePath())
+                    .redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            IOUtils.copy(process.getInputStream(), new NullOutputStream());
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            LOGGER.log(Level.FINE, "cp could not copy {0}, falling back to a plain copy", source);
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "cp not available, falling back to a plain copy", ex);
+        }
+        return false;
+    }
+
+    @Override
+    public void checkRoles(final RoleChecker checker) throws SecurityException {
+        // Do nothing
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.List;
+
+/**
+ * Lets polling stop fetching changes as soon as it has found one that isn't in an excluded region, since that alone
+ * decides a build is needed. The revision state returned by such a poll leaves out the changes to the modules it
+ * didn't check, which does no harm: every poll fetches everything since the last build again, and the build it
+ * triggers records a complete state at checkout as usual.
+ */
+public final class EarlyExitPolling {
+
+    /**
+     * If set, polling fetches one module at a time and stops at the first change needing a build.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(EarlyExitPolling.class.getName() + ".enabled");
+
+    private EarlyExitPolling() {
+    }
+
+    /**
+     * @return true if any of the changes falls outside every excluded region
+     */
+    static boolean containsIncludedChange(final List<CvsFile> changes, final ExcludedRegionMatcher excludedRegions) {
+        for (CvsFile change : changes) {
+            if (excludedRegions.getExcludingRegion(change.getName()) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
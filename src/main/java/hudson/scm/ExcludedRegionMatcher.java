@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which changed files fall in a repository's excluded regions, compiling the regions once rather than on
+ * every poll. Regions that are just a literal path, or a literal path followed by <tt>.*</tt>, are looked up in a
+ * trie of those paths. Every other region is joined into one regular expression with a capturing group around each
+ * region, so a file is only run through a single match and the group that matched tells which region excluded it.
+ * Regions containing back references would be broken by the extra groups so are matched on their own.
+ * <p>
+ * A region matches a file name only if it matches the whole name, as {@link Matcher#matches()} does.
+ */
+final class ExcludedRegionMatcher {
+
+    /**
+     * How many of the files excluded by each region are named in the build log.
+     */
+    private static final int LOGGED_FILES = 5;
+
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    private final TrieNode literals = new TrieNode();
+    private final Pattern combined;
+    /**
+     * The region each of the combined expression's top level groups was made from, keyed by group number.
+     */
+    private final Map<Integer, String> combinedGroups = new HashMap<Integer, String>();
+    private final List<Pattern> separate = new ArrayList<Pattern>();
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if any of the regions isn't a valid regular expression, with
+     *         the offending region as its pattern
+     */
+    ExcludedRegionMatcher(final ExcludedRegion[] regions) {
+        final StringBuilder expression = new StringBuilder();
+        int group = 1;
+        for (ExcludedRegion region : regions) {
+            final String regex = region.getPattern();
+            // compiling every region on its own makes sure a broken one is reported by itself
+            final Pattern pattern = Pattern.compile(regex);
+
+            final String body = stripAnchors(regex);
+            if (body.endsWith(".*") && !isEscaped(body, body.length() - 2)) {
+                final String prefix = getLiteral(body.substring(0, body.length() - 2));
+                if (prefix != null) {
+                    literals.add(prefix, true, regex);
+                    continue;
+                }
+            }
+            final String literal = getLiteral(body);
+            if (literal != null) {
+                literals.add(literal, false, regex);
+                continue;
+            }
+
+            if (BACK_REFERENCE.matcher(regex).find()) {
+                separate.add(pattern);
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append('|');
+            }
+            expression.append('(').append(regex).append(')');
+            combinedGroups.put(group, regex);
+            group += 1 + pattern.matcher("").groupCount();
+        }
+        combined = expression.length() == 0 ? null : Pattern.compile(expression.toString());
+    }
+
+    /**
+     * @return the region that excludes the given file, or null if the file isn't excluded
+     */
+    String getExcludingRegion(final String name) {
+        final String literal = literals.find(name);
+        if (literal != null) {
+            return literal;
+        }
+
+        if (combined != null) {
+            final Matcher matcher = combined.matcher(name);
+            if (matcher.matches()) {
+                for (Map.Entry<Integer, String> entry : combinedGroups.entrySet()) {
+                    if (matcher.start(entry.getKey()) != -1) {
+                        return entry.getValue();
+                    }
+                }
+            }
+        }
+
+        for (Pattern pattern : separate) {
+            if (pattern.matcher(name).matches()) {
+                return pattern.pattern();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the files in an excluded region, writing a summary of what was removed for each region to the log.
+     * @return the changes outside every excluded region, in their original order
+     */
+    List<CvsFile> filter(final List<CvsFile> changes, final PrintStream logger) {
+        final List<CvsFile> included = new ArrayList<CvsFile>();
+        final Map<String, List<String>> excluded = new LinkedHashMap<String, List<String>>();
+        for (CvsFile change : changes) {
+            final String region = getExcludingRegion(change.getName());
+            if (region == null) {
+                included.add(change);
+                continue;
+            }
+            List<String> names = excluded.get(region);
+            if (names == null) {
+                names = new ArrayList<String>();
+                excluded.put(region, names);
+            }
+            names.add(change.getName());
+        }
+
+        for (Map.Entry<String, List<String>> entry : excluded.entrySet()) {
+            final List<String> names = entry.getValue();
+            if (names.size() == 1) {
+                logger.println("Skipping file '" + names.get(0) + "' since it matches exclude pattern " + entry.getKey());
+                continue;
+            }
+            final StringBuilder message = new StringBuilder("Skipping ").append(names.size())
+                    .append(" files since they match exclude pattern ").append(entry.getKey()).append(": ");
+            for (int i = 0; i < names.size() && i < LOGGED_FILES; i++) {
+                message.append(i == 0 ? "'" : ", '").append(names.get(i)).append('\'');
+            }
+            if (names.size() > LOGGED_FILES) {
+                message.append(" and ").append(names.size() - LOGGED_FILES).append(" more");
+            }
+            logger.println(message);
+        }
+        return included;
+    }
+
+    /**
+     * Removes a leading <tt>^</tt> and trailing <tt>$</tt>, neither of which change what a whole name match does.
+     */
+    private static String stripAnchors(final String regex) {
+        String body = regex;
+        if (body.startsWith("^")) {
+            body = body.substring(1);
+        }
+        if (body.endsWith("$") && !isEscaped(body, body.length() - 1)) {
+            body = body.substring(0, body.length() - 1);
+        }
+        return body;
+    }
+
+    /**
+     * @return true if the character at the given index is preceded by an odd number of backslashes
+     */
+    private static boolean isEscaped(final String regex, final int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * @return the text a regular expression matches if it only matches literal text, otherwise null
+     */
+    private static String getLiteral(final String regex) {
+        final StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                // an escaped punctuation character stands for itself, but escaped letters and digits are classes etc.
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(regex.charAt(++i));
+            } else if (METACHARACTERS.indexOf(c) != -1) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+        /**
+         * The region matching any name starting with the path to this node.
+         */
+        private String prefixRegion;
+        /**
+         * The region matching exactly the path to this node.
+         */
+        private String exactRegion;
+
+        private void add(final String path, final boolean prefix, final String region) {
+            TrieNode node = this;
+            for (int i = 0; i < path.length(); i++) {
+                TrieNode child = node.children.get(path.charAt(i));
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(path.charAt(i), child);
+                }
+                node = child;
+            }
+            if (prefix && node.prefixRegion == null) {
+                node.prefixRegion = region;
+            } else if (!prefix && node.exactRegion == null) {
+                node.exactRegion = region;
+            }
+        }
+
+        private String find(final String name) {
+            TrieNode node = this;
+            for (int i = 0; i < name.length(); i++) {
+                if (node.prefixRegion != null) {
+                    return node.prefixRegion;
+                }
+                node = node.children.get(name.charAt(i));
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node.prefixRegion != null ? node.prefixRegion : node.exactRegion;
+        }
+    }
+}
@@ -44,4 +44,11 @@ public interface ICvsDescriptor {
      * @return the encoding selected by the user, defaults to UTF-8
      */
     public String getChangelogEncoding();
+
+    /**
+     * The number of CVS commands that can be run against a single CVSROOT at the same time
+     * when checking out or updating the modules of a job.
+     * @return the maximum number of concurrent connections per CVSROOT, 1 to run all commands sequentially
+     */
+    public int getMaxConcurrentConnections();
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.EnvVars;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of modules from a single repository item that are checked out or updated together.
+ */
+final class ModuleGroup {
+
+    /**
+     * If set, modules in the same repository item that check out under their own name are fetched with a single
+     * checkout or update command rather than one command per module.
+     */
+    public static boolean BATCH_MODULES = Boolean.getBoolean(ModuleGroup.class.getName() + ".batchModules");
+
+    final CvsRepository repository;
+    final CvsRepositoryItem item;
+    final List<CvsModule> modules = new ArrayList<CvsModule>();
+
+    ModuleGroup(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module) {
+        this.repository = repository;
+        this.item = item;
+        this.modules.add(module);
+    }
+
+    String getDescription(final EnvVars envVars) {
+        final StringBuilder description = new StringBuilder(modules.size() == 1 ? "module " : "modules ");
+        for (int i = 0; i < modules.size(); i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append('\'').append(envVars.expand(modules.get(i).getRemoteName())).append('\'');
+        }
+        return description.append(" from ").append(envVars.expand(repository.getCvsRoot())).toString();
+    }
+
+    /**
+     * Splits the modules of the given repositories into the units of work that will each be sent to the server
+     * as a single command. Without {@link #BATCH_MODULES} every module is its own group. With it, all modules in a
+     * repository item that check out under their own name into the workspace root share one group, since they
+     * share a CVSROOT, branch/tag and date and can therefore be fetched by one checkout or update command.
+     */
+    static List<ModuleGroup> getModuleGroups(final CvsRepository[] repositories, final boolean isFlatten,
+                                             final EnvVars envVars) {
+        final List<ModuleGroup> groups = new ArrayList<ModuleGroup>();
+        for (CvsRepository repository : repositories) {
+            for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                ModuleGroup batch = null;
+                for (CvsModule cvsModule : item.getModules()) {
+                    final boolean batchable = BATCH_MODULES && !isFlatten && !cvsModule.isAlternativeCheckoutName()
+                            && !cvsModule.isSparse() && !envVars.expand(cvsModule.getRemoteName()).contains("/");
+                    if (!batchable) {
+                        groups.add(new ModuleGroup(repository, item, cvsModule));
+                    } else if (batch == null) {
+                        batch = new ModuleGroup(repository, item, cvsModule);
+                        groups.add(batch);
+                    } else {
+                        batch.modules.add(cvsModule);
+                    }
+                }
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Splits module groups into chains that can safely be checked out alongside each other. Groups whose
+     * directories nest inside one another, or that check out into the same parent directory (such as local sub
+     * modules <tt>a/b</tt> and <tt>a/c</tt>), all write to the same <tt>CVS/Entries</tt> file so end up in the same
+     * chain, as does every group of a flattened checkout since they all share the workspace root.
+     * @return the chains, each holding its groups in their original order
+     */
+    static List<List<ModuleGroup>> getIndependentGroups(final List<ModuleGroup> groups, final boolean isFlatten,
+                                                        final EnvVars envVars) {
+        final List<List<ModuleGroup>> chains = new ArrayList<List<ModuleGroup>>();
+        if (isFlatten) {
+            chains.add(new ArrayList<ModuleGroup>(groups));
+            return chains;
+        }
+
+        final List<Set<String>> chainPaths = new ArrayList<Set<String>>();
+        for (ModuleGroup group : groups) {
+            final Set<String> paths = new HashSet<String>();
+            for (CvsModule module : group.modules) {
+                final String checkoutName = envVars.expand(module.getCheckoutName());
+                paths.add(checkoutName);
+                if (checkoutName.contains("/")) {
+                    paths.add(checkoutName.substring(0, checkoutName.lastIndexOf('/')));
+                }
+            }
+
+            // merge every chain this group overlaps with into one, keeping the groups in their original order
+            List<ModuleGroup> chain = null;
+            Set<String> merged = null;
+            for (int i = 0; i < chains.size(); i++) {
+                if (!overlaps(paths, chainPaths.get(i))) {
+                    continue;
+                }
+                if (chain == null) {
+                    chain = chains.get(i);
+                    merged = chainPaths.get(i);
+                    continue;
+                }
+                chain.addAll(chains.remove(i));
+                merged.addAll(chainPaths.remove(i));
+                i--;
+            }
+            if (chain == null) {
+                chain = new ArrayList<ModuleGroup>();
+                merged = new HashSet<String>();
+                chains.add(chain);
+                chainPaths.add(merged);
+            }
+            chain.add(group);
+            merged.addAll(paths);
+        }
+
+        for (List<ModuleGroup> chain : chains) {
+            Collections.sort(chain, new Comparator<ModuleGroup>() {
+                @Override
+                public int compare(final ModuleGroup o1, final ModuleGroup o2) {
+                    return groups.indexOf(o1) - groups.indexOf(o2);
+                }
+            });
+        }
+        return chains;
+    }
+
+    /**
+     * @return true if any of the given paths is the same as, or inside, any of the others
+     */
+    private static boolean overlaps(final Set<String> paths, final Set<String> others) {
+        for (String path : paths) {
+            for (String other : others) {
+                if (path.equals(other) || path.startsWith(other + "/") || other.startsWith(path + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the work normally done once every module has been checked out while the checkout is still going on. The
+ * change log for each repository is fetched from the start of the checkout, and each module's workspace state is
+ * captured (and its sticky dates removed) as soon as that module has finished, so the post-checkout work overlaps
+ * the downloads of the modules that follow it.
+ * <p>
+ * Anything the pipeline didn't manage to do is done as before once the checkout has finished. This includes modules
+ * checked out inside, or around, another module's directory: capturing those early would either miss files or walk
+ * into a directory that's still being checked out, so they're left until everything has finished.
+ * <p>
+ * Every build's pipeline runs on the same small pool of threads, so lots of builds checking out at once don't each
+ * get threads of their own. The change logs are fetched one module at a time, each taking a permit from the same
+ * per-CVSROOT limit as the checkout.
+ */
+final class PostCheckoutPipeline {
+
+    /**
+     * If set, the change log is fetched while the checkout runs, and each module's workspace state is captured and
+     * its sticky dates removed as soon as that module has been checked out rather than once every module has.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(PostCheckoutPipeline.class.getName() + ".enabled");
+
+    private static final Logger LOGGER = Logger.getLogger(PostCheckoutPipeline.class.getName());
+
+    /**
+     * How many threads are shared by the pipelines of every build.
+     */
+    private static final int THREADS = 4;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(),
+            "CVS post-checkout"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Map<Run<?, ?>, PostCheckoutPipeline> PIPELINES = new HashMap<Run<?, ?>, PostCheckoutPipeline>();
+
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private boolean closed = false;
+    private final Set<String> checkoutNames = new HashSet<String>();
+    private final Set<String> nestedNames = new HashSet<String>();
+    private final Map<List<Object>, ModuleTask> moduleTasks = new HashMap<List<Object>, ModuleTask>();
+    private final Map<CvsRepository, Future<List<CVSChangeLogSet.CVSChangeLog>>> changeLogs =
+            new HashMap<CvsRepository, Future<List<CVSChangeLogSet.CVSChangeLog>>>();
+
+    PostCheckoutPipeline() {
+    }
+
+    /**
+     * Gets the pipeline for a build that's being checked out, creating it if this is the first checkout for the build.
+     */
+    static PostCheckoutPipeline forBuild(final Run<?, ?> build) {
+        synchronized (PIPELINES) {
+            PostCheckoutPipeline pipeline = PIPELINES.get(build);
+            if (pipeline == null) {
+                pipeline = new PostCheckoutPipeline();
+                PIPELINES.put(build, pipeline);
+            }
+            return pipeline;
+        }
+    }
+
+    /**
+     * Takes the pipeline for a build once its checkout has finished.
+     * @return the pipeline, or null if the build's checkout didn't use one
+     */
+    static PostCheckoutPipeline remove(final Run<?, ?> build) {
+        synchronized (PIPELINES) {
+            return PIPELINES.remove(build);
+        }
+    }
+
+    /**
+     * Throws away the pipeline for a build whose checkout has failed, stopping anything it's still running. Builds
+     * that finish without taking their pipeline have it thrown away by {@link AbstractCvs.PipelineCleaner}.
+     */
+    static void discard(final Run<?, ?> build) {
+        final PostCheckoutPipeline pipeline = remove(build);
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * Records the directories the next checkout will write to. Any of them nested inside (or around) a directory
+     * that's already been registered is left to be processed after the checkout, as is the directory it nests with.
+     * If that other directory is already being processed, this waits for it to finish so that nothing walks a
+     * directory whilst it's being checked out.
+     * @param names the checkout names of every module about to be checked out
+     */
+    void register(final List<String> names) throws InterruptedException {
+        final List<ModuleTask> running = new ArrayList<ModuleTask>();
+        synchronized (this) {
+            for (String name : names) {
+                for (String existing : checkoutNames) {
+                    if (isNested(name, existing)) {
+                        nestedNames.add(name);
+                        nestedNames.add(existing);
+                    }
+                }
+                checkoutNames.add(name);
+            }
+            for (ModuleTask task : moduleTasks.values()) {
+                if (nestedNames.contains(task.checkoutName)) {
+                    running.add(task);
+                }
+            }
+            moduleTasks.values().removeAll(running);
+        }
+        for (ModuleTask task : running) {
+            try {
+                task.future.get();
+            } catch (ExecutionException ex) {
+                // the module will be processed again after the checkout
+            }
+        }
+    }
+
+    private static boolean isNested(final String name, final String other) {
+        return name.equals(other) || name.startsWith(other + "/") || other.startsWith(name + "/");
+    }
+
+    /**
+     * Starts processing a module that's just been checked out.
+     * @param checkoutName the directory the module was checked out to
+     * @param task captures the module's workspace state, removing its sticky dates along the way
+     */
+    synchronized void submitModule(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module,
+                                   final String checkoutName, final Callable<List<CvsFile>> task) {
+        if (nestedNames.contains(checkoutName) || closed) {
+            return;
+        }
+        moduleTasks.put(getKey(repository, item, module), new ModuleTask(checkoutName, submit(task)));
+    }
+
+    /**
+     * Starts fetching the change log for a repository, if it isn't already being fetched.
+     */
+    synchronized void submitChangeLog(final CvsRepository repository,
+                                      final Callable<List<CVSChangeLogSet.CVSChangeLog>> task) {
+        if (!changeLogs.containsKey(repository) && !closed) {
+            changeLogs.put(repository, submit(task));
+        }
+    }
+
+    /**
+     * @return the module's workspace state, or null if the module wasn't processed or processing it failed, in
+     *         which case it still needs its state capturing and its sticky dates removing
+     */
+    List<CvsFile> getModuleState(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module)
+            throws InterruptedException {
+        final ModuleTask task;
+        synchronized (this) {
+            task = moduleTasks.get(getKey(repository, item, module));
+        }
+        return task == null ? null : getResult(task.future);
+    }
+
+    /**
+     * @return the repository's change log, or null if it wasn't fetched or fetching it failed
+     */
+    List<CVSChangeLogSet.CVSChangeLog> getChangeLog(final CvsRepository repository) throws InterruptedException {
+        final Future<List<CVSChangeLogSet.CVSChangeLog>> changeLog;
+        synchronized (this) {
+            changeLog = changeLogs.get(repository);
+        }
+        return changeLog == null ? null : getResult(changeLog);
+    }
+
+    /**
+     * Stops anything the pipeline is still running once everything it produced has been used, and stops it taking
+     * on anything new.
+     */
+    synchronized void shutdown() {
+        closed = true;
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        futures.clear();
+    }
+
+    private <T> Future<T> submit(final Callable<T> task) {
+        final Future<T> future = EXECUTOR.submit(task);
+        futures.add(future);
+        return future;
+    }
+
+    private static <T> T getResult(final Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            // the caller will redo the work, which will report the failure properly if it happens again
+            LOGGER.log(Level.FINE, "Post-checkout processing failed", ex.getCause());
+            return null;
+        }
+    }
+
+    private static List<Object> getKey(final CvsRepository repository, final CvsRepositoryItem item,
+                                       final CvsModule module) {
+        return Arrays.<Object>asList(repository, item, module);
+    }
+
+    private static final class ModuleTask {
+        private final String checkoutName;
+        private final Future<List<CvsFile>> future;
+
+        private ModuleTask(final String checkoutName, final Future<List<CvsFile>> future) {
+            this.checkoutName = checkoutName;
+            this.future = future;
+        }
+    }
+}
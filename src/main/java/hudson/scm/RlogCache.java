@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares parsed <tt>rlog</tt> output between polls of the same module, so jobs watching the same module and branch
+ * cause fewer requests to the server. The changes seen for each module are kept as a window running from the
+ * earliest date any poll asked for up to the latest fetch. A poll starting inside the window only fetches what has
+ * been committed since the window's end, a poll starting before it fetches its own dates and the window grows to
+ * cover them, and each poll is given just the changes between its own dates. A poll
+ * arriving whilst another poll of the same module is fetching waits for that fetch rather than starting its own.
+ * <p>
+ * Windows that haven't been used for longer than the time to live are dropped. Within that time, a poll ending no
+ * more than the time to live after the window's end is answered from the window without fetching, so it may not see
+ * commits made in the last part of that time. They are picked up by the next poll, since polls always start from
+ * the last build. Failed fetches leave the window as it was, so the next poll tries again.
+ * <p>
+ * The cached changes are shared by every poll that asks for them so must not be modified. Only the files are
+ * used when polling, which is why change logs for builds are never fetched through here: building a change log
+ * attaches each change to its build.
+ */
+final class RlogCache {
+
+    /**
+     * How long, in seconds, the changes fetched by polls of a module and branch or tag are kept for other polls of
+     * the same module, and how far short of a poll's end those changes can stop whilst still answering it. With 0,
+     * polls only ever fetch what other polls haven't already fetched.
+     */
+    public static int TTL = Integer.getInteger(RlogCache.class.getName() + ".ttl", 0);
+
+    /**
+     * How far each fetch reaches back over the end of the window, in milliseconds, to pick up commits that took a
+     * while to show up in the log.
+     */
+    private static final long OVERLAP = 5 * 60 * 1000L;
+
+    private static final RlogCache INSTANCE = new RlogCache();
+
+    private final Map<String, Window> windows = new HashMap<String, Window>();
+
+    private RlogCache() {
+    }
+
+    static RlogCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs <tt>rlog</tt> for a module between two dates and parses its output.
+     */
+    interface Fetcher {
+        CvsChangeSet fetch(Date startTime, Date endTime) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Gets the changes made to a module between two dates, fetching whatever the module's window doesn't cover.
+     * @param key identifies the module: the expanded CVSROOT and connection, module and branch or tag
+     * @param ttl how long a window is kept for since it was last used, and how far short of a poll's end it can
+     *            stop whilst still answering that poll, in milliseconds
+     * @param fetcher runs the command and parses its output
+     * @param listener where to note that the output was reused
+     */
+    CvsChangeSet get(final String key, final Date startTime, final Date endTime, final long ttl,
+                     final Fetcher fetcher, final TaskListener listener) throws IOException, InterruptedException {
+        final Window window;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (Iterator<Window> itr = windows.values().iterator(); itr.hasNext();) {
+                if (itr.next().lastUsed + ttl < now) {
+                    itr.remove();
+                }
+            }
+
+            Window existing = windows.get(key);
+            if (existing == null) {
+                existing = new Window();
+                windows.put(key, existing);
+            }
+            existing.lastUsed = now;
+            window = existing;
+        }
+
+        // only one poll of a module fetches at a time, anyone else waits for it and then uses what it fetched
+        synchronized (window) {
+            if (window.start == null) {
+                window.merge(startTime, endTime, fetcher.fetch(startTime, endTime));
+            } else if (startTime.before(window.start)) {
+                // reach at least as far as the window so the two join up, and keep whatever the window has after that
+                final Date fetchEnd = endTime.before(window.start) ? window.start : endTime;
+                window.merge(startTime, fetchEnd, fetcher.fetch(startTime, fetchEnd));
+            } else if (window.end.getTime() + ttl < endTime.getTime()) {
+                final Date fetchStart = new Date(Math.max(window.end.getTime() - OVERLAP, window.start.getTime()));
+                window.merge(fetchStart, endTime, fetcher.fetch(fetchStart, endTime));
+            } else {
+                listener.getLogger().println("Using rlog output fetched by another poll of the same module");
+            }
+            return window.getChanges(startTime, endTime);
+        }
+    }
+
+    private static final class Window {
+        /**
+         * The period every change was fetched for, or nulls if nothing has been fetched yet.
+         */
+        private Date start;
+        private Date end;
+        private final List<CVSChangeLogSet.CVSChangeLog> changes = new ArrayList<CVSChangeLogSet.CVSChangeLog>();
+        private long lastUsed;
+
+        /**
+         * Adds a fetch to the window. The fetch has everything between its dates, so replaces whatever the window
+         * already had from then, including any changes without a date since those would have been fetched again.
+         */
+        private void merge(final Date fetchStart, final Date fetchEnd, final CvsChangeSet changeSet) {
+            for (Iterator<CVSChangeLogSet.CVSChangeLog> itr = changes.iterator(); itr.hasNext();) {
+                final Date changeDate = itr.next().getChangeDate();
+                if (changeDate == null || changeDate.after(fetchStart) && changeDate.before(fetchEnd)) {
+                    itr.remove();
+                }
+            }
+            changes.addAll(changeSet.getChanges());
+            if (start == null || fetchStart.before(start)) {
+                start = fetchStart;
+            }
+            if (end == null || fetchEnd.after(end)) {
+                end = fetchEnd;
+            }
+        }
+
+        /**
+         * Picks out the changes made between two dates, along with the latest revision of each file they touch.
+         */
+        private CvsChangeSet getChanges(final Date startTime, final Date endTime) {
+            final List<CVSChangeLogSet.CVSChangeLog> selected = new ArrayList<CVSChangeLogSet.CVSChangeLog>();
+            final Map<String, CvsFile> files = new LinkedHashMap<String, CvsFile>();
+            final Map<String, Date> fileDates = new HashMap<String, Date>();
+            for (CVSChangeLogSet.CVSChangeLog change : changes) {
+                final Date changeDate = change.getChangeDate();
+                if (changeDate != null && (!changeDate.after(startTime) || !changeDate.before(endTime))) {
+                    continue;
+                }
+                selected.add(change);
+                for (CVSChangeLogSet.File file : change.getFiles()) {
+                    final Date previous = fileDates.get(file.getFullName());
+                    if (previous == null || changeDate != null && changeDate.after(previous)) {
+                        files.put(file.getFullName(), CvsFile.make(file.getFullName(), file.getRevision(),
+                                file.isDead()));
+                        fileDates.put(file.getFullName(), changeDate == null ? new Date(0) : changeDate);
+                    }
+                }
+            }
+            return new CvsChangeSet(new ArrayList<CvsFile>(files.values()), selected);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import org.netbeans.lib.cvsclient.event.CVSAdapter;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a summary of a command's output to the build log rather than every line the server sends. File status
+ * lines (e.g. <tt>U path/to/file</tt>) are counted per directory, a progress line is written every so often while
+ * the command runs, and a summary is written when it finishes. The most recent raw lines are kept in a ring buffer
+ * and only written out if the command fails, so there's still something to diagnose the failure from. Servers that
+ * support tagged output send each line in several parts, which are put back together before being counted or kept.
+ */
+final class SummarizingListener extends CVSAdapter {
+
+    /**
+     * If set, checkout and update commands write a per-directory summary and periodic progress to the build log
+     * instead of a line for every file, which keeps the log small for large checkouts.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(SummarizingListener.class.getName() + ".enabled");
+
+    /**
+     * How many of the most recent lines of output are kept when {@link #ENABLED} is set, to be written to
+     * the build log if a command fails.
+     */
+    public static int LINES = Integer.getInteger(SummarizingListener.class.getName() + ".lines", 200);
+
+    /**
+     * How often a progress line is written whilst a command runs, in milliseconds.
+     */
+    private static final long PROGRESS_INTERVAL = 30000;
+
+    /**
+     * How many of the busiest directories are listed in the summary.
+     */
+    private static final int SUMMARY_DIRECTORIES = 10;
+
+    private static final String STATUSES = "UPAMRC?";
+
+    private final PrintStream logger;
+    private final String[] recentLines;
+    private final StringBuffer taggedLine = new StringBuffer();
+    private final Map<String, int[]> directoryCounts = new HashMap<String, int[]>();
+    private final int[] totals = new int[STATUSES.length()];
+    private int lineCount = 0;
+    private int errorCount = 0;
+    private long lastProgress = System.currentTimeMillis();
+
+    /**
+     * @param logger where to write progress and the summary
+     * @param bufferSize how many of the most recent lines to keep for writing out on failure
+     */
+    SummarizingListener(final PrintStream logger, final int bufferSize) {
+        this.logger = logger;
+        this.recentLines = new String[Math.max(bufferSize, 0)];
+    }
+
+    @Override
+    public void messageSent(final MessageEvent e) {
+        final String message = e.isTagged() ? MessageEvent.parseTaggedMessage(taggedLine, e.getMessage())
+                : e.getMessage();
+        if (message == null) {
+            return;
+        }
+
+        if (recentLines.length > 0) {
+            recentLines[lineCount % recentLines.length] = message;
+        }
+        lineCount++;
+
+        final int status = message.length() > 2 && message.charAt(1) == ' ' ? STATUSES.indexOf(message.charAt(0)) : -1;
+        if (e.isError() && status == -1) {
+            errorCount++;
+        } else if (status != -1) {
+            final String path = message.substring(2);
+            final int lastSlash = path.lastIndexOf('/');
+            final String directory = lastSlash == -1 ? "." : path.substring(0, lastSlash);
+            int[] counts = directoryCounts.get(directory);
+            if (counts == null) {
+                counts = new int[STATUSES.length()];
+                directoryCounts.put(directory, counts);
+            }
+            counts[status]++;
+            totals[status]++;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL) {
+            lastProgress = now;
+            logger.println("... " + describe(totals) + " so far in " + directoryCounts.size() + " directories");
+        }
+    }
+
+    /**
+     * Writes the summary of the command to the build log, along with the most recent output if the command failed.
+     * @param successful whether the command completed successfully
+     */
+    void finish(final boolean successful) {
+        logger.println(describe(totals) + " in " + directoryCounts.size() + " directories"
+                + (errorCount == 0 ? "" : ", " + errorCount + " messages from the server"));
+
+        final List<Map.Entry<String, int[]>> directories = new ArrayList<Map.Entry<String, int[]>>(directoryCounts.entrySet());
+        Collections.sort(directories, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(final Map.Entry<String, int[]> o1, final Map.Entry<String, int[]> o2) {
+                final int difference = sum(o2.getValue()) - sum(o1.getValue());
+                return difference != 0 ? difference : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        for (int i = 0; i < directories.size() && i < SUMMARY_DIRECTORIES; i++) {
+            logger.println("    " + directories.get(i).getKey() + ": " + describe(directories.get(i).getValue()));
+        }
+        if (directories.size() > SUMMARY_DIRECTORIES) {
+            logger.println("    ... and " + (directories.size() - SUMMARY_DIRECTORIES) + " more directories");
+        }
+
+        if (successful || recentLines.length == 0 || lineCount == 0) {
+            return;
+        }
+
+        final int available = Math.min(lineCount, recentLines.length);
+        logger.println("Last " + available + " lines of CVS output:");
+        for (int i = lineCount - available; i < lineCount; i++) {
+            logger.println(recentLines[i % recentLines.length]);
+        }
+    }
+
+    private static int sum(final int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static String describe(final int[] counts) {
+        final StringBuilder description = new StringBuilder();
+        description.append(counts[STATUSES.indexOf('U')] + counts[STATUSES.indexOf('P')]).append(" files updated");
+        appendCount(description, counts, 'A', "added");
+        appendCount(description, counts, 'R', "removed");
+        appendCount(description, counts, 'M', "locally modified");
+        appendCount(description, counts, 'C', "in conflict");
+        appendCount(description, counts, '?', "unknown");
+        return description.toString();
+    }
+
+    private static void appendCount(final StringBuilder description, final int[] counts, final char status,
+                                    final String name) {
+        final int count = counts[STATUSES.indexOf(status)];
+        if (count > 0) {
+            description.append(", ").append(count).append(' ').append(name);
+        }
+    }
+}
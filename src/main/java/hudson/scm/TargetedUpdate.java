@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import org.jenkinsci.remoting.RoleChecker;
+import org.netbeans.lib.cvsclient.command.update.UpdateCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Updates a module by asking the server for only the files that have changed since the previous build, rather than
+ * having the server compare every file in the module. This relies on the workspace still being exactly as the
+ * previous build left it, so the files checked out by that build and the window of time changes need to be fetched
+ * for are taken from the build when the checkout starts.
+ */
+final class TargetedUpdate {
+
+    /**
+     * If set, a workspace that still matches the state recorded by the previous build is updated by asking the
+     * server for only the files that have changed since that build, rather than having the server compare every
+     * file in each module.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(TargetedUpdate.class.getName() + ".enabled");
+
+    /**
+     * The number of changed files in a module above which a targeted update falls back to a normal recursive update.
+     */
+    public static int MAX_FILES = Integer.getInteger(TargetedUpdate.class.getName() + ".maxFiles", 500);
+
+    private final AbstractCvs scm;
+    private final Map<CvsRepository, List<CvsFile>> moduleFiles;
+    private final Date previousCheckoutDate;
+    private final Date checkoutDate;
+
+    private TargetedUpdate(final AbstractCvs scm, final Map<CvsRepository, List<CvsFile>> moduleFiles,
+                           final Date previousCheckoutDate, final Date checkoutDate) {
+        this.scm = scm;
+        this.moduleFiles = moduleFiles;
+        this.previousCheckoutDate = previousCheckoutDate;
+        this.checkoutDate = checkoutDate;
+    }
+
+    /**
+     * Gets the workspace state recorded by the build before the given one, for use in a targeted update.
+     * @return a targeted update against the previous build's state, or null if there's no previous build or it
+     *          didn't record its state
+     */
+    static TargetedUpdate forBuild(final AbstractCvs scm, final Run<?, ?> build) {
+        final Run<?, ?> previousBuild = build.getPreviousBuild();
+        if (previousBuild == null) {
+            return null;
+        }
+        final CvsRevisionState revisionState = previousBuild.getAction(CvsRevisionState.class);
+        if (revisionState == null) {
+            return null;
+        }
+        return new TargetedUpdate(scm, revisionState.getModuleFiles(), scm.getCheckoutDate(previousBuild),
+                scm.getCheckoutDate(build));
+    }
+
+    /**
+     * Updates only the files in a module that have changed since the previous build, as reported by <tt>rlog</tt>.
+     * {@link #getUpdateTargets(File, String, Map)} decides which paths that means fetching.
+     * @param context the checkout this update is part of, which commands are run against
+     * @return true or false if a targeted update succeeded or failed, or null if the module can't be safely
+     *          updated this way (e.g. the workspace doesn't match the previous build) and needs a normal update
+     */
+    Boolean update(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule cvsModule,
+                   final FilePath workspace, final FilePath targetWorkspace, final String moduleName,
+                   final String dateStamp, final boolean pruneEmptyDirectories, final TaskListener listener,
+                   final EnvVars envVars, final AbstractCvs.CheckoutContext context)
+            throws IOException, InterruptedException {
+        final CvsRepositoryLocation location = item.getLocation();
+        final String remoteName = envVars.expand(cvsModule.getRemoteName());
+
+        // tags can be moved without leaving anything in the log, and files falling back to HEAD on a branch
+        // won't show up in the branch log, so neither can be updated based on the log
+        if (location.getLocationType() == CvsRepositoryLocationType.TAG
+                || location.getLocationType() == CvsRepositoryLocationType.BRANCH && location.isUseHeadIfNotFound()
+                || scm.isForceCleanCopy()) {
+            return null;
+        }
+
+        final List<CvsFile> previousFiles = moduleFiles.get(repository);
+        if (previousFiles == null) {
+            return null;
+        }
+
+        // we can only skip unchanged files if they're exactly as the previous build left them
+        final String prefix = remoteName + "/";
+        final Set<CvsFile> expectedFiles = new HashSet<CvsFile>();
+        for (CvsFile file : previousFiles) {
+            if (file.getName().startsWith(prefix)) {
+                expectedFiles.add(file);
+            }
+        }
+        if (!expectedFiles.equals(new HashSet<CvsFile>(scm.getCvsFiles(workspace, cvsModule, false, envVars, listener)))) {
+            listener.getLogger().println("Workspace for module '" + remoteName
+                    + "' does not match the previous build, performing full update");
+            return null;
+        }
+
+        final List<CvsFile> changes = scm.getRemoteLogForModule(repository, item, cvsModule, previousCheckoutDate,
+                checkoutDate, envVars, listener, targetWorkspace).getFiles();
+        if (changes.size() > MAX_FILES) {
+            listener.getLogger().println(changes.size() + " files changed in module '" + remoteName
+                    + "', performing full update");
+            return null;
+        }
+
+        final String repositoryPath = AbstractCvs.getRepositoryPath(repository, envVars);
+        final Map<String, Boolean> changedPaths = new LinkedHashMap<String, Boolean>();
+        for (CvsFile change : changes) {
+            final String path = AbstractCvs.getPathInModule(change.getName(), repositoryPath, remoteName);
+            if (path == null) {
+                // most likely an alias module, so we can't map the file back to the workspace
+                listener.getLogger().println("Could not map changed file '" + change.getName() + "' into module '"
+                        + remoteName + "', performing full update");
+                return null;
+            }
+            changedPaths.put(moduleName + "/" + path, change.isDead());
+        }
+
+        listener.getLogger().println("Performing targeted update of " + changedPaths.size() + " changed files in module '"
+                + remoteName + "'");
+        if (changedPaths.isEmpty()) {
+            return true;
+        }
+
+        final UpdateTargets targets = targetWorkspace.act(new TargetFinder(moduleName, changedPaths));
+
+        if (cvsModule.isSparse()) {
+            for (String directory : targets.directories) {
+                if (directory.equals(moduleName) || !cvsModule.isInIncludedPath(directory.substring(moduleName.length() + 1))) {
+                    // a recursive update here would fetch directories that were left out of the checkout
+                    listener.getLogger().println("New directories in module '" + remoteName
+                            + "' are outside the included paths, performing full update");
+                    return null;
+                }
+            }
+        }
+
+        if (!targets.files.isEmpty()) {
+            final UpdateCommand updateCommand = scm.createUpdateCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+            updateCommand.setRecursive(false);
+            if (!scm.perform(updateCommand, targetWorkspace, listener, repository,
+                    targets.files.toArray(new String[targets.files.size()]), envVars, false, context)) {
+                return false;
+            }
+        }
+
+        if (!targets.directories.isEmpty()) {
+            final UpdateCommand updateCommand = scm.createUpdateCommand(item, dateStamp, pruneEmptyDirectories, envVars);
+            if (!scm.perform(updateCommand, targetWorkspace, listener, repository,
+                    targets.directories.toArray(new String[targets.directories.size()]), envVars, false, context)) {
+                return false;
+            }
+        }
+
+        if (pruneEmptyDirectories && !scm.isDisableCvsQuiet()) {
+            // removed files may have left directories empty anywhere in the module
+            targetWorkspace.child(moduleName).act(new EmptyDirectoryPruner(listener));
+        }
+
+        return true;
+    }
+
+    /**
+     * Works out what a targeted update has to fetch. Changed files that are already in the workspace are updated
+     * individually, new files in existing directories are picked up by a non-recursive update of their directory,
+     * and new directories are fetched by a recursive update of their nearest existing parent.
+     * @param workspace the directory the module is checked out into
+     * @param moduleName the name of the module's directory within the workspace
+     * @param changedPaths the path of every changed file relative to the workspace, mapped to whether the file has
+     *                     been removed on the server
+     */
+    static UpdateTargets getUpdateTargets(final File workspace, final String moduleName,
+                                          final Map<String, Boolean> changedPaths) {
+        final UpdateTargets targets = new UpdateTargets();
+        for (Map.Entry<String, Boolean> changedPath : changedPaths.entrySet()) {
+            final String path = changedPath.getKey();
+            if (new File(workspace, path).exists()) {
+                targets.files.add(path);
+                continue;
+            }
+            if (changedPath.getValue()) {
+                // removed on the server and never checked out here, nothing to do
+                continue;
+            }
+            String parent = path.substring(0, path.lastIndexOf('/'));
+            if (new File(workspace, parent + "/CVS").isDirectory()) {
+                targets.files.add(parent);
+                continue;
+            }
+            // work up to the nearest directory we have checked out and fetch everything below it
+            while (!parent.equals(moduleName) && !new File(workspace, parent + "/CVS").isDirectory()) {
+                parent = parent.substring(0, parent.lastIndexOf('/'));
+            }
+            targets.directories.add(parent);
+        }
+        return targets;
+    }
+
+    /**
+     * Runs {@link #getUpdateTargets(File, String, Map)} on the node the workspace is on.
+     */
+    private static final class TargetFinder implements FilePath.FileCallable<UpdateTargets> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String moduleName;
+        private final Map<String, Boolean> changedPaths;
+
+        private TargetFinder(final String moduleName, final Map<String, Boolean> changedPaths) {
+            this.moduleName = moduleName;
+            this.changedPaths = changedPaths;
+        }
+
+        @Override
+        public UpdateTargets invoke(final File workspace, final VirtualChannel channel) throws IOException {
+            return getUpdateTargets(workspace, moduleName, changedPaths);
+        }
+
+        @Override
+        public void checkRoles(RoleChecker checker)
+                throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    private static final class EmptyDirectoryPruner implements FilePath.FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TaskListener listener;
+
+        private EmptyDirectoryPruner(final TaskListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Void invoke(final File module, final VirtualChannel channel) throws IOException {
+            AbstractCvs.pruneEmptyDirectories(module, listener);
+            return null;
+        }
+
+        @Override
+        public void checkRoles(RoleChecker checker)
+                throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    /**
+     * The paths, relative to the directory a module is checked out into, that a targeted update needs to fetch.
+     */
+    static final class UpdateTargets implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Files, and directories containing new files, that should be updated without recursing.
+         */
+        final Set<String> files = new TreeSet<String>();
+
+        /**
+         * Directories that should be updated recursively to pick up new sub-directories.
+         */
+        final Set<String> directories = new TreeSet<String>();
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import org.jenkinsci.remoting.RoleChecker;
+import org.netbeans.lib.cvsclient.Client;
+import org.netbeans.lib.cvsclient.command.CommandException;
+import org.netbeans.lib.cvsclient.command.GlobalOptions;
+import org.netbeans.lib.cvsclient.command.update.UpdateCommand;
+import org.netbeans.lib.cvsclient.connection.AuthenticationException;
+import org.netbeans.lib.cvsclient.event.CVSAdapter;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides whether a module that's already in the workspace should be updated or deleted and checked out again,
+ * based on whether the workspace is on the branch or tag configured and how much a dry run update says it would
+ * fetch.
+ */
+final class UpdatePlanner {
+
+    /**
+     * If set, a module that's already in the workspace is only updated if an update looks cheaper than deleting the
+     * module and checking it out again (which can then be seeded from the checkout cache). The workspace is checked
+     * out fresh if it's on a different branch or tag to the one configured, or if a dry run update reports that more
+     * than {@link #THRESHOLD} percent of its files would be fetched.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(UpdatePlanner.class.getName() + ".enabled");
+
+    /**
+     * The percentage of a module's files that have to need fetching before a fresh checkout is preferred to an update.
+     */
+    public static int THRESHOLD = Integer.getInteger(UpdatePlanner.class.getName() + ".threshold", 50);
+
+    private UpdatePlanner() {
+    }
+
+    /**
+     * Works out whether a module that's already in the workspace is cheaper to update or to check out again. A
+     * workspace that's on a different branch or tag to the one configured will have almost every file replaced by an
+     * update so is always checked out again. Otherwise a dry run update (<tt>cvs -n update</tt>) counts the files an
+     * update would fetch and this is compared to the number of files in the workspace.
+     * @return true if the module should be updated, false if it should be deleted and checked out again
+     */
+    static boolean isUpdateCheaper(final AbstractCvs scm, final CvsRepository repository,
+                                   final CvsRepositoryItem item, final CvsModule cvsModule, final boolean flatten,
+                                   final FilePath workspace, final FilePath module, final FilePath targetWorkspace,
+                                   final String moduleName, final String dateStamp, final TaskListener listener,
+                                   final EnvVars envVars)
+            throws IOException, InterruptedException {
+        final String remoteName = envVars.expand(cvsModule.getRemoteName());
+        final CvsRepositoryLocation location = item.getLocation();
+        final String locationName = envVars.expand(location.getLocationName());
+
+        final FilePath tagFile = module.child("CVS/Tag");
+        final String stickyTag = tagFile.exists() ? tagFile.readToString().trim() : "";
+        final boolean stickyToTag = stickyTag.startsWith("T") || stickyTag.startsWith("N");
+        final boolean matchesLocation;
+        if (location.getLocationType() == CvsRepositoryLocationType.BRANCH) {
+            matchesLocation = stickyTag.equals("T" + locationName);
+        } else if (location.getLocationType() == CvsRepositoryLocationType.TAG) {
+            matchesLocation = stickyToTag && stickyTag.substring(1).equals(locationName);
+        } else {
+            matchesLocation = !stickyToTag;
+        }
+        if (!matchesLocation) {
+            listener.getLogger().println("Workspace for module '" + remoteName + "' is on "
+                    + (stickyToTag ? stickyTag.substring(1) : "HEAD") + " rather than " + location.getLocationType()
+                    + (location.getLocationType() == CvsRepositoryLocationType.HEAD ? "" : " " + locationName)
+                    + ", performing fresh checkout instead of update");
+            return false;
+        }
+
+        if (cvsModule.isSparse()) {
+            // a dry run from the module root would count every directory left out of the checkout
+            return true;
+        }
+
+        final int fileCount = scm.getCvsFiles(workspace, cvsModule, flatten, envVars, listener).size();
+        final int updateCount = estimateUpdate(scm, repository, item, targetWorkspace, moduleName, dateStamp, listener,
+                envVars);
+        if (updateCount < 0) {
+            return true;
+        }
+
+        final boolean updateCheaper = updateCount * 100L <= (long) fileCount * THRESHOLD;
+        listener.getLogger().println("Estimated update of module '" + remoteName + "' would fetch " + updateCount
+                + " of " + fileCount + " files, performing "
+                + (updateCheaper ? "update" : "fresh checkout instead of update"));
+        return updateCheaper;
+    }
+
+    /**
+     * Runs a dry run update (<tt>cvs -n update</tt>) of a module to find out how many files a real update would fetch.
+     * @return the number of files that would be fetched, or -1 if the dry run failed
+     */
+    private static int estimateUpdate(final AbstractCvs scm, final CvsRepository repository,
+                                      final CvsRepositoryItem item, final FilePath targetWorkspace,
+                                      final String moduleName, final String dateStamp, final TaskListener listener,
+                                      final EnvVars envVars)
+            throws IOException, InterruptedException {
+        final Client cvsClient = scm.getCvsClient(repository, envVars, listener);
+        final String connectionKey = scm.getConnectionKey(repository, envVars);
+        final GlobalOptions globalOptions = scm.getGlobalOptions(repository, envVars);
+        globalOptions.setDoNoChanges(true);
+        final UpdateCommand updateCommand = scm.createUpdateCommand(item, dateStamp, false, envVars);
+
+        return targetWorkspace.act(new FilePath.FileCallable<Integer>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Integer invoke(final File workspace, final VirtualChannel channel) throws IOException {
+                updateCommand.setFiles(new File[]{new File(workspace, moduleName)});
+
+                final UpdateCounter counter = new UpdateCounter();
+                final Client client = CvsConnectionPool.getInstance().borrow(connectionKey,
+                        globalOptions.getCompressionLevel(), cvsClient);
+                client.setLocalPath(workspace.getAbsolutePath());
+                client.getEventManager().addCVSListener(counter);
+                try {
+                    if (!client.executeCommand(updateCommand, globalOptions)) {
+                        return -1;
+                    }
+                    return counter.count;
+                } catch (CommandException e) {
+                    listener.getLogger().println("Could not estimate size of update: " + e.getMessage());
+                    return -1;
+                } catch (AuthenticationException e) {
+                    listener.getLogger().println("Could not estimate size of update: " + e.getMessage());
+                    return -1;
+                } finally {
+                    client.getEventManager().removeCVSListener(counter);
+                    // the server keeps -n for the rest of the session, so the connection can't be used again
+                    CvsConnectionPool.getInstance().release(connectionKey, globalOptions.getCompressionLevel(), client,
+                            false);
+                }
+            }
+
+            @Override
+            public void checkRoles(RoleChecker checker)
+                    throws SecurityException {
+                // Do nothing
+            }
+        });
+    }
+
+    /**
+     * Counts the files a dry run update reports it would fetch from the server. Servers that support tagged output
+     * send each status line in several parts, which are put back together first.
+     */
+    static final class UpdateCounter extends CVSAdapter {
+        private final StringBuffer taggedLine = new StringBuffer();
+        int count = 0;
+
+        @Override
+        public void messageSent(final MessageEvent e) {
+            final String message = e.isTagged() ? MessageEvent.parseTaggedMessage(taggedLine, e.getMessage())
+                    : e.getMessage();
+            if (!e.isError() && message != null && message.length() > 2 && message.charAt(1) == ' '
+                    && "UPC".indexOf(message.charAt(0)) != -1) {
+                count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.LoadBalancer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.MappingWorksheet;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which nodes have recently checked out each module, so builds can be sent to the node where their
+ * update will have the least to fetch. A node is recorded against a module (identified by its CVSROOT, remote name
+ * and branch or tag) with the checkout date of every build whose {@link CvsRevisionState} is recorded there, and
+ * the oldest of a node's checkout dates for a job's modules decides how warm that node is for the job.
+ * <p>
+ * {@link #getWarmNodes(AbstractCvs)} gives the nodes in order of preference, e.g. for building a label expression,
+ * and with {@link #ENABLED} set the queue's load balancer prefers the warmest node that can take the build, falling
+ * back to the normal choice if none of them can. Checkouts are only tracked in memory so the preference is rebuilt
+ * as builds run after a restart, and are forgotten for nodes that are removed. Modules whose CVSROOT, name or branch
+ * or tag use build parameters or other variables aren't tracked, and jobs using them have no preferred node.
+ */
+public final class WorkspaceAffinity {
+
+    /**
+     * If set, builds of jobs using CVS are sent to the node that most recently checked out all of the job's modules,
+     * if it can take them. The load balancer doing this is only installed if this is set when Jenkins starts.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(WorkspaceAffinity.class.getName() + ".enabled");
+
+    /**
+     * The last checkout date on each node, keyed by module and then by node name.
+     */
+    private static final Map<String, Map<String, Long>> CHECKOUTS = new HashMap<String, Map<String, Long>>();
+
+    private WorkspaceAffinity() {
+    }
+
+    /**
+     * Records that a build has checked out the given repositories on the node it ran on.
+     */
+    static void record(final Run<?, ?> build, final CvsRepository[] repositories, final Date checkoutDate) {
+        if (!(build instanceof AbstractBuild)) {
+            return;
+        }
+        final String nodeName = ((AbstractBuild<?, ?>) build).getBuiltOnStr();
+        if (nodeName == null) {
+            return;
+        }
+
+        synchronized (CHECKOUTS) {
+            for (CvsRepository repository : repositories) {
+                for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                    for (CvsModule module : item.getModules()) {
+                        final String key = getKey(repository, item, module);
+                        if (key == null) {
+                            continue;
+                        }
+                        Map<String, Long> nodes = CHECKOUTS.get(key);
+                        if (nodes == null) {
+                            nodes = new HashMap<String, Long>();
+                            CHECKOUTS.put(key, nodes);
+                        }
+                        final Long previous = nodes.get(nodeName);
+                        if (previous == null || previous < checkoutDate.getTime()) {
+                            nodes.put(nodeName, checkoutDate.getTime());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the nodes that have checked out every module of an SCM, most recently checked out first. A node's
+     * checkout date is that of the module it checked out longest ago, since that module will have the most to
+     * update.
+     * @return the names of the nodes, with an empty string for the master
+     */
+    public static List<String> getWarmNodes(final AbstractCvs scm) {
+        final Map<String, Long> warmth = getWarmth(scm);
+        final List<String> nodes = new ArrayList<String>(warmth.keySet());
+        Collections.sort(nodes, new Comparator<String>() {
+            @Override
+            public int compare(final String o1, final String o2) {
+                return warmth.get(o2).compareTo(warmth.get(o1));
+            }
+        });
+        return nodes;
+    }
+
+    private static Map<String, Long> getWarmth(final AbstractCvs scm) {
+        Map<String, Long> warmth = null;
+        synchronized (CHECKOUTS) {
+            for (CvsRepository repository : scm.getRepositories()) {
+                for (CvsRepositoryItem item : repository.getRepositoryItems()) {
+                    for (CvsModule module : item.getModules()) {
+                        final String key = getKey(repository, item, module);
+                        final Map<String, Long> nodes = key == null ? null : CHECKOUTS.get(key);
+                        if (nodes == null) {
+                            return Collections.emptyMap();
+                        }
+                        if (warmth == null) {
+                            warmth = new HashMap<String, Long>(nodes);
+                            continue;
+                        }
+                        warmth.keySet().retainAll(nodes.keySet());
+                        for (Map.Entry<String, Long> entry : warmth.entrySet()) {
+                            entry.setValue(Math.min(entry.getValue(), nodes.get(entry.getKey())));
+                        }
+                    }
+                }
+            }
+        }
+        return warmth == null ? Collections.<String, Long>emptyMap() : warmth;
+    }
+
+    /**
+     * @return what identifies a module, or null if it uses variables that can only be resolved within a build
+     */
+    private static String getKey(final CvsRepository repository, final CvsRepositoryItem item, final CvsModule module) {
+        final CvsRepositoryLocation location = item.getLocation();
+        final String key = repository.getCvsRoot() + '\n' + module.getRemoteName() + '\n' + location.getLocationType()
+                + ':' + location.getLocationName();
+        return key.contains("$") ? null : key;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void installLoadBalancer() {
+        if (!ENABLED) {
+            return;
+        }
+        final Queue queue = Jenkins.getInstance().getQueue();
+        queue.setLoadBalancer(new PreferWarmNodes(queue.getLoadBalancer()));
+    }
+
+    /**
+     * Forgets the checkouts recorded for nodes that no longer exist.
+     */
+    @Extension
+    public static final class RemovedNodeCleaner extends ComputerListener {
+
+        @Override
+        public void onConfigurationChange() {
+            final Set<String> nodeNames = new HashSet<String>();
+            nodeNames.add("");
+            for (Node node : Jenkins.getInstance().getNodes()) {
+                nodeNames.add(node.getNodeName());
+            }
+
+            synchronized (CHECKOUTS) {
+                for (Iterator<Map<String, Long>> itr = CHECKOUTS.values().iterator(); itr.hasNext();) {
+                    final Map<String, Long> nodes = itr.next();
+                    nodes.keySet().retainAll(nodeNames);
+                    if (nodes.isEmpty()) {
+                        itr.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps builds of single node jobs using CVS to the warmest node that can take them, and leaves everything else
+     * to the load balancer it replaced.
+     */
+    private static final class PreferWarmNodes extends LoadBalancer {
+
+        private final LoadBalancer delegate;
+
+        private PreferWarmNodes(final LoadBalancer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MappingWorksheet.Mapping map(final Queue.Task task, final MappingWorksheet worksheet) {
+            if (ENABLED && worksheet.works.size() == 1 && task instanceof AbstractProject
+                    && ((AbstractProject<?, ?>) task).getScm() instanceof AbstractCvs) {
+                final List<String> warmNodes = getWarmNodes((AbstractCvs) ((AbstractProject<?, ?>) task).getScm());
+                for (String nodeName : warmNodes) {
+                    for (MappingWorksheet.ExecutorChunk chunk : worksheet.works(0).applicableExecutorChunks()) {
+                        final Node node = chunk.node;
+                        if (node == null || !nodeName.equals(node.getNodeName())) {
+                            continue;
+                        }
+                        final MappingWorksheet.Mapping mapping = worksheet.new Mapping();
+                        mapping.assign(0, chunk);
+                        if (mapping.isCompletelyValid()) {
+                            return mapping;
+                        }
+                    }
+                }
+            }
+            return delegate.map(task, worksheet);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+
+import java.io.IOException;
+
+/**
+ * A copy of a job's workspace taken straight after a clean checkout, before the build has had a chance to change
+ * anything. When the job next needs a clean checkout on the same node, the snapshot is copied into the workspace
+ * and brought up to date with a normal update, which leaves the workspace as it would be after a clean checkout
+ * without having to fetch every file from the server again.
+ * <p>
+ * A snapshot is only restored if it was taken with exactly the same CVS configuration as the current build, since
+ * modules that have been removed from the configuration would otherwise be left behind in the workspace. Where the
+ * modules checked out depend on the checkout itself, as with projectsets, the snapshot also records a description
+ * of everything it holds so a caller can check the snapshot still matches once it knows what should be there.
+ * <p>
+ * Copying a whole workspace is expensive, so a snapshot is only refreshed once the configuration or contents
+ * change, or once it's more than {@link #MAX_AGE} hours old. An older snapshot still gives the same result since
+ * it's always updated after being restored, it just leaves that update more to do.
+ */
+final class WorkspaceSnapshot {
+
+    /**
+     * Whether clean checkouts should be seeded from a snapshot of the job's last clean checkout.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(WorkspaceSnapshot.class.getName() + ".enabled");
+
+    /**
+     * How old a snapshot can get, in hours, before a clean checkout replaces it even though nothing it holds has
+     * changed.
+     */
+    public static int MAX_AGE = Integer.getInteger(WorkspaceSnapshot.class.getName() + ".maxAge", 24);
+
+    private final FilePath directory;
+    private final String configuration;
+    private final Object lock;
+
+    private WorkspaceSnapshot(final FilePath directory, final String configuration) {
+        this.directory = directory;
+        this.configuration = configuration;
+        this.lock = CvsCheckoutCache.getLock(CvsCheckoutCache.getNodeName(), directory);
+    }
+
+    /**
+     * Gets the snapshot for the job the given build belongs to, on the node the build is running on. This has to be
+     * called on the build's executor thread.
+     * @param build the build being checked out
+     * @param workspace the build's workspace
+     * @param configuration a description of the CVS configuration the snapshot is being used with
+     */
+    static WorkspaceSnapshot forBuild(final Run<?, ?> build, final FilePath workspace, final String configuration) {
+        final FilePath directory = CvsCheckoutCache.getNodeDirectory(workspace, "cvs-snapshots")
+                .child(Util.getDigestOf(build.getParent().getFullName()));
+        return new WorkspaceSnapshot(directory, Util.getDigestOf(configuration));
+    }
+
+    /**
+     * Clears the workspace and, if a usable snapshot exists, copies the snapshot into it.
+     * @return true if the workspace now contains the snapshot and can be updated, false if the workspace is
+     *          empty and needs a full checkout
+     */
+    boolean restore(final FilePath workspace) throws IOException, InterruptedException {
+        WorkspaceTrash.deleteContents(workspace);
+        synchronized (lock) {
+            final FilePath marker = directory.child("configuration");
+            if (!marker.exists() || !configuration.equals(marker.readToString().trim())) {
+                return false;
+            }
+            directory.child("workspace").act(new DirectoryCopier(workspace.getRemote()));
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether the snapshot was taken of the given contents.
+     * @param contents a description of everything that was checked out
+     */
+    boolean hasContents(final String contents) throws IOException, InterruptedException {
+        synchronized (lock) {
+            final FilePath marker = directory.child("contents");
+            return marker.exists() && Util.getDigestOf(contents).equals(marker.readToString().trim());
+        }
+    }
+
+    /**
+     * Replaces the snapshot with a copy of the given freshly checked out workspace, unless the snapshot already
+     * holds the same configuration and contents and isn't due to be refreshed.
+     * @param contents a description of everything that was checked out
+     * @return true if the snapshot was replaced, false if it was current enough to be kept
+     */
+    boolean store(final FilePath workspace, final String contents) throws IOException, InterruptedException {
+        final String contentsDigest = Util.getDigestOf(contents);
+        synchronized (lock) {
+            final FilePath marker = directory.child("configuration");
+            final FilePath contentsMarker = directory.child("contents");
+            final FilePath snapshot = directory.child("workspace");
+            if (marker.exists() && configuration.equals(marker.readToString().trim()) && contentsMarker.exists()
+                    && contentsDigest.equals(contentsMarker.readToString().trim())
+                    && System.currentTimeMillis() - marker.lastModified() < MAX_AGE * 60L * 60L * 1000L) {
+                return false;
+            }
+
+            // an interrupted copy leaves no marker so a partial snapshot will never be restored
+            if (marker.exists()) {
+                marker.delete();
+            }
+            if (snapshot.exists()) {
+                snapshot.deleteRecursive();
+            }
+            workspace.act(new DirectoryCopier(snapshot.getRemote()));
+            contentsMarker.write(contentsDigest, "UTF-8");
+            marker.write(configuration, "UTF-8");
+            return true;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.remoting.RoleChecker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discards workspace contents by moving them into a trash directory next to the workspace and deleting them on a
+ * background thread, so a checkout can start straight away rather than waiting for a large tree to be deleted.
+ * The trash directory for a workspace <tt>foo</tt> is <tt>foo@cvs-trash</tt>, which keeps it on the same volume
+ * so moving files into it is a cheap rename.
+ * <p>
+ * If too many deletions are already queued on a node, or a rename fails, the files are deleted synchronously as
+ * they would be without this class. Trash left behind by an agent that was stopped part way through a deletion is
+ * removed the next time the agent comes online or the workspace is next cleaned.
+ * <p>
+ * The limit on queued deletions is a count of deleted trees rather than the bytes or files they hold. Sizing a tree
+ * means visiting every file in it, which is most of what deleting it costs, so doing that up front would put back
+ * the wait this class exists to avoid.
+ */
+public final class WorkspaceTrash {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceTrash.class.getName());
+
+    /**
+     * Whether workspace contents should be deleted in the background.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(WorkspaceTrash.class.getName() + ".enabled");
+
+    /**
+     * The maximum number of background deletions that can be queued on a node before further deletions are done
+     * synchronously, so a node that's deleting slower than builds are discarding files doesn't fill its disk. Each
+     * deletion is a whole discarded workspace or module however large it is, so on nodes with little spare disk
+     * space this should be set no higher than the number of workspaces the disk can hold twice over.
+     */
+    public static int MAX_PENDING = Integer.getInteger(WorkspaceTrash.class.getName() + ".maxPending", 8);
+
+    static final String SUFFIX = "@cvs-trash";
+
+    // these all live in the JVM that owns the files, which for most builds is an agent
+    private static final Set<String> PENDING = new HashSet<String>();
+    private static final AtomicLong COUNTER = new AtomicLong();
+    private static ExecutorService deleter;
+
+    private WorkspaceTrash() {
+    }
+
+    /**
+     * Removes everything inside the workspace, leaving the workspace directory itself in place.
+     */
+    static void deleteContents(final FilePath workspace) throws IOException, InterruptedException {
+        if (!ENABLED) {
+            workspace.deleteContents();
+            return;
+        }
+        workspace.act(new Discard(getTrash(workspace).getRemote(), true, MAX_PENDING));
+    }
+
+    /**
+     * Removes a directory within the workspace.
+     * @param directory the directory to remove
+     * @param workspace the workspace the directory is in, which determines the trash directory used
+     */
+    static void deleteRecursive(final FilePath directory, final FilePath workspace) throws IOException, InterruptedException {
+        if (!ENABLED) {
+            directory.deleteRecursive();
+            return;
+        }
+        if (directory.exists()) {
+            directory.act(new Discard(getTrash(workspace).getRemote(), false, MAX_PENDING));
+        }
+    }
+
+    private static FilePath getTrash(final FilePath workspace) {
+        return workspace.getParent().child(workspace.getName() + SUFFIX);
+    }
+
+    private static synchronized boolean schedule(final File target, final int maxPending) {
+        if (PENDING.size() >= maxPending) {
+            return false;
+        }
+        if (!PENDING.add(target.getAbsolutePath())) {
+            // already being deleted
+            return true;
+        }
+        if (deleter == null) {
+            deleter = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(),
+                    "CVS workspace trash deleter"));
+        }
+        deleter.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Util.deleteRecursive(target);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Could not delete " + target, ex);
+                } finally {
+                    release(target);
+                }
+            }
+        });
+        return true;
+    }
+
+    private static synchronized void release(final File target) {
+        PENDING.remove(target.getAbsolutePath());
+        final File trash = target.getParentFile();
+        final String[] remaining = trash.list();
+        if (remaining != null && remaining.length == 0 && !trash.delete()) {
+            LOGGER.log(Level.FINE, "Could not remove empty trash directory {0}", trash);
+        }
+    }
+
+    /**
+     * Queues for deletion anything in a trash directory that's not already being deleted, which will be the
+     * case for anything left over from before the agent was restarted.
+     */
+    private static void scheduleLeftovers(final File trash, final int maxPending) {
+        final File[] leftovers = trash.listFiles();
+        if (leftovers == null) {
+            return;
+        }
+        for (File leftover : leftovers) {
+            if (!schedule(leftover, maxPending)) {
+                return;
+            }
+        }
+    }
+
+    private static final class Discard implements FilePath.FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String trashPath;
+        private final boolean contentsOnly;
+        private final int maxPending;
+
+        private Discard(final String trashPath, final boolean contentsOnly, final int maxPending) {
+            this.trashPath = trashPath;
+            this.contentsOnly = contentsOnly;
+            this.maxPending = maxPending;
+        }
+
+        @Override
+        public Void invoke(final File directory, final VirtualChannel channel) throws IOException, InterruptedException {
+            final File trash = new File(trashPath);
+            if (trash.isDirectory()) {
+                scheduleLeftovers(trash, maxPending);
+            }
+
+            final File target = new File(trash, System.currentTimeMillis() + "-" + COUNTER.incrementAndGet());
+            if (!target.mkdirs()) {
+                deleteNow(directory);
+                return null;
+            }
+
+            if (contentsOnly) {
+                final File[] children = directory.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (!child.renameTo(new File(target, child.getName()))) {
+                            Util.deleteRecursive(child);
+                        }
+                    }
+                }
+            } else if (!directory.renameTo(new File(target, directory.getName()))) {
+                Util.deleteRecursive(directory);
+            }
+
+            if (!schedule(target, maxPending)) {
+                // too much is already waiting to be deleted
+                Util.deleteRecursive(target);
+            }
+            return null;
+        }
+
+        private void deleteNow(final File directory) throws IOException {
+            if (contentsOnly) {
+                Util.deleteContentsRecursive(directory);
+            } else {
+                Util.deleteRecursive(directory);
+            }
+        }
+
+        @Override
+        public void checkRoles(final RoleChecker checker) throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    private static final class FindLeftovers implements FilePath.FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxPending;
+
+        private FindLeftovers(final int maxPending) {
+            this.maxPending = maxPending;
+        }
+
+        @Override
+        public Void invoke(final File workspaceRoot, final VirtualChannel channel) throws IOException {
+            final File[] workspaces = workspaceRoot.listFiles();
+            if (workspaces == null) {
+                return null;
+            }
+            for (File workspace : workspaces) {
+                if (workspace.isDirectory() && workspace.getName().endsWith(SUFFIX)) {
+                    scheduleLeftovers(workspace, maxPending);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void checkRoles(final RoleChecker checker) throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Clears out trash left behind on an agent's workspace root when the agent comes back online.
+     */
+    @Extension
+    public static final class LeftoverCleaner extends ComputerListener {
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) throws IOException, InterruptedException {
+            if (!ENABLED) {
+                return;
+            }
+            final Node node = c.getNode();
+            if (!(node instanceof Slave)) {
+                return;
+            }
+            final FilePath workspaceRoot = ((Slave) node).getWorkspaceRoot();
+            if (workspaceRoot == null) {
+                return;
+            }
+            try {
+                workspaceRoot.act(new FindLeftovers(MAX_PENDING));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not check " + c.getName() + " for left over workspace trash", ex);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.model.TaskThread;
 import hudson.scm.AbstractCvs;
+import hudson.scm.CvsConnectionPool;
 import hudson.scm.CvsFile;
 import hudson.scm.CvsRepository;
 import hudson.scm.CvsRevisionState;
@@ -64,11 +65,18 @@ public class CvsTagActionWorker extends TaskThread {
 
             for (Map.Entry<String, List<String>> versionEntry : versionFileMap.entrySet()) {
                 AbstractCvs owner = parent.getParent();
-                final Client cvsClient = owner.getCvsClient(repository, build.getEnvironment(listener), listener, !oneIterationComplete);
+                final String connectionKey = owner.getConnectionKey(repository, build.getEnvironment(listener));
                 final GlobalOptions globalOptions = owner.getGlobalOptions(repository, build.getEnvironment(listener));
 
                 globalOptions.setCVSRoot(repository.getCvsRoot());
 
+                Client cvsClient = CvsConnectionPool.getInstance().borrow(connectionKey,
+                        globalOptions.getCompressionLevel());
+                if (cvsClient == null) {
+                    cvsClient = owner.getCvsClient(repository, build.getEnvironment(listener), listener,
+                            !oneIterationComplete);
+                }
+
                 RtagCommand rtagCommand = new RtagCommand();
 
                 rtagCommand.setTag(tagName);
@@ -78,12 +86,16 @@ public class CvsTagActionWorker extends TaskThread {
                 }
                 rtagCommand.setMakeBranchTag(createBranch);
                 rtagCommand.setOverrideExistingTag(moveTag);
-                cvsClient.getEventManager().addCVSListener(
-                                new BasicListener(listener.getLogger(),
-                                                listener.getLogger()));
+                final BasicListener basicListener = new BasicListener(listener.getLogger(), listener.getLogger());
+                cvsClient.getEventManager().addCVSListener(basicListener);
 
+                boolean reusable = false;
                 try {
-                    isSuccess = isSuccess && cvsClient.executeCommand(rtagCommand, globalOptions);
+                    if (isSuccess) {
+                        // only a command that completed cleanly leaves the connection fit to be reused
+                        reusable = cvsClient.executeCommand(rtagCommand, globalOptions);
+                        isSuccess = reusable;
+                    }
                 } catch (CommandAbortedException e) {
                     e.printStackTrace(listener
                                     .error("The CVS rtag command was aborted"));
@@ -97,8 +109,10 @@ public class CvsTagActionWorker extends TaskThread {
                                     .error("Authentication error while trying to run CVS rtag command"));
                     throw e;
                 }  finally {
+                    cvsClient.getEventManager().removeCVSListener(basicListener);
                     try {
-                        cvsClient.getConnection().close();
+                        CvsConnectionPool.getInstance().release(connectionKey, globalOptions.getCompressionLevel(),
+                                cvsClient, reusable);
                     } catch(IOException ex) {
                         listener.error("Could not close client connection: " + ex.getMessage());
                     }
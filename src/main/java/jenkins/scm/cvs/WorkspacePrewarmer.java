@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.scm.cvs;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.scm.AbstractCvs;
+import hudson.scm.SCM;
+import hudson.triggers.SCMTrigger;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Brings a workspace up to date whilst a build triggered by polling sits out its quiet period, so the build's own
+ * update only has to fetch whatever was committed during the quiet period. The workspace updated is the one the
+ * project's last build used, on the node it ran on, since that's where the build will most likely run again. It's
+ * skipped if the project is building, if that node is offline or no longer matches the project's label, or if the
+ * workspace is already being updated.
+ * <p>
+ * Nothing is leased from the node's workspace list, as holding a lease would push the build into a different
+ * workspace. Instead the build's checkout waits for any update still running in its workspace before starting its
+ * own, which is then run at the build's real checkout date as normal. Only modules already in the workspace are
+ * updated, and a failed update is left for the build to deal with rather than deleting anything.
+ */
+public final class WorkspacePrewarmer {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspacePrewarmer.class.getName());
+
+    /**
+     * If set, workspaces are updated whilst builds triggered by polling wait out their quiet period.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(WorkspacePrewarmer.class.getName() + ".ENABLED");
+
+    private static final Map<FilePath, FutureTask<Boolean>> RUNNING = new HashMap<FilePath, FutureTask<Boolean>>();
+
+    private static ExecutorService executor;
+
+    private WorkspacePrewarmer() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(),
+                    "CVS workspace pre-warm"));
+        }
+        return executor;
+    }
+
+    /**
+     * Waits for any update running in a workspace ahead of a build to finish, so the build's own update doesn't
+     * run alongside it.
+     */
+    public static void awaitPrewarm(final FilePath workspace, final TaskListener listener) throws InterruptedException {
+        final FutureTask<Boolean> prewarm;
+        synchronized (RUNNING) {
+            prewarm = RUNNING.get(workspace);
+        }
+        if (prewarm == null) {
+            return;
+        }
+
+        if (!prewarm.isDone()) {
+            listener.getLogger().println("Waiting for the update started during the quiet period to finish");
+        }
+        try {
+            if (!prewarm.get()) {
+                listener.getLogger().println("Updating during the quiet period did not complete,"
+                        + " the workspace will be brought up to date by this build's update");
+            }
+        } catch (ExecutionException ex) {
+            listener.getLogger().println("Updating during the quiet period failed: " + ex.getCause()
+                    + ", the workspace will be brought up to date by this build's update");
+        }
+    }
+
+    private static void start(final AbstractCvs scm, final AbstractBuild<?, ?> lastBuild, final FilePath workspace) {
+        final FutureTask<Boolean> prewarm;
+        synchronized (RUNNING) {
+            if (RUNNING.containsKey(workspace)) {
+                return;
+            }
+            prewarm = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        LOGGER.log(Level.FINE, "Updating {0} for {1}", new Object[]{workspace, lastBuild.getParent()});
+                        return scm.prewarm(lastBuild, workspace, new LogTaskListener(LOGGER, Level.FINE));
+                    } finally {
+                        synchronized (RUNNING) {
+                            RUNNING.remove(workspace);
+                        }
+                    }
+                }
+            });
+            RUNNING.put(workspace, prewarm);
+        }
+        getExecutor().execute(prewarm);
+    }
+
+    @Extension
+    public static class QuietPeriodObserver extends QueueListener {
+
+        @Override
+        public void onEnterWaiting(final Queue.WaitingItem wi) {
+            if (!ENABLED || !(wi.task instanceof AbstractProject)) {
+                return;
+            }
+
+            boolean polled = false;
+            for (Cause cause : wi.getCauses()) {
+                if (cause instanceof SCMTrigger.SCMTriggerCause) {
+                    polled = true;
+                    break;
+                }
+            }
+            if (!polled) {
+                return;
+            }
+
+            final AbstractProject<?, ?> project = (AbstractProject<?, ?>) wi.task;
+            final SCM scm = project.getScm();
+            if (!(scm instanceof AbstractCvs) || !((AbstractCvs) scm).isCanUseUpdate() || project.isBuilding()) {
+                return;
+            }
+
+            final AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+            if (lastBuild == null || lastBuild.isBuilding()) {
+                return;
+            }
+            final Node node = lastBuild.getBuiltOn();
+            if (node == null) {
+                return;
+            }
+            final Computer computer = node.toComputer();
+            if (computer == null || !computer.isOnline()) {
+                return;
+            }
+            final Label label = project.getAssignedLabel();
+            if (label != null && !label.contains(node)) {
+                return;
+            }
+            final FilePath workspace = lastBuild.getWorkspace();
+            if (workspace == null) {
+                return;
+            }
+
+            start((AbstractCvs) scm, lastBuild, workspace);
+        }
+    }
+}
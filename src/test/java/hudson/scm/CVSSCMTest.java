@@ -2,6 +2,7 @@ package hudson.scm;
 
 import hudson.EnvVars;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.TaskListener;
@@ -13,7 +14,11 @@ import org.junit.Test;
 import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.Email;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.netbeans.lib.cvsclient.command.Command;
+import org.netbeans.lib.cvsclient.command.update.UpdateCommand;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URL;
@@ -21,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -220,10 +227,285 @@ public class CVSSCMTest {
         assertEquals(3, result.size());
 
         listener.getLogger().flush();
-        assertEquals("Skipping file 'subdir/test.ext' since it matches exclude pattern (?:[^/]+/)+[a-z0-9]+\\.ext\rSkipping file 'subdir/subdir2/test.ext' since it matches exclude pattern (?:[^/]+/)+[a-z0-9]+\\.ext", log.getContents());
+        assertEquals("Skipping 2 files since they match exclude pattern (?:[^/]+/)+[a-z0-9]+\\.ext: 'subdir/test.ext', 'subdir/subdir2/test.ext'", log.getContents());
 
     }
 
+    @Test
+    public void testPolledChangesMergedIntoRemoteState() throws IOException, InterruptedException {
+        CustomFreeStyleProject project = new CustomFreeStyleProject(jenkinsRule.getInstance(), "testProject");
+        project.getLastBuild().setChangeSetComputed(true);
+        CvsRepository repository = new CvsRepository("repo", false, null, Arrays.<CvsRepositoryItem>asList(),
+                Arrays.<ExcludedRegion>asList(), 3, null);
+        List<CvsFile> baselineFiles = Arrays.asList(CvsFile.make("a.txt", "1.1"), CvsFile.make("b.txt", "1.1"),
+                CvsFile.make("c.txt", "1.1"));
+        Map<CvsRepository, List<CvsFile>> repositoryState = new HashMap<CvsRepository, List<CvsFile>>();
+        repositoryState.put(repository, baselineFiles);
+
+        CustomCvs customCvs = new CustomCvs(Arrays.asList(repository), false, false, false, false, false, false, false);
+        customCvs.setRepositoryState(Arrays.asList(CvsFile.make("b.txt", "1.2"), CvsFile.make("c.txt", "1.2", true),
+                CvsFile.make("d.txt", "1.1"), CvsFile.make("e.txt", "1.2", true)));
+        PollingResult pollingResult = customCvs.compareRemoteRevisionWith(project, null, null,
+                new LogTaskListener(new CustomLog("test", null), Level.FINE), new CvsRevisionState(repositoryState),
+                new CvsRepository[]{repository});
+
+        // changed files replace their old revision in place, removed files go and new files are added at the end
+        assertEquals(Arrays.asList(CvsFile.make("a.txt", "1.1"), CvsFile.make("b.txt", "1.2"),
+                CvsFile.make("d.txt", "1.1"), CvsFile.make("e.txt", "1.2", true)),
+                ((CvsRevisionState) pollingResult.remote).getModuleFiles().get(repository));
+        // the baseline is still held by the last build so must be left as it was
+        assertEquals(Arrays.asList(CvsFile.make("a.txt", "1.1"), CvsFile.make("b.txt", "1.1"),
+                CvsFile.make("c.txt", "1.1")), baselineFiles);
+        assertEquals(PollingResult.Change.SIGNIFICANT, pollingResult.change);
+    }
+
+    @Test
+    public void testEarlyExitPollingStopsAtFirstIncludedChange() throws IOException, InterruptedException {
+        CustomFreeStyleProject project = new CustomFreeStyleProject(jenkinsRule.getInstance(), "testProject");
+        project.getLastBuild().setChangeSetComputed(true);
+        CvsRepository repository = new CvsRepository("repo", false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{new CvsModule("docs", "docs"),
+                new CvsModule("src", "src"), new CvsModule("test", "test")})),
+                Arrays.<ExcludedRegion>asList(new ExcludedRegion("docs/.*")), 3, null);
+        CvsRepository otherRepository = new CvsRepository("other", false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{new CvsModule("lib", "lib")})),
+                Arrays.<ExcludedRegion>asList(), 3, null);
+        Map<CvsRepository, List<CvsFile>> repositoryState = new HashMap<CvsRepository, List<CvsFile>>();
+        repositoryState.put(repository, new ArrayList<CvsFile>());
+        repositoryState.put(otherRepository, new ArrayList<CvsFile>());
+
+        CustomCvs customCvs = new CustomCvs(Arrays.asList(repository, otherRepository), false, false, false, false,
+                false, false, false);
+        customCvs.setModuleState("docs", Arrays.asList(CvsFile.make("docs/readme", "1.2")));
+        customCvs.setModuleState("src", Arrays.asList(CvsFile.make("src/Main.java", "1.2")));
+        customCvs.setModuleState("test", Arrays.asList(CvsFile.make("test/MainTest.java", "1.2")));
+        customCvs.setModuleState("lib", Arrays.asList(CvsFile.make("lib/Util.java", "1.2")));
+
+        boolean earlyExitPolling = EarlyExitPolling.ENABLED;
+        EarlyExitPolling.ENABLED = true;
+        try {
+            PollingResult pollingResult = customCvs.compareRemoteRevisionWith(project, null, null,
+                    new LogTaskListener(new CustomLog("test", null), Level.FINE),
+                    new CvsRevisionState(repositoryState), new CvsRepository[]{repository, otherRepository});
+
+            // an excluded change doesn't stop the search, but nothing after the first included change is fetched
+            assertEquals(Arrays.asList("docs", "src"), customCvs.getFetchedModules());
+            assertEquals(PollingResult.Change.SIGNIFICANT, pollingResult.change);
+            assertEquals(Arrays.asList(CvsFile.make("docs/readme", "1.2"), CvsFile.make("src/Main.java", "1.2")),
+                    ((CvsRevisionState) pollingResult.remote).getModuleFiles().get(repository));
+        } finally {
+            EarlyExitPolling.ENABLED = earlyExitPolling;
+        }
+    }
+
+    @Test
+    public void testOverlappingModulesAreCheckedOutInSequence() {
+        CvsRepository repository = new CvsRepository("cvsroot", false, null,
+                Arrays.asList(new CvsRepositoryItem(new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{
+                        new CvsModule("one", "a/b"), new CvsModule("two", ""), new CvsModule("three", "a/c"),
+                        new CvsModule("four", "two/sub"), new CvsModule("five", "")})),
+                new ArrayList<ExcludedRegion>(), 3, null);
+        CVSSCM scm = new CVSSCM(Arrays.asList(repository), false, false, false, false, false, false, false);
+        EnvVars envVars = new EnvVars();
+
+        List<List<ModuleGroup>> chains = ModuleGroup.getIndependentGroups(
+                ModuleGroup.getModuleGroups(scm.getRepositories(), false, envVars), false, envVars);
+        assertEquals(Arrays.asList(Arrays.asList("one", "three"), Arrays.asList("two", "four"), Arrays.asList("five")),
+                getRemoteNames(chains));
+
+        // a flattened checkout shares the workspace's CVS/Entries between every module
+        chains = ModuleGroup.getIndependentGroups(ModuleGroup.getModuleGroups(scm.getRepositories(), true, envVars),
+                true, envVars);
+        assertEquals(Arrays.asList(Arrays.asList("one", "two", "three", "four", "five")), getRemoteNames(chains));
+    }
+
+    @Test
+    public void testBatchedModuleGroups() {
+        CvsRepository repository = new CvsRepository("cvsroot", false, null, Arrays.asList(
+                new CvsRepositoryItem(new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{
+                        new CvsModule("one", ""), new CvsModule("two", ""), new CvsModule("three", "local"),
+                        new CvsModule("four/sub", ""), new CvsModule("five", "", null, "src", null)}),
+                new CvsRepositoryItem(new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{
+                        new CvsModule("six", ""), new CvsModule("seven", "")})),
+                new ArrayList<ExcludedRegion>(), 3, null);
+        CVSSCM scm = new CVSSCM(Arrays.asList(repository), false, false, false, false, false, false, false);
+        EnvVars envVars = new EnvVars();
+
+        boolean batchModules = ModuleGroup.BATCH_MODULES;
+        try {
+            ModuleGroup.BATCH_MODULES = false;
+            assertEquals(Arrays.asList(Arrays.asList("one"), Arrays.asList("two"), Arrays.asList("three"),
+                    Arrays.asList("four/sub"), Arrays.asList("five"), Arrays.asList("six"), Arrays.asList("seven")),
+                    getGroupNames(ModuleGroup.getModuleGroups(scm.getRepositories(), false, envVars)));
+
+            // only modules checked out under their own name into the workspace root share a command
+            ModuleGroup.BATCH_MODULES = true;
+            assertEquals(Arrays.asList(Arrays.asList("one", "two"), Arrays.asList("three"), Arrays.asList("four/sub"),
+                    Arrays.asList("five"), Arrays.asList("six", "seven")),
+                    getGroupNames(ModuleGroup.getModuleGroups(scm.getRepositories(), false, envVars)));
+
+            assertEquals(7, ModuleGroup.getModuleGroups(scm.getRepositories(), true, envVars).size());
+        } finally {
+            ModuleGroup.BATCH_MODULES = batchModules;
+        }
+    }
+
+    @Test
+    public void testTargetedUpdateTargets() throws IOException {
+        File workspace = jenkinsRule.createTmpDir();
+        assertTrue(new File(workspace, "module/CVS").mkdirs());
+        assertTrue(new File(workspace, "module/dir/CVS").mkdirs());
+        assertTrue(new File(workspace, "module/changed.txt").createNewFile());
+        assertTrue(new File(workspace, "module/dir/removed.txt").createNewFile());
+
+        Map<String, Boolean> changedPaths = new LinkedHashMap<String, Boolean>();
+        changedPaths.put("module/changed.txt", false);
+        changedPaths.put("module/dir/removed.txt", true);
+        changedPaths.put("module/dir/added.txt", false);
+        changedPaths.put("module/never-checked-out.txt", true);
+        changedPaths.put("module/newdir/sub/added.txt", false);
+        changedPaths.put("module/dir/newdir/added.txt", false);
+
+        TargetedUpdate.UpdateTargets targets = TargetedUpdate.getUpdateTargets(workspace, "module", changedPaths);
+        assertEquals(new HashSet<String>(Arrays.asList("module/changed.txt", "module/dir/removed.txt", "module/dir")),
+                targets.files);
+        assertEquals(new HashSet<String>(Arrays.asList("module", "module/dir")), targets.directories);
+    }
+
+    @Test
+    public void testFailedUpdateRecoveredByCheckingOutOnlyThatModule() throws Exception {
+        CvsRepository repository = new CvsRepository("cvsroot", false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{new CvsModule("a", ""),
+                new CvsModule("b", "")})), new ArrayList<ExcludedRegion>(), 3, null);
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        FilePath workspace = new FilePath(jenkinsRule.createTmpDir());
+        workspace.child("a/built.txt").write("", "UTF-8");
+        workspace.child("b/built.txt").write("", "UTF-8");
+
+        // a single failure is retried in place
+        CustomCvs customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, true, false);
+        customCvs.failCommand("update a", 1);
+        assertTrue(customCvs.checkout(customCvs.getRepositories(), false, workspace, true, build, "date", false, true,
+                TaskListener.NULL));
+        assertEquals(Arrays.asList("update a", "update a", "update b"), customCvs.getCommands());
+        assertTrue(workspace.child("a/built.txt").exists());
+
+        // a second failure throws away and checks out only the module that failed
+        customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, true, false);
+        customCvs.failCommand("update a", 2);
+        assertTrue(customCvs.checkout(customCvs.getRepositories(), false, workspace, true, build, "date", false, true,
+                TaskListener.NULL));
+        assertEquals(Arrays.asList("update a", "update a", "checkout a", "update b"), customCvs.getCommands());
+        assertFalse(workspace.child("a/built.txt").exists());
+        assertTrue(workspace.child("b/built.txt").exists());
+
+        // without clean on failed update the checkout just fails
+        workspace.child("a/built.txt").write("", "UTF-8");
+        customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, false, false);
+        customCvs.failCommand("update a", 1);
+        assertFalse(customCvs.checkout(customCvs.getRepositories(), false, workspace, true, build, "date", false, false,
+                TaskListener.NULL));
+        assertEquals(Arrays.asList("update a"), customCvs.getCommands());
+        assertTrue(workspace.child("a/built.txt").exists());
+    }
+
+    @Test
+    public void testPrewarmOnlyUpdatesModulesAlreadyInWorkspace() throws Exception {
+        CvsRepository repository = new CvsRepository("cvsroot", false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), new CvsModule[]{new CvsModule("a", ""),
+                new CvsModule("b", ""), new CvsModule("c", "")})), new ArrayList<ExcludedRegion>(), 3, null);
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        FilePath workspace = new FilePath(jenkinsRule.createTmpDir());
+        workspace.child("a/built.txt").write("", "UTF-8");
+        workspace.child("c/built.txt").write("", "UTF-8");
+
+        CustomCvs customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, true, false);
+        assertTrue(customCvs.prewarm(build, workspace, TaskListener.NULL));
+        assertEquals(Arrays.asList("update a", "update c"), customCvs.getCommands());
+
+        // a failed update is left for the build to deal with, even with clean on failed update
+        customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, true, false);
+        customCvs.failCommand("update a", 2);
+        assertFalse(customCvs.prewarm(build, workspace, TaskListener.NULL));
+        assertEquals(Arrays.asList("update a", "update c"), customCvs.getCommands());
+        assertTrue(workspace.child("a/built.txt").exists());
+
+        // nothing is touched in a workspace the build will throw away anyway
+        customCvs = new CustomCvs(Arrays.asList(repository), true, false, false, false, false, true, true);
+        assertFalse(customCvs.prewarm(build, workspace, TaskListener.NULL));
+        assertTrue(customCvs.getCommands().isEmpty());
+    }
+
+    @Test
+    public void testSparseModuleFiles() {
+        // the invalid exclude pattern is skipped rather than failing every check
+        CvsModule module = new CvsModule("module", "", null, "src/core\ndocs", "(.*/)?[^/]*\\.bak\n[unclosed");
+
+        assertTrue(module.isIncluded("build.xml"));
+        assertTrue(module.isIncluded("src/Main.java"));
+        assertTrue(module.isIncluded("src/core/Core.java"));
+        assertTrue(module.isIncluded("docs/guide/index.html"));
+        assertFalse(module.isIncluded("src/other/Other.java"));
+        assertFalse(module.isIncluded("lib/library.jar"));
+        assertFalse(module.isIncluded("src/core/Core.java.bak"));
+        assertTrue(module.isInIncludedPath("src/core"));
+        assertFalse(module.isInIncludedPath("src"));
+
+        assertEquals(Arrays.asList(CvsFile.make("/var/cvs/module/build.xml", "1.2"),
+                CvsFile.make("/var/cvs/module/docs/Attic/old.html", "1.4", true),
+                CvsFile.make("/var/cvs/alias/file.txt", "1.1")),
+                AbstractCvs.filterFiles(Arrays.asList(CvsFile.make("/var/cvs/module/build.xml", "1.2"),
+                        CvsFile.make("/var/cvs/module/src/other/Attic/Other.java", "1.3", true),
+                        CvsFile.make("/var/cvs/module/docs/Attic/old.html", "1.4", true),
+                        CvsFile.make("/var/cvs/alias/file.txt", "1.1")), module, "/var/cvs", "module"));
+
+        assertEquals(Arrays.asList(CvsFile.make("module/src/core/Core.java", "1.5")),
+                AbstractCvs.filterFiles(Arrays.asList(CvsFile.make("module/lib/library.jar", "1.1"),
+                        CvsFile.make("module/src/core/Core.java", "1.5")), module, null, "module"));
+    }
+
+    @Test
+    public void testUpdateCounterReassemblesTaggedLines() {
+        UpdatePlanner.UpdateCounter counter = new UpdatePlanner.UpdateCounter();
+        counter.messageSent(new MessageEvent(this, "U module/plain.txt", false));
+        counter.messageSent(tagged("+updated"));
+        counter.messageSent(tagged("text U "));
+        counter.messageSent(tagged("fname module/tagged.txt"));
+        counter.messageSent(tagged("newline"));
+        counter.messageSent(tagged("-updated"));
+        counter.messageSent(new MessageEvent(this, "cvs update: Updating module", true));
+
+        assertEquals(2, counter.count);
+    }
+
+    private MessageEvent tagged(String message) {
+        MessageEvent event = new MessageEvent(this, message, false);
+        event.setTagged(true);
+        return event;
+    }
+
+    private static List<List<String>> getGroupNames(List<ModuleGroup> groups) {
+        List<List<ModuleGroup>> chains = new ArrayList<List<ModuleGroup>>();
+        for (ModuleGroup group : groups) {
+            chains.add(Arrays.asList(group));
+        }
+        return getRemoteNames(chains);
+    }
+
+    private static List<List<String>> getRemoteNames(List<List<ModuleGroup>> chains) {
+        List<List<String>> names = new ArrayList<List<String>>();
+        for (List<ModuleGroup> chain : chains) {
+            List<String> chainNames = new ArrayList<String>();
+            for (ModuleGroup group : chain) {
+                for (CvsModule module : group.modules) {
+                    chainNames.add(module.getRemoteName());
+                }
+            }
+            names.add(chainNames);
+        }
+        return names;
+    }
+
     private static class CustomLog extends Logger {
 
         private String contents = "";
@@ -287,6 +569,10 @@ public class CVSSCMTest {
     private static class CustomCvs extends CVSSCM {
 
         private List<CvsFile> files;
+        private final Map<String, List<CvsFile>> moduleFiles = new HashMap<String, List<CvsFile>>();
+        private final List<String> fetchedModules = new ArrayList<String>();
+        private final List<String> commands = new ArrayList<String>();
+        private final Map<String, Integer> failingCommands = new HashMap<String, Integer>();
 
         public CustomCvs(List<CvsRepository> repositories, boolean canUseUpdate, boolean legacy, boolean skipChangeLog, boolean pruneEmptyDirectories, boolean disableCvsQuiet, boolean cleanOnFailedUpdate, boolean forceCleanCopy) {
             super(repositories, canUseUpdate, legacy, skipChangeLog, pruneEmptyDirectories, disableCvsQuiet, cleanOnFailedUpdate, forceCleanCopy);
@@ -302,5 +588,45 @@ public class CVSSCMTest {
         public void setRepositoryState(List<CvsFile> files) {
             this.files = files;
         }
+
+        @Override
+        protected List<CvsFile> calculateModuleState(final Date startTime, final Date endTime,
+                                                     final CvsRepository repository, final CvsRepositoryItem item,
+                                                     final CvsModule module, final TaskListener listener,
+                                                     final EnvVars envVars, final FilePath workspace) {
+            fetchedModules.add(module.getRemoteName());
+            return moduleFiles.get(module.getRemoteName());
+        }
+
+        public void setModuleState(String remoteName, List<CvsFile> files) {
+            moduleFiles.put(remoteName, files);
+        }
+
+        public List<String> getFetchedModules() {
+            return fetchedModules;
+        }
+
+        @Override
+        boolean perform(final Command cvsCommand, final FilePath workspace, final TaskListener listener,
+                        final CvsRepository repository, final String[] moduleNames, final EnvVars envVars,
+                        final boolean pruneEmptyDirectories, final CheckoutContext context) {
+            String command = (cvsCommand instanceof UpdateCommand ? "update " : "checkout ")
+                    + Util.join(Arrays.asList(moduleNames), ",");
+            commands.add(command);
+            Integer failures = failingCommands.get(command);
+            if (failures != null && failures > 0) {
+                failingCommands.put(command, failures - 1);
+                return false;
+            }
+            return true;
+        }
+
+        public void failCommand(String command, int times) {
+            failingCommands.put(command, times);
+        }
+
+        public List<String> getCommands() {
+            return commands;
+        }
     }
 }
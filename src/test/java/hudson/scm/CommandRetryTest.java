@@ -0,0 +1,81 @@
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+import org.netbeans.lib.cvsclient.command.CommandAbortedException;
+import org.netbeans.lib.cvsclient.command.CommandException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandRetryTest {
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final TaskListener listener = new StreamTaskListener(log);
+
+    @Test
+    public void testRetriesWithDoublingDelayUntilLimit() throws Exception {
+        RecordingRetry retry = new RecordingRetry(3, 1000);
+
+        assertTrue(retry.retry(true, ":pserver:host:/cvs", 10, listener));
+        assertTrue(retry.retry(true, ":pserver:host:/cvs", 0, listener));
+        assertTrue(retry.retry(true, ":pserver:host:/cvs", 0, listener));
+        assertFalse(retry.retry(true, ":pserver:host:/cvs", 0, listener));
+
+        assertEquals(Arrays.asList(1000L, 2000L, 4000L), retry.delays);
+        assertTrue(log.toString().contains("failed after 10 files were fetched"));
+        assertTrue(log.toString().contains("(retry 3 of 3)"));
+    }
+
+    @Test
+    public void testFailureThatWontGoAwayNotRetried() throws Exception {
+        RecordingRetry retry = new RecordingRetry(3, 1000);
+
+        assertFalse(retry.retry(false, ":pserver:host:/cvs", 0, listener));
+        assertTrue(retry.delays.isEmpty());
+    }
+
+    @Test
+    public void testNothingRetriedWithoutRetries() throws Exception {
+        RecordingRetry retry = new RecordingRetry(0, 1000);
+
+        assertFalse(retry.retry(true, ":pserver:host:/cvs", 0, listener));
+        assertTrue(retry.delays.isEmpty());
+    }
+
+    @Test
+    public void testOnlyConnectionFailuresRetryable() {
+        assertTrue(CommandRetry.isConnectionFailure(new CommandException(new SocketException("Connection reset"),
+                "Connection reset")));
+        assertTrue(CommandRetry.isConnectionFailure(new CommandException(
+                new RuntimeException(new IOException("Broken pipe")), "Broken pipe")));
+        assertFalse(CommandRetry.isConnectionFailure(new CommandException("No such module", "No such module")));
+        assertFalse(CommandRetry.isConnectionFailure(new CommandAbortedException("Aborted", "Aborted")));
+    }
+
+    /**
+     * Records the delays it would have waited for rather than waiting.
+     */
+    private static final class RecordingRetry extends CommandRetry {
+        private final List<Long> delays = new ArrayList<Long>();
+
+        private RecordingRetry(final int retries, final long delay) {
+            super(retries, delay);
+        }
+
+        @Override
+        void sleep(final long wait) {
+            delays.add(wait);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package hudson.scm;
+
+import org.junit.Test;
+import org.netbeans.lib.cvsclient.CVSRoot;
+import org.netbeans.lib.cvsclient.Client;
+import org.netbeans.lib.cvsclient.admin.StandardAdminHandler;
+import org.netbeans.lib.cvsclient.connection.PServerConnection;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandWatchdogTest {
+
+    @Test
+    public void testConnectionClosedWhenIdle() throws Exception {
+        Client client = new Client(new OpenConnection(), new StandardAdminHandler());
+        CommandWatchdog watchdog = new CommandWatchdog(client, 500);
+        watchdog.start();
+
+        awaitClosed(client);
+        assertTrue(watchdog.isStalled());
+        watchdog.stop();
+    }
+
+    @Test
+    public void testConnectionKeptOpenWhilstServerResponds() throws Exception {
+        Client client = new Client(new OpenConnection(), new StandardAdminHandler());
+        CommandWatchdog watchdog = new CommandWatchdog(client, 500);
+        watchdog.start();
+
+        // the watchdog checks every second, so this covers a few checks
+        long end = System.currentTimeMillis() + 2500;
+        while (System.currentTimeMillis() < end) {
+            watchdog.messageSent(new MessageEvent(this, "U module/file.txt", false));
+            Thread.sleep(50);
+        }
+        assertTrue(client.getConnection().isOpen());
+        assertFalse(watchdog.isStalled());
+
+        awaitClosed(client);
+        assertTrue(watchdog.isStalled());
+        watchdog.stop();
+    }
+
+    @Test
+    public void testStoppedWatchdogLeavesConnectionAlone() throws Exception {
+        Client client = new Client(new OpenConnection(), new StandardAdminHandler());
+        CommandWatchdog watchdog = new CommandWatchdog(client, 500);
+        watchdog.start();
+        watchdog.stop();
+
+        Thread.sleep(2500);
+        assertTrue(client.getConnection().isOpen());
+        assertFalse(watchdog.isStalled());
+    }
+
+    private static void awaitClosed(final Client client) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (client.getConnection().isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(client.getConnection().isOpen());
+    }
+
+    /**
+     * A connection that claims to be open until it's closed, without talking to a server.
+     */
+    private static final class OpenConnection extends PServerConnection {
+        private volatile boolean open = true;
+
+        private OpenConnection() {
+            super(CVSRoot.parse(":pserver:user@host:/cvs"));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+}
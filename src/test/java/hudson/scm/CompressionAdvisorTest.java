@@ -0,0 +1,61 @@
+package hudson.scm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionAdvisorTest {
+
+    private final CompressionAdvisor advisor = CompressionAdvisor.getInstance();
+
+    @Test
+    public void testDefaultLevelUsedUntilEveryLevelMeasured() {
+        String cvsRoot = ":pserver:host:/testDefaultLevelUsedUntilEveryLevelMeasured";
+        assertEquals(CompressionAdvisor.DEFAULT_LEVEL, advisor.getLevel(cvsRoot, false));
+
+        // checkouts work through the levels, each being measured twice before moving on
+        assertEquals(0, advisor.getLevel(cvsRoot, true));
+        advisor.record(cvsRoot, 0, 1024 * 1024, 1000);
+        assertEquals(0, advisor.getLevel(cvsRoot, true));
+        advisor.record(cvsRoot, 0, 1024 * 1024, 1000);
+        assertEquals(1, advisor.getLevel(cvsRoot, true));
+        assertEquals(CompressionAdvisor.DEFAULT_LEVEL, advisor.getLevel(cvsRoot, false));
+
+        recordTwice(cvsRoot, 1, 1000);
+        recordTwice(cvsRoot, 3, 1000);
+        recordTwice(cvsRoot, 6, 250);
+        assertEquals(CompressionAdvisor.DEFAULT_LEVEL, advisor.getLevel(cvsRoot, false));
+        assertEquals(9, advisor.getLevel(cvsRoot, true));
+        recordTwice(cvsRoot, 9, 1000);
+
+        assertEquals(6, advisor.getLevel(cvsRoot, false));
+        assertEquals(6, advisor.getLevel(cvsRoot, true));
+    }
+
+    @Test
+    public void testSmallTransfersNotMeasured() {
+        String cvsRoot = ":pserver:host:/testSmallTransfersNotMeasured";
+        assertEquals(0, advisor.getLevel(cvsRoot, true));
+        advisor.record(cvsRoot, 0, 1024, 1000);
+        advisor.record(cvsRoot, 0, 1024, 1000);
+
+        assertEquals(0, advisor.getLevel(cvsRoot, true));
+        assertTrue(advisor.getRates(cvsRoot).isEmpty());
+    }
+
+    @Test
+    public void testRatesOnlyIncludeMeasuredLevels() {
+        String cvsRoot = ":pserver:host:/testRatesOnlyIncludeMeasuredLevels";
+        advisor.record(cvsRoot, 3, 1024 * 1024, 1000);
+
+        assertEquals(1, advisor.getRates(cvsRoot).size());
+        assertEquals(Long.valueOf(1024 * 1024), advisor.getRates(cvsRoot).get(3));
+    }
+
+    private void recordTwice(final String cvsRoot, final int level, final long duration) {
+        advisor.record(cvsRoot, level, 1024 * 1024, duration);
+        advisor.record(cvsRoot, level, 1024 * 1024, duration);
+    }
+
+}
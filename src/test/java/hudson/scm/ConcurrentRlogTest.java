@@ -0,0 +1,103 @@
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentRlogTest {
+
+    @Before
+    public void enable() {
+        ConcurrentRlog.ENABLED = true;
+    }
+
+    @After
+    public void reset() {
+        ConcurrentRlog.ENABLED = false;
+    }
+
+    @Test
+    public void testLogsAndOutputInModuleOrder() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        List<ConcurrentRlog.ModuleLog> modules = new ArrayList<ConcurrentRlog.ModuleLog>();
+        for (int i = 0; i < 6; i++) {
+            final int index = i;
+            modules.add(new ConcurrentRlog.ModuleLog() {
+                @Override
+                public CvsChangeSet fetch(final TaskListener listener) throws InterruptedException {
+                    int now = running.incrementAndGet();
+                    synchronized (mostRunning) {
+                        mostRunning.set(Math.max(mostRunning.get(), now));
+                    }
+                    listener.getLogger().println("rlog module" + index);
+                    // later modules finish first
+                    Thread.sleep((6 - index) * 20);
+                    listener.getLogger().println("done module" + index);
+                    running.decrementAndGet();
+                    return changeSet("module" + index);
+                }
+            });
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        List<CvsChangeSet> logs = ConcurrentRlog.fetch(":pserver:host:/testLogsAndOutputInModuleOrder", 3, modules,
+                new StreamTaskListener(output));
+
+        assertEquals(6, logs.size());
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Arrays.asList(CvsFile.make("module" + i + "/file.txt", "1.1")), logs.get(i).getFiles());
+            expected.append("rlog module").append(i).append(System.getProperty("line.separator"));
+            expected.append("done module").append(i).append(System.getProperty("line.separator"));
+        }
+        // each module's output is kept together, whichever order they finished in
+        assertEquals(expected.toString(), output.toString());
+        assertTrue(mostRunning.get() > 1);
+        assertTrue(mostRunning.get() <= 3);
+        assertFalse(CvsRootTaskRunner.isInUse(":pserver:host:/testLogsAndOutputInModuleOrder"));
+    }
+
+    @Test
+    public void testSequentialWhenDisabled() throws Exception {
+        ConcurrentRlog.ENABLED = false;
+        final List<String> fetched = new ArrayList<String>();
+        List<ConcurrentRlog.ModuleLog> modules = new ArrayList<ConcurrentRlog.ModuleLog>();
+        for (int i = 0; i < 3; i++) {
+            final String name = "module" + i;
+            modules.add(new ConcurrentRlog.ModuleLog() {
+                @Override
+                public CvsChangeSet fetch(final TaskListener listener) {
+                    synchronized (fetched) {
+                        fetched.add(name);
+                    }
+                    return changeSet(name);
+                }
+            });
+        }
+
+        List<CvsChangeSet> logs = ConcurrentRlog.fetch(":pserver:host:/testSequentialWhenDisabled", 3, modules,
+                TaskListener.NULL);
+
+        assertEquals(Arrays.asList("module0", "module1", "module2"), fetched);
+        assertEquals(Arrays.asList(CvsFile.make("module2/file.txt", "1.1")), logs.get(2).getFiles());
+    }
+
+    private static CvsChangeSet changeSet(final String module) {
+        return new CvsChangeSet(Arrays.asList(CvsFile.make(module + "/file.txt", "1.1")),
+                new ArrayList<CVSChangeLogSet.CVSChangeLog>());
+    }
+
+}
@@ -0,0 +1,75 @@
+package hudson.scm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class CurrentWorkspaceTest {
+
+    private final Date checkout = new Date(1000000L);
+
+    @Before
+    public void enable() {
+        CurrentWorkspace.ENABLED = true;
+    }
+
+    @After
+    public void reset() {
+        CurrentWorkspace.QuietPollCleaner.forget("job");
+        CurrentWorkspace.ENABLED = false;
+    }
+
+    @Test
+    public void testQuietPollCoversTimeSincePreviousCheckout() {
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("job", 1, checkout));
+
+        // the build only has to look for commits since the poll
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(5000000L), true);
+        assertEquals(new Date(5000000L), CurrentWorkspace.getUncheckedFrom("job", 1, checkout));
+    }
+
+    @Test
+    public void testQuietPollAgainstAnotherBuildIgnored() {
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(5000000L), true);
+
+        assertEquals(new Date(2000000L), CurrentWorkspace.getUncheckedFrom("job", 2, new Date(2000000L)));
+        // a poll that started after the checkout leaves a gap it didn't cover
+        assertEquals(new Date(500000L), CurrentWorkspace.getUncheckedFrom("job", 1, new Date(500000L)));
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("other", 1, checkout));
+    }
+
+    @Test
+    public void testPollWithCommitsForgetsQuietPoll() {
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(5000000L), true);
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(6000000L), false);
+
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("job", 1, checkout));
+    }
+
+    @Test
+    public void testQuietPollsForgottenWithJobOrFolder() {
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(5000000L), true);
+        CurrentWorkspace.recordPoll("job/nested", 1, checkout, new Date(5000000L), true);
+        CurrentWorkspace.recordPoll("jobs", 1, checkout, new Date(5000000L), true);
+
+        CurrentWorkspace.QuietPollCleaner.forget("job");
+
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("job", 1, checkout));
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("job/nested", 1, checkout));
+        assertEquals(new Date(5000000L), CurrentWorkspace.getUncheckedFrom("jobs", 1, checkout));
+        CurrentWorkspace.QuietPollCleaner.forget("jobs");
+    }
+
+    @Test
+    public void testNothingRememberedWhenDisabled() {
+        CurrentWorkspace.ENABLED = false;
+        CurrentWorkspace.recordPoll("job", 1, checkout, new Date(5000000L), true);
+
+        assertEquals(checkout, CurrentWorkspace.getUncheckedFrom("job", 1, checkout));
+    }
+
+}
@@ -0,0 +1,87 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CvsCheckoutCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testEntriesKeyedOnModuleAndLocation() throws Exception {
+        FilePath nodeRoot = new FilePath(tmp.getRoot());
+        CvsCheckoutCache head = CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, "ignored");
+
+        assertEquals(head.getDirectory(), CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, "other").getDirectory());
+        assertFalse(head.getDirectory().equals(CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs",
+                "module", CvsRepositoryLocationType.BRANCH, "ignored").getDirectory()));
+        assertFalse(head.getDirectory().equals(CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs",
+                "other", CvsRepositoryLocationType.HEAD, "ignored").getDirectory()));
+        assertEquals(nodeRoot.child("cvs-cache"), head.getDirectory().getParent());
+    }
+
+    @Test
+    public void testLockSharedByEveryBuildUsingEntryOnSameNode() throws Exception {
+        FilePath nodeRoot = new FilePath(tmp.getRoot());
+        CvsCheckoutCache cache = CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, null);
+
+        assertSame(cache.getLock(), CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, null).getLock());
+        // the same path on another node is a different directory
+        assertNotSame(cache.getLock(), CvsCheckoutCache.forModule(nodeRoot, "other", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, null).getLock());
+    }
+
+    @Test
+    public void testStoreAndSeed() throws Exception {
+        FilePath nodeRoot = new FilePath(tmp.newFolder("node"));
+        CvsCheckoutCache cache = CvsCheckoutCache.forModule(nodeRoot, "node", ":pserver:host:/cvs", "module",
+                CvsRepositoryLocationType.HEAD, null);
+        assertFalse(cache.exists());
+
+        FilePath checkout = new FilePath(tmp.newFolder("checkout")).child("module");
+        checkout.child("CVS/Entries").write("/a.txt/1.1///\n", "UTF-8");
+        checkout.child("a.txt").write("first", "UTF-8");
+        checkout.child("a.txt").touch(1000000000000L);
+        cache.store(checkout);
+        assertTrue(cache.exists());
+
+        // storing again replaces the previous checkout rather than merging into it
+        checkout.child("a.txt").delete();
+        checkout.child("CVS/Entries").write("/b.txt/1.1///\n", "UTF-8");
+        checkout.child("b.txt").write("second", "UTF-8");
+        checkout.child("b.txt").touch(1000000000000L);
+        cache.store(checkout);
+        assertFalse(cache.getDirectory().child(CvsCheckoutCache.CHECKOUT_NAME).child("a.txt").exists());
+        assertFalse(cache.getDirectory().child(CvsCheckoutCache.CHECKOUT_NAME + ".tmp").exists());
+
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        FilePath module = workspace.child("module");
+        module.child("stale.txt").write("stale", "UTF-8");
+        cache.seed(module, workspace);
+
+        assertFalse(module.child("stale.txt").exists());
+        assertEquals("second", module.child("b.txt").readToString());
+        assertEquals("/b.txt/1.1///\n", module.child("CVS/Entries").readToString());
+        // CVS compares timestamps to spot local changes, so they have to survive the copy
+        assertEquals(1000000000000L, new File(module.getRemote(), "b.txt").lastModified());
+
+        cache.discard();
+        assertFalse(cache.exists());
+    }
+
+}
@@ -0,0 +1,87 @@
+package hudson.scm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netbeans.lib.cvsclient.event.FileAddedEvent;
+import org.netbeans.lib.cvsclient.event.FileRemovedEvent;
+import org.netbeans.lib.cvsclient.event.FileUpdatedEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CvsCommandStatisticsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testCollectorCountsFilesAndBytes() throws Exception {
+        CvsCommandStatistics.Collector collector = new CvsCommandStatistics.Collector();
+        // new files (U of a file not yet in the workspace) are reported as added, patched and replaced ones (P, U)
+        // as updated, and files gone from the repository (R and removed from the branch) as removed
+        collector.fileAdded(new FileAddedEvent(this, createFile("added.txt", 100)));
+        collector.fileUpdated(new FileUpdatedEvent(this, createFile("patched.txt", 30)));
+        collector.fileUpdated(new FileUpdatedEvent(this, createFile("replaced.txt", 20)));
+        collector.fileRemoved(new FileRemovedEvent(this, new File(tmp.getRoot(), "removed.txt").getPath()));
+        assertEquals(150, collector.getFileBytes());
+
+        CvsCommandStatistics statistics = collector.finish(":pserver:host:/cvs", "module", "update", 3, true);
+        assertEquals(":pserver:host:/cvs", statistics.getCvsRoot());
+        assertEquals("module", statistics.getModules());
+        assertEquals("update", statistics.getCommand());
+        assertEquals(3, statistics.getCompressionLevel());
+        assertTrue(statistics.isSuccessful());
+        assertEquals(1, statistics.getFilesAdded());
+        assertEquals(2, statistics.getFilesUpdated());
+        assertEquals(1, statistics.getFilesRemoved());
+        assertEquals(150, statistics.getFileBytes());
+    }
+
+    @Test
+    public void testWallTimeRecordedForEachModule() throws Exception {
+        CvsCommandStatistics.Collector first = new CvsCommandStatistics.Collector();
+        Thread.sleep(100);
+        first.fileAdded(new FileAddedEvent(this, createFile("a.txt", 10)));
+        Thread.sleep(100);
+        CvsCommandStatistics firstModule = first.finish(":pserver:host:/cvs", "a", "checkout", 3, true);
+
+        CvsCommandStatistics.Collector second = new CvsCommandStatistics.Collector();
+        CvsCommandStatistics secondModule = second.finish(":pserver:host:/cvs", "b", "checkout", 3, false);
+
+        // the wait for the server covers the time up to the first file, and the duration the whole command
+        assertTrue(firstModule.getServerWaitTime() >= 100);
+        assertTrue(firstModule.getDuration() >= 200);
+        assertTrue(firstModule.getDuration() >= firstModule.getServerWaitTime());
+        // a command that got no response at all spent all its time waiting
+        assertEquals(secondModule.getDuration(), secondModule.getServerWaitTime());
+        assertFalse(secondModule.isSuccessful());
+
+        CvsCheckoutStatistics build = new CvsCheckoutStatistics();
+        build.add(firstModule);
+        build.add(secondModule);
+        assertEquals(2, build.getCommands().size());
+        assertEquals("a", build.getCommands().get(0).getModules());
+        assertEquals("b", build.getCommands().get(1).getModules());
+        assertEquals(firstModule.getDuration() + secondModule.getDuration(), build.getDuration());
+        assertEquals(10, build.getFileBytes());
+        assertEquals(1, build.getFilesAdded());
+    }
+
+    private String createFile(final String name, final int length) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+}
@@ -0,0 +1,135 @@
+package hudson.scm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.netbeans.lib.cvsclient.CVSRoot;
+import org.netbeans.lib.cvsclient.Client;
+import org.netbeans.lib.cvsclient.admin.StandardAdminHandler;
+import org.netbeans.lib.cvsclient.connection.PServerConnection;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CvsConnectionPoolTest {
+
+    private final CvsConnectionPool pool = CvsConnectionPool.getInstance();
+
+    @Before
+    public void enablePool() {
+        pool.clear();
+        CvsConnectionPool.ENABLED = true;
+        CvsConnectionPool.MAX_IDLE_PER_ROOT = 2;
+        CvsConnectionPool.MAX_IDLE = 3;
+        CvsConnectionPool.IDLE_TIMEOUT = 60000L;
+    }
+
+    @After
+    public void resetPool() {
+        pool.clear();
+        CvsConnectionPool.ENABLED = false;
+        CvsConnectionPool.MAX_IDLE_PER_ROOT = 4;
+        CvsConnectionPool.MAX_IDLE = 16;
+        CvsConnectionPool.IDLE_TIMEOUT = 60000L;
+    }
+
+    @Test
+    public void testConnectionOnlyReusedAtSameCompressionLevel() throws Exception {
+        Client client = openClient();
+        pool.release("key", 3, client, true);
+
+        Client fresh = openClient();
+        assertSame(fresh, pool.borrow("key", 9, fresh));
+        assertNull(pool.borrow("other", 3));
+        assertSame(client, pool.borrow("key", 3, fresh));
+        assertTrue(client.getConnection().isOpen());
+
+        // each connection is only handed out once
+        assertNull(pool.borrow("key", 3));
+    }
+
+    @Test
+    public void testConnectionClosedUnlessCommandCompletedCleanly() throws Exception {
+        Client client = openClient();
+        pool.release("key", 3, client, false);
+
+        assertFalse(client.getConnection().isOpen());
+        assertNull(pool.borrow("key", 3));
+    }
+
+    @Test
+    public void testIdleConnectionsCapped() throws Exception {
+        Client first = openClient();
+        Client second = openClient();
+        Client third = openClient();
+        pool.release("key", 3, first, true);
+        pool.release("key", 3, second, true);
+        pool.release("key", 3, third, true);
+
+        // only two are kept for one key
+        assertFalse(third.getConnection().isOpen());
+
+        Client otherLevel = openClient();
+        Client overLimit = openClient();
+        pool.release("key", 6, otherLevel, true);
+        pool.release("other", 3, overLimit, true);
+
+        // and three across all keys
+        assertTrue(otherLevel.getConnection().isOpen());
+        assertFalse(overLimit.getConnection().isOpen());
+
+        // the most recently used connection is handed out first
+        assertSame(second, pool.borrow("key", 3));
+        assertSame(first, pool.borrow("key", 3));
+        assertSame(otherLevel, pool.borrow("key", 6));
+    }
+
+    @Test
+    public void testExpiredConnectionsClosedRatherThanBorrowed() throws Exception {
+        Client client = openClient();
+        pool.release("key", 3, client, true);
+        CvsConnectionPool.IDLE_TIMEOUT = 0;
+
+        assertNull(pool.borrow("key", 3));
+        assertFalse(client.getConnection().isOpen());
+    }
+
+    @Test
+    public void testNothingPooledWhenDisabled() throws Exception {
+        CvsConnectionPool.ENABLED = false;
+        Client client = openClient();
+        pool.release("key", 3, client, true);
+
+        assertFalse(client.getConnection().isOpen());
+        CvsConnectionPool.ENABLED = true;
+        assertNull(pool.borrow("key", 3));
+    }
+
+    private static Client openClient() {
+        return new Client(new OpenConnection(), new StandardAdminHandler());
+    }
+
+    /**
+     * A connection that claims to be open until it's closed, without talking to a server.
+     */
+    private static final class OpenConnection extends PServerConnection {
+        private boolean open = true;
+
+        private OpenConnection() {
+            super(CVSRoot.parse(":pserver:user@host:/cvs"));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+}
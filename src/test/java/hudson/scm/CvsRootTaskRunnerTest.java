@@ -0,0 +1,225 @@
+package hudson.scm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CvsRootTaskRunnerTest {
+
+    @Test
+    public void testResultsReturnedInOrderAdded() throws Exception {
+        CvsRootTaskRunner<Integer> runner = new CvsRootTaskRunner<Integer>("testResultsReturnedInOrderAdded", 3);
+        for (int i = 0; i < 6; i++) {
+            final int index = i;
+            runner.add(i % 2 == 0 ? ":pserver:a:/cvs" : ":pserver:b:/cvs", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    // later tasks finish first
+                    Thread.sleep((6 - index) * 20);
+                    return index;
+                }
+            });
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), runner.invokeAll());
+        assertFalse(CvsRootTaskRunner.isInUse(":pserver:a:/cvs"));
+        assertFalse(CvsRootTaskRunner.isInUse(":pserver:b:/cvs"));
+    }
+
+    @Test
+    public void testEachStepOfSequenceLimitedByItsOwnRoot() throws Exception {
+        final CvsRootTaskRunner<Boolean> runner = new CvsRootTaskRunner<Boolean>(
+                "testEachStepOfSequenceLimitedByItsOwnRoot", 1);
+        final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        for (String root : Arrays.asList("first", "second", "shared")) {
+            running.put(root, new AtomicInteger());
+        }
+
+        // both chains start on a different root but then share one, which must only be used by one at a time
+        for (final String firstRoot : Arrays.asList("first", "second")) {
+            runner.addSequence(firstRoot, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (final String root : Arrays.asList(firstRoot, "shared", "shared")) {
+                        runner.call(root, new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                int count = running.get(root).incrementAndGet();
+                                synchronized (maxRunning) {
+                                    maxRunning.set(Math.max(maxRunning.get(), count));
+                                }
+                                Thread.sleep(50);
+                                running.get(root).decrementAndGet();
+                                return null;
+                            }
+                        });
+                    }
+                    return true;
+                }
+            });
+        }
+
+        assertEquals(Arrays.asList(true, true), runner.invokeAll());
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testFirstFailureCancelsRemainingTasks() throws Exception {
+        CvsRootTaskRunner<Boolean> runner = new CvsRootTaskRunner<Boolean>("testFirstFailureCancelsRemainingTasks", 2);
+        final IOException failure = new IOException("checkout failed");
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+
+        runner.add("failed", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.await();
+                throw failure;
+            }
+        });
+        runner.add("failed", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException ex) {
+                    interrupted.set(true);
+                    throw ex;
+                }
+                return true;
+            }
+        });
+
+        try {
+            runner.invokeAll();
+            fail("Expected the failure of the first task to be thrown");
+        } catch (IOException ex) {
+            assertSame(failure, ex);
+        }
+        assertTrue(interrupted.get());
+        assertFalse(CvsRootTaskRunner.isInUse("failed"));
+    }
+
+    @Test
+    public void testTaskIgnoringCancellationReported() throws Exception {
+        CvsRootTaskRunner<Boolean> runner = new CvsRootTaskRunner<Boolean>("testTaskIgnoringCancellationReported", 2,
+                200);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        runner.add("ignored", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.await();
+                throw new IOException("checkout failed");
+            }
+        });
+        runner.add("ignored", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                while (true) {
+                    try {
+                        finish.await();
+                        return true;
+                    } catch (InterruptedException ex) {
+                        // carries on regardless
+                    }
+                }
+            }
+        });
+
+        try {
+            runner.invokeAll();
+            fail("Expected the task that didn't stop to be reported");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("still has tasks running"));
+        } finally {
+            finish.countDown();
+        }
+    }
+
+    @Test
+    public void testPermitsResizedUnderHolders() throws Exception {
+        final CountDownLatch held = new CountDownLatch(2);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch releaseSecond = new CountDownLatch(1);
+        final AtomicBoolean resizedTaskRan = new AtomicBoolean();
+
+        Thread first = holdPermit("resized", 2, held, releaseFirst);
+        Thread second = holdPermit("resized", 2, held, releaseSecond);
+        held.await();
+
+        // the limit drops to one while two permits are held, so the next task waits for both to be released
+        Thread resized = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    CvsRootTaskRunner.callWithPermit("resized", 1, new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            resizedTaskRan.set(true);
+                            return null;
+                        }
+                    });
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        resized.start();
+        Thread.sleep(200);
+        assertFalse(resizedTaskRan.get());
+
+        releaseFirst.countDown();
+        first.join();
+        Thread.sleep(200);
+        assertFalse(resizedTaskRan.get());
+
+        releaseSecond.countDown();
+        second.join();
+        resized.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(resizedTaskRan.get());
+        assertFalse(CvsRootTaskRunner.isInUse("resized"));
+    }
+
+    private static Thread holdPermit(final String cvsRoot, final int permits, final CountDownLatch held,
+                                     final CountDownLatch release) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    CvsRootTaskRunner.callWithPermit(cvsRoot, permits, new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            held.countDown();
+                            release.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,105 @@
+package hudson.scm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CvsRootWatcherTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Before
+    public void enable() {
+        CvsRootWatcher.ENABLED = true;
+    }
+
+    @After
+    public void reset() {
+        CvsRootWatcher.ENABLED = false;
+    }
+
+    @Test
+    public void testQuietSinceCoveredPeriodStarted() {
+        long now = System.currentTimeMillis();
+        CvsRepository repository = repository(":pserver:host:/testQuietSinceCoveredPeriodStarted", "a", "b");
+        record(repository, 0, now - 30 * MINUTE, now - MINUTE, change(now - 20 * MINUTE, "/cvs/a/a.txt", "1.2"));
+        record(repository, 1, now - 30 * MINUTE, now - MINUTE / 2);
+
+        // the answer runs up to the module checked longest ago
+        assertEquals(new Date(now - MINUTE), CvsRootWatcher.getQuietUntil(repository, new Date(now - 10 * MINUTE)));
+        // a commit since the last build, or a build from before the watcher started, needs a real poll
+        assertNull(CvsRootWatcher.getQuietUntil(repository, new Date(now - 25 * MINUTE)));
+        assertNull(CvsRootWatcher.getQuietUntil(repository, new Date(now - 40 * MINUTE)));
+
+        CvsRootWatcher.ENABLED = false;
+        assertNull(CvsRootWatcher.getQuietUntil(repository, new Date(now - 10 * MINUTE)));
+    }
+
+    @Test
+    public void testNoAnswerOnceChecksStop() {
+        long now = System.currentTimeMillis();
+        CvsRepository repository = repository(":pserver:host:/testNoAnswerOnceChecksStop", "a");
+        record(repository, 0, now - 30 * MINUTE, now - 3 * MINUTE);
+
+        // checks that keep failing leave the covered period behind, so it mustn't be trusted for recent polls
+        assertNull(CvsRootWatcher.getQuietUntil(repository, new Date(now - 10 * MINUTE)));
+        assertNull(CvsRootWatcher.getQuietUntil(repository(":pserver:host:/testNoAnswerOnceChecksStop", "b"),
+                new Date(now - 10 * MINUTE)));
+    }
+
+    @Test
+    public void testOnlyCommitsAfterFirstCheckAreNew() {
+        long now = System.currentTimeMillis();
+        CvsRepository repository = repository(":pserver:host:/testOnlyCommitsAfterFirstCheckAreNew", "a");
+        CvsChangeSet first = new CvsChangeSet(Arrays.asList(CvsFile.make("/cvs/a/a.txt", "1.2")),
+                new ArrayList<CVSChangeLogSet.CVSChangeLog>());
+        CvsChangeSet second = new CvsChangeSet(Arrays.asList(CvsFile.make("/cvs/a/a.txt", "1.2"),
+                CvsFile.make("/cvs/a/b.txt", "1.1")), new ArrayList<CVSChangeLogSet.CVSChangeLog>());
+
+        String key = key(repository, 0);
+        assertFalse(CvsRootWatcher.record(key, new Date(now - 10 * MINUTE), new Date(now - 5 * MINUTE), first));
+        assertFalse(CvsRootWatcher.record(key, new Date(now - 10 * MINUTE), new Date(now - 4 * MINUTE), first));
+        assertTrue(CvsRootWatcher.record(key, new Date(now - 9 * MINUTE), new Date(now - 3 * MINUTE), second));
+    }
+
+    private static void record(final CvsRepository repository, final int module, final long start, final long end,
+                               final CVSChangeLogSet.CVSChangeLog... changes) {
+        CvsRootWatcher.record(key(repository, module), new Date(start), new Date(end),
+                new CvsChangeSet(new ArrayList<CvsFile>(), Arrays.asList(changes)));
+    }
+
+    private static String key(final CvsRepository repository, final int module) {
+        CvsRepositoryItem item = repository.getRepositoryItems()[0];
+        return CvsRootWatcher.getKey(repository, item, item.getModules()[module]);
+    }
+
+    private static CvsRepository repository(final String cvsRoot, final String... moduleNames) {
+        CvsModule[] modules = new CvsModule[moduleNames.length];
+        for (int i = 0; i < modules.length; i++) {
+            modules[i] = new CvsModule(moduleNames[i], "");
+        }
+        return new CvsRepository(cvsRoot, false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), modules)), new ArrayList<ExcludedRegion>(), 3,
+                null);
+    }
+
+    private static CVSChangeLogSet.CVSChangeLog change(final long time, final String fullName, final String revision) {
+        CVSChangeLogSet.File file = new CVSChangeLogSet.File();
+        file.setFullName(fullName);
+        file.setRevision(revision);
+        CVSChangeLogSet.CVSChangeLog change = new CVSChangeLogSet.CVSChangeLog();
+        change.setChangeDate(new Date(time));
+        change.addFile(file);
+        return change;
+    }
+
+}
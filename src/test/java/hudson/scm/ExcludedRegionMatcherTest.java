@@ -0,0 +1,51 @@
+package hudson.scm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExcludedRegionMatcherTest {
+
+    @Test
+    public void testMatchesLikeIndividualPatterns() {
+        ExcludedRegionMatcher matcher = new ExcludedRegionMatcher(new ExcludedRegion[]{
+                new ExcludedRegion("^docs/.*$"), new ExcludedRegion("build\\.xml"),
+                new ExcludedRegion("(src|test)/.*\\.txt"), new ExcludedRegion("(?i)[^/]*\\.PNG"),
+                new ExcludedRegion("(a)/\\1")});
+
+        assertEquals("^docs/.*$", matcher.getExcludingRegion("docs/readme"));
+        assertEquals("^docs/.*$", matcher.getExcludingRegion("docs/"));
+        assertNull(matcher.getExcludingRegion("docs"));
+        assertEquals("build\\.xml", matcher.getExcludingRegion("build.xml"));
+        assertNull(matcher.getExcludingRegion("build.xml.bak"));
+        assertNull(matcher.getExcludingRegion("buildxxml"));
+        assertEquals("(src|test)/.*\\.txt", matcher.getExcludingRegion("test/notes.txt"));
+        assertEquals("(?i)[^/]*\\.PNG", matcher.getExcludingRegion("logo.png"));
+        assertNull(matcher.getExcludingRegion("src/logo.png"));
+        assertEquals("(a)/\\1", matcher.getExcludingRegion("a/a"));
+        assertNull(matcher.getExcludingRegion("src/Main.java"));
+    }
+
+    @Test
+    public void testFilterSummarizesExcludedFiles() {
+        ExcludedRegionMatcher matcher = new ExcludedRegionMatcher(new ExcludedRegion[]{
+                new ExcludedRegion("docs/.*"), new ExcludedRegion("[^/]*\\.txt")});
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        List<CvsFile> included = matcher.filter(Arrays.asList(CvsFile.make("docs/a", "1.1"),
+                CvsFile.make("src/Main.java", "1.2"), CvsFile.make("docs/b", "1.1"), CvsFile.make("notes.txt", "1.3")),
+                new PrintStream(output, true));
+
+        assertEquals(Arrays.asList(CvsFile.make("src/Main.java", "1.2")), included);
+        String lineSeparator = System.getProperty("line.separator");
+        assertEquals("Skipping 2 files since they match exclude pattern docs/.*: 'docs/a', 'docs/b'" + lineSeparator
+                + "Skipping file 'notes.txt' since it matches exclude pattern [^/]*\\.txt" + lineSeparator,
+                output.toString());
+    }
+}
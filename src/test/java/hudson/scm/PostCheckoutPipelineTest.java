@@ -0,0 +1,117 @@
+package hudson.scm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PostCheckoutPipelineTest {
+
+    private final CvsModule first = new CvsModule("first", "");
+    private final CvsModule second = new CvsModule("second", "");
+    private final CvsModule nested = new CvsModule("nested", "first/nested");
+
+    @Test
+    public void testNestedModulesLeftForAfterCheckout() throws Exception {
+        PostCheckoutPipeline pipeline = new PostCheckoutPipeline();
+        pipeline.register(Arrays.asList("first", "second"));
+        pipeline.submitModule(null, null, first, "first", state("first/a.txt"));
+        pipeline.submitModule(null, null, second, "second", state("second/b.txt"));
+        assertEquals(state("first/a.txt").call(), pipeline.getModuleState(null, null, first));
+
+        // a later checkout into the first module means neither can be captured until everything has finished
+        pipeline.register(Collections.singletonList("first/nested"));
+        pipeline.submitModule(null, null, nested, "first/nested", state("first/nested/c.txt"));
+
+        assertNull(pipeline.getModuleState(null, null, first));
+        assertNull(pipeline.getModuleState(null, null, nested));
+        assertEquals(state("second/b.txt").call(), pipeline.getModuleState(null, null, second));
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void testRegisterWaitsForNestedModuleBeingProcessed() throws Exception {
+        final PostCheckoutPipeline pipeline = new PostCheckoutPipeline();
+        pipeline.register(Collections.singletonList("first"));
+        final CountDownLatch finish = new CountDownLatch(1);
+        pipeline.submitModule(null, null, first, "first", new Callable<List<CvsFile>>() {
+            @Override
+            public List<CvsFile> call() throws Exception {
+                finish.await();
+                return new ArrayList<CvsFile>();
+            }
+        });
+
+        final AtomicBoolean registered = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.register(Collections.singletonList("first/nested"));
+                    registered.set(true);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+
+        // nothing can be checked out into the module whilst it's still being walked
+        Thread.sleep(200);
+        assertFalse(registered.get());
+        finish.countDown();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(registered.get());
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void testShutdownStopsRunningWork() throws Exception {
+        PostCheckoutPipeline pipeline = new PostCheckoutPipeline();
+        pipeline.register(Arrays.asList("first", "second"));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        pipeline.submitModule(null, null, first, "first", new Callable<List<CvsFile>>() {
+            @Override
+            public List<CvsFile> call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                    throw ex;
+                }
+                return new ArrayList<CvsFile>();
+            }
+        });
+        started.await();
+
+        pipeline.shutdown();
+
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        // the shared threads carry on working for other builds, but this pipeline takes nothing new
+        pipeline.submitModule(null, null, second, "second", state("second/b.txt"));
+        assertNull(pipeline.getModuleState(null, null, second));
+    }
+
+    private static Callable<List<CvsFile>> state(final String fileName) {
+        return new Callable<List<CvsFile>>() {
+            @Override
+            public List<CvsFile> call() {
+                return Collections.singletonList(CvsFile.make(fileName, "1.1"));
+            }
+        };
+    }
+
+}
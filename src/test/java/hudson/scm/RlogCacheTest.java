@@ -0,0 +1,105 @@
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RlogCacheTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void testWindowExtendedAndFilteredPerPoll() throws Exception {
+        final List<CVSChangeLogSet.CVSChangeLog> commits = Arrays.asList(change(10, "/cvs/module/a.txt", "1.2", false),
+                change(40, "/cvs/module/a.txt", "1.3", false), change(100, "/cvs/module/b.txt", "1.1", true));
+        final List<String> fetches = new ArrayList<String>();
+        RlogCache.Fetcher fetcher = new RlogCache.Fetcher() {
+            @Override
+            public CvsChangeSet fetch(Date startTime, Date endTime) {
+                fetches.add(startTime.getTime() / MINUTE + "-" + endTime.getTime() / MINUTE);
+                List<CVSChangeLogSet.CVSChangeLog> changes = new ArrayList<CVSChangeLogSet.CVSChangeLog>();
+                for (CVSChangeLogSet.CVSChangeLog commit : commits) {
+                    if (commit.getChangeDate().after(startTime) && commit.getChangeDate().before(endTime)) {
+                        changes.add(commit);
+                    }
+                }
+                return new CvsChangeSet(new ArrayList<CvsFile>(), changes);
+            }
+        };
+        RlogCache cache = RlogCache.getInstance();
+        String key = "testWindowExtendedAndFilteredPerPoll";
+
+        CvsChangeSet changeSet = cache.get(key, at(20), at(60), MINUTE, fetcher, TaskListener.NULL);
+        assertEquals(Arrays.asList("20-60"), fetches);
+        assertEquals(Arrays.asList(CvsFile.make("/cvs/module/a.txt", "1.3")), changeSet.getFiles());
+
+        // only what's been committed since the end of the window is fetched
+        changeSet = cache.get(key, at(30), at(120), MINUTE, fetcher, TaskListener.NULL);
+        assertEquals(Arrays.asList("20-60", "55-120"), fetches);
+        assertEquals(Arrays.asList(CvsFile.make("/cvs/module/a.txt", "1.3"),
+                CvsFile.make("/cvs/module/b.txt", "1.1", true)), changeSet.getFiles());
+        assertEquals(2, changeSet.getChanges().size());
+
+        // a poll ending within the time to live of the window is answered from it
+        changeSet = cache.get(key, at(50), at(121), MINUTE, fetcher, TaskListener.NULL);
+        assertEquals(2, fetches.size());
+        assertEquals(Arrays.asList(CvsFile.make("/cvs/module/b.txt", "1.1", true)), changeSet.getFiles());
+
+        // a poll starting before the window fetches its own dates, and the window keeps what it had after them
+        changeSet = cache.get(key, at(5), at(50), MINUTE, fetcher, TaskListener.NULL);
+        assertEquals(Arrays.asList("20-60", "55-120", "5-50"), fetches);
+        assertEquals(2, changeSet.getChanges().size());
+        changeSet = cache.get(key, at(5), at(121), MINUTE, fetcher, TaskListener.NULL);
+        assertEquals(3, fetches.size());
+        assertEquals(3, changeSet.getChanges().size());
+    }
+
+    @Test
+    public void testChangesWithoutDateReplacedByFetch() throws Exception {
+        final List<String> fetches = new ArrayList<String>();
+        RlogCache.Fetcher fetcher = new RlogCache.Fetcher() {
+            @Override
+            public CvsChangeSet fetch(Date startTime, Date endTime) {
+                fetches.add(startTime.getTime() / MINUTE + "-" + endTime.getTime() / MINUTE);
+                CVSChangeLogSet.File file = new CVSChangeLogSet.File();
+                file.setFullName("/cvs/module/c.txt");
+                file.setRevision("1.1");
+                CVSChangeLogSet.CVSChangeLog undated = new CVSChangeLogSet.CVSChangeLog();
+                undated.addFile(file);
+                return new CvsChangeSet(new ArrayList<CvsFile>(),
+                        new ArrayList<CVSChangeLogSet.CVSChangeLog>(Arrays.asList(undated)));
+            }
+        };
+        RlogCache cache = RlogCache.getInstance();
+        String key = "testChangesWithoutDateReplacedByFetch";
+
+        cache.get(key, at(20), at(60), MINUTE, fetcher, TaskListener.NULL);
+        cache.get(key, at(20), at(120), MINUTE, fetcher, TaskListener.NULL);
+        CvsChangeSet changeSet = cache.get(key, at(10), at(120), MINUTE, fetcher, TaskListener.NULL);
+
+        // every fetch sees the change again, but the window only keeps one copy
+        assertEquals(Arrays.asList("20-60", "55-120", "10-120"), fetches);
+        assertEquals(1, changeSet.getChanges().size());
+    }
+
+    private static Date at(int minutes) {
+        return new Date(minutes * MINUTE);
+    }
+
+    private static CVSChangeLogSet.CVSChangeLog change(int minutes, String fullName, String revision, boolean dead) {
+        CVSChangeLogSet.File file = new CVSChangeLogSet.File();
+        file.setFullName(fullName);
+        file.setRevision(revision);
+        file.setDead(dead);
+        CVSChangeLogSet.CVSChangeLog change = new CVSChangeLogSet.CVSChangeLog();
+        change.setChangeDate(at(minutes));
+        change.addFile(file);
+        return change;
+    }
+}
@@ -0,0 +1,77 @@
+package hudson.scm;
+
+import org.junit.Test;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SummarizingListenerTest {
+
+    @Test
+    public void testSummaryCountsFilesPerDirectory() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SummarizingListener listener = new SummarizingListener(new PrintStream(output, true), 5);
+
+        listener.messageSent(new MessageEvent(this, "U module/a/file1", false));
+        listener.messageSent(new MessageEvent(this, "U module/a/file2", false));
+        listener.messageSent(new MessageEvent(this, "P module/b/file3", false));
+        listener.messageSent(new MessageEvent(this, "cvs update: module/b/file4 is no longer in the repository", true));
+        listener.finish(true);
+
+        String log = output.toString();
+        assertTrue(log, log.startsWith("3 files updated in 2 directories, 1 messages from the server"));
+        assertTrue(log, log.contains("    module/a: 2 files updated"));
+        assertTrue(log, log.contains("    module/b: 1 files updated"));
+        assertFalse(log, log.contains("U module/a/file1"));
+    }
+
+    @Test
+    public void testRecentLinesWrittenOnFailure() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SummarizingListener listener = new SummarizingListener(new PrintStream(output, true), 2);
+
+        listener.messageSent(new MessageEvent(this, "U module/file1", false));
+        listener.messageSent(new MessageEvent(this, "U module/file2", false));
+        listener.messageSent(new MessageEvent(this, "cvs [update aborted]: connection lost", true));
+        listener.finish(false);
+
+        String log = output.toString();
+        String lineSeparator = System.getProperty("line.separator");
+        assertTrue(log, log.endsWith("Last 2 lines of CVS output:" + lineSeparator + "U module/file2" + lineSeparator
+                + "cvs [update aborted]: connection lost" + lineSeparator));
+        assertFalse(log, log.contains("U module/file1"));
+        assertEquals(log, -1, log.indexOf("Last 3 lines"));
+    }
+
+    @Test
+    public void testTaggedLinesReassembled() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SummarizingListener listener = new SummarizingListener(new PrintStream(output, true), 2);
+
+        listener.messageSent(tagged("+updated"));
+        listener.messageSent(tagged("text U "));
+        listener.messageSent(tagged("fname module/a/file1"));
+        listener.messageSent(tagged("newline"));
+        listener.messageSent(tagged("-updated"));
+        listener.messageSent(new MessageEvent(this, "cvs [update aborted]: connection lost", true));
+        listener.finish(false);
+
+        String log = output.toString();
+        String lineSeparator = System.getProperty("line.separator");
+        assertTrue(log, log.startsWith("1 files updated in 1 directories, 1 messages from the server"));
+        assertTrue(log, log.contains("    module/a: 1 files updated"));
+        assertTrue(log, log.endsWith("Last 2 lines of CVS output:" + lineSeparator + "U module/a/file1" + lineSeparator
+                + "cvs [update aborted]: connection lost" + lineSeparator));
+    }
+
+    private MessageEvent tagged(String message) {
+        MessageEvent event = new MessageEvent(this, message, false);
+        event.setTagged(true);
+        return event;
+    }
+}
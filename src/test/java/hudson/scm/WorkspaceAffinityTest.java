@@ -0,0 +1,84 @@
+package hudson.scm;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.slaves.DumbSlave;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkspaceAffinityTest {
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Test
+    public void testNodesOrderedByOldestCheckoutOfEveryModule() throws Exception {
+        CvsRepository[] both = repositories(":pserver:host:/testNodesOrdered", "a", "b");
+        CvsRepository[] first = repositories(":pserver:host:/testNodesOrdered", "a");
+        DumbSlave warm = jenkinsRule.createOnlineSlave();
+        DumbSlave partial = jenkinsRule.createOnlineSlave();
+
+        WorkspaceAffinity.record(buildOn(null), both, new Date(1000));
+        WorkspaceAffinity.record(buildOn(warm), first, new Date(3000));
+        WorkspaceAffinity.record(buildOn(warm), both, new Date(2000));
+        WorkspaceAffinity.record(buildOn(partial), first, new Date(4000));
+
+        // a node is only as warm as its oldest module, and a node without every module isn't warm at all
+        assertEquals(Arrays.asList(warm.getNodeName(), ""), WorkspaceAffinity.getWarmNodes(scm(both)));
+        assertEquals(Arrays.asList(partial.getNodeName(), warm.getNodeName(), ""),
+                WorkspaceAffinity.getWarmNodes(scm(first)));
+    }
+
+    @Test
+    public void testModulesUsingVariablesNotTracked() throws Exception {
+        CvsRepository[] repositories = repositories(":pserver:host:/testModulesUsingVariables", "a", "${MODULE}");
+
+        WorkspaceAffinity.record(buildOn(null), repositories, new Date(1000));
+
+        assertEquals(Collections.<String>emptyList(), WorkspaceAffinity.getWarmNodes(scm(repositories)));
+    }
+
+    @Test
+    public void testRemovedNodesForgotten() throws Exception {
+        CvsRepository[] repositories = repositories(":pserver:host:/testRemovedNodesForgotten", "a");
+        DumbSlave removed = jenkinsRule.createOnlineSlave();
+        WorkspaceAffinity.record(buildOn(null), repositories, new Date(1000));
+        WorkspaceAffinity.record(buildOn(removed), repositories, new Date(2000));
+
+        jenkinsRule.jenkins.removeNode(removed);
+        new WorkspaceAffinity.RemovedNodeCleaner().onConfigurationChange();
+
+        assertEquals(Collections.singletonList(""), WorkspaceAffinity.getWarmNodes(scm(repositories)));
+    }
+
+    private FreeStyleBuild buildOn(final DumbSlave node) throws Exception {
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        if (node != null) {
+            project.setAssignedNode(node);
+        }
+        return jenkinsRule.buildAndAssertSuccess(project);
+    }
+
+    private static CvsRepository[] repositories(final String cvsRoot, final String... moduleNames) {
+        CvsModule[] modules = new CvsModule[moduleNames.length];
+        for (int i = 0; i < modules.length; i++) {
+            modules[i] = new CvsModule(moduleNames[i], "");
+        }
+        return new CvsRepository[]{new CvsRepository(cvsRoot, false, null, Arrays.asList(new CvsRepositoryItem(
+                new CvsRepositoryLocation.HeadRepositoryLocation(), modules)), new ArrayList<ExcludedRegion>(), 3,
+                null)};
+    }
+
+    private static AbstractCvs scm(final CvsRepository[] repositories) {
+        return new CVSSCM(Arrays.asList(repositories), true, false, false, false, false, false, false);
+    }
+
+}
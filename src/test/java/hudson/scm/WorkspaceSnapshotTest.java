@@ -0,0 +1,80 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspaceSnapshotTest {
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRestoreCopiesSnapshotIntoClearedWorkspace() throws Exception {
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        WorkspaceSnapshot snapshot = WorkspaceSnapshot.forBuild(build, workspace, "configuration");
+
+        // with nothing stored yet the workspace is left empty for a full checkout
+        workspace.child("build-output.txt").write("output", "UTF-8");
+        assertFalse(snapshot.restore(workspace));
+        assertTrue(workspace.list().isEmpty());
+
+        workspace.child("module/CVS/Entries").write("/a.txt/1.1///\n", "UTF-8");
+        workspace.child("module/a.txt").write("checked out", "UTF-8");
+        assertTrue(snapshot.store(workspace, "module"));
+        assertTrue(snapshot.hasContents("module"));
+        assertFalse(snapshot.hasContents("module,other"));
+
+        // whatever the build left behind is removed, and the checkout is put back as it was
+        workspace.child("module/a.txt").write("changed by the build", "UTF-8");
+        workspace.child("build-output.txt").write("output", "UTF-8");
+        assertTrue(snapshot.restore(workspace));
+        assertEquals(1, workspace.list().size());
+        assertEquals("module", workspace.list().get(0).getName());
+        assertEquals("checked out", workspace.child("module/a.txt").readToString());
+        assertEquals("/a.txt/1.1///\n", workspace.child("module/CVS/Entries").readToString());
+    }
+
+    @Test
+    public void testSnapshotOnlyRestoredForSameConfiguration() throws Exception {
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        workspace.child("module/a.txt").write("checked out", "UTF-8");
+        assertTrue(WorkspaceSnapshot.forBuild(build, workspace, "configuration").store(workspace, "module"));
+
+        // a module removed from the configuration mustn't be brought back
+        assertFalse(WorkspaceSnapshot.forBuild(build, workspace, "other configuration").restore(workspace));
+        assertTrue(workspace.list().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotOnlyReplacedWhenContentsChange() throws Exception {
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        WorkspaceSnapshot snapshot = WorkspaceSnapshot.forBuild(build, workspace, "configuration");
+        workspace.child("module/a.txt").write("first", "UTF-8");
+        assertTrue(snapshot.store(workspace, "module"));
+
+        workspace.child("module/a.txt").write("second", "UTF-8");
+        assertFalse(snapshot.store(workspace, "module"));
+        assertTrue(snapshot.restore(workspace));
+        assertEquals("first", workspace.child("module/a.txt").readToString());
+
+        workspace.child("module/a.txt").write("second", "UTF-8");
+        assertTrue(snapshot.store(workspace, "module,other"));
+        assertTrue(snapshot.restore(workspace));
+        assertEquals("second", workspace.child("module/a.txt").readToString());
+    }
+
+}
@@ -0,0 +1,110 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspaceTrashTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void enableTrash() {
+        WorkspaceTrash.ENABLED = true;
+        WorkspaceTrash.MAX_PENDING = 8;
+    }
+
+    @After
+    public void resetTrash() {
+        WorkspaceTrash.ENABLED = false;
+        WorkspaceTrash.MAX_PENDING = 8;
+    }
+
+    @Test
+    public void testContentsDeletedInBackground() throws Exception {
+        FilePath workspace = createWorkspace();
+
+        WorkspaceTrash.deleteContents(workspace);
+
+        assertTrue(workspace.isDirectory());
+        assertTrue(workspace.list().isEmpty());
+        awaitEmptyTrash(workspace);
+    }
+
+    @Test
+    public void testOnlyGivenDirectoryDeleted() throws Exception {
+        FilePath workspace = createWorkspace();
+
+        WorkspaceTrash.deleteRecursive(workspace.child("module"), workspace);
+
+        assertFalse(workspace.child("module").exists());
+        assertEquals("other", workspace.child("other/b.txt").readToString());
+        awaitEmptyTrash(workspace);
+    }
+
+    @Test
+    public void testLeftoversDeletedOnNextDiscard() throws Exception {
+        FilePath workspace = createWorkspace();
+        FilePath leftover = trashOf(workspace).child("1-1");
+        leftover.child("module/a.txt").write("left over", "UTF-8");
+
+        WorkspaceTrash.deleteRecursive(workspace.child("module"), workspace);
+
+        awaitEmptyTrash(workspace);
+    }
+
+    @Test
+    public void testDeletedSynchronouslyWhenTooMuchPending() throws Exception {
+        WorkspaceTrash.MAX_PENDING = 0;
+        FilePath workspace = createWorkspace();
+
+        WorkspaceTrash.deleteContents(workspace);
+
+        assertTrue(workspace.list().isEmpty());
+        assertTrue(trashOf(workspace).list().isEmpty());
+    }
+
+    @Test
+    public void testTrashNotUsedWhenDisabled() throws Exception {
+        WorkspaceTrash.ENABLED = false;
+        FilePath workspace = createWorkspace();
+
+        WorkspaceTrash.deleteRecursive(workspace.child("module"), workspace);
+        assertFalse(workspace.child("module").exists());
+        WorkspaceTrash.deleteContents(workspace);
+        assertTrue(workspace.list().isEmpty());
+
+        assertFalse(trashOf(workspace).exists());
+    }
+
+    private FilePath createWorkspace() throws Exception {
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        workspace.child("module/a.txt").write("module", "UTF-8");
+        workspace.child("other/b.txt").write("other", "UTF-8");
+        return workspace;
+    }
+
+    private static FilePath trashOf(final FilePath workspace) {
+        return workspace.getParent().child(workspace.getName() + WorkspaceTrash.SUFFIX);
+    }
+
+    private static void awaitEmptyTrash(final FilePath workspace) throws Exception {
+        // the trash directory is removed once nothing is left to delete from it
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (trashOf(workspace).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(trashOf(workspace).exists());
+    }
+
+}